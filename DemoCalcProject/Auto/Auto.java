@@ -1,5 +1,6 @@
 package Auto;
 
+import Interfaces.BufferPool;
 import Interfaces.CommunicatorExtended;
 import Interfaces.KeyWallet;
 import com.licel.jcardsim.smartcardio.CardSimulator;
@@ -8,12 +9,17 @@ import com.licel.jcardsim.utils.AIDUtil;
 import javacard.framework.AID;
 import javacard.security.PrivateKey;
 import javacard.security.PublicKey;
+import rsa.CertificateCache;
 import rsa.CryptoImplementationExtended;
+import rsa.HashChain;
 import rsa.RSACrypto;
+import rsa.SessionKey;
 import utility.Logger;
+import utility.ProtocolExecutor;
 
 import javax.smartcardio.*;
 import java.io.File;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Base64;
@@ -25,40 +31,70 @@ import java.util.Base64;
  * @author Alessandra van Veen
  */
 public class Auto extends CommunicatorExtended {
-
+    public static final String SESSION_RESUMPTIONS_PROPERTY = "hardware_security.sessionResumptions";
+    public static final String SESSION_LIFETIME_PROPERTY = "hardware_security.sessionLifetime"; //seconds
+    public static final String ODOMETER_PROPERTY = "hardware_security.odometer";
+    public static final String CHAIN_LENGTH_PROPERTY = "hardware_security.odometerChainLength";
+    public static final String FLUSH_DISTANCE_PROPERTY = "hardware_security.odometerFlushDistance"; //km
+    public static final String FLUSH_INTERVAL_PROPERTY = "hardware_security.odometerFlushInterval"; //seconds
 
     public PublicKey dbPubSK;
     public PublicKey scPubSK;
     private final AutoCrypto ac;
     private int kilometerage = 0;
     private final Logger autoLogger;
-    private int offset;
     private final CardSimulator smartcard;
     private final CardTerminals cardTerminals; //= CardTerminalSimulator.terminals(Arrays.toString(ac.getID()));
     private final CardTerminal autoTerminal; //= cardTerminals.getTerminal(Arrays.toString(ac.getID()));
+    //Session from the last full P1, resumed when the same card comes back, see resumeSession
+    private int maxResumptions = Math.min(SESSION_MAX_RESUMPTIONS, Integer.getInteger(SESSION_RESUMPTIONS_PROPERTY, 8));
+    private long sessionLifetime /* ms */ = 1000 * Long.getLong(SESSION_LIFETIME_PROPERTY, 600);
+    private SessionKey session;
+    private byte[] sessionCardID;
+    private long sessionStart;
+    private int sessionResumptions;
+    //Authenticates P5 while the card is in the car, derived from session with the nonces of the P1 run
+    private SessionKey kilometerageKey;
+    private OdometerMode odometerMode = OdometerMode.valueOf(System.getProperty(ODOMETER_PROPERTY, OdometerMode.MAC.name()));
+    private short chainLength = chainLength(Integer.getInteger(CHAIN_LENGTH_PROPERTY, 1024));
+    private final HashChain hashChain = new HashChain();
+    //Hash chain committed to the card in this connection and the last link revealed, see commitChain
+    private byte[][] chain;
+    private int chainPosition;
+    //Kilometres driven with the card in the car but not sent to it yet, see drive
+    private final OdometerJournal odometerJournal;
+    private int pendingKilometres;
+    private int flushDistance = Integer.getInteger(FLUSH_DISTANCE_PROPERTY, 100);
+    private long flushInterval /* ms */ = 1000 * Long.getLong(FLUSH_INTERVAL_PROPERTY, 60);
+    private long lastFlush;
 
     public Auto(byte[] autoID, byte[] autoCertificate, PrivateKey privateKey, PublicKey pubk, CardSimulator smartcard) {
         ac = new AutoCrypto(autoID, autoCertificate, privateKey);
         File logFile = new File(Base64.getEncoder().encodeToString(autoID) + "_auto_log.log");
         autoLogger = new Logger(logFile);
+        odometerJournal = new OdometerJournal(new File(Base64.getEncoder().encodeToString(autoID) + "_odometer.journal"));
         super.logger = autoLogger;
         this.smartcard = smartcard;
+        connectTransport(smartcard);
         cardTerminals = CardTerminalSimulator.terminals(Arrays.toString(ac.getID()));
         autoTerminal = cardTerminals.getTerminal(Arrays.toString(ac.getID()));
-        (new SimulatedCardThread()).start();
+        ProtocolExecutor.execute(new SimulatedCard());
         dbPubSK = pubk;
 
     }
 
     /**
-     * protocol 1 - mutual authentication between smartcard and car
+     * protocol 1 - mutual authentication between smartcard and car.
+     * Resumes the session of the last full run if the card still has it, see {@link #resumeSession()}.
      */
     public void authenticateSCInitiate() throws CardNotInitializedException, AuthenticationFailedException {
         select();
-        CommandAPDU start = new CommandAPDU(CARD_AUTH, INSERT_START, 0, 0, 256);
+        if (hasResumableSession() && resumeSession()) {
+            return;
+        }
         ResponseAPDU apdu;
         try {
-            apdu = applet.transmit(start);
+            apdu = transmit(CARD_AUTH, INSERT_START, 256);
         } catch (CardException e) {
             e.printStackTrace();
             throw new AuthenticationFailedException("Something has gone wrong. Please try again");
@@ -70,33 +106,27 @@ public class Auto extends CommunicatorExtended {
      * protocol 1 - mutual authentication between smartcard and car
      */
     public void authenticateSmartCard(ResponseAPDU apdu) throws CardNotInitializedException, AuthenticationFailedException {
+        try (BufferPool.Lease lease = leaseMsgBuf()) {
+            authenticateSmartCardRun(apdu, lease.buffer());
+        }
+    }
+
+    private void authenticateSmartCardRun(ResponseAPDU apdu, ByteBuffer msgBuf) throws CardNotInitializedException, AuthenticationFailedException {
         if (apdu.getSW() == CARD_NOT_INITIALIZED) {
             throw new CardNotInitializedException("Please initialize the card in the Reception Terminal first");
         }
         //Message 1
-        offset = ERESPAPDU_CDATA_OFFSET;
-        byte[] msg1 = apdu.getData();
+        in.wrap(apdu.getData(), ERESPAPDU_CDATA_OFFSET);
 
         //scPubSK + cardID
-        byte[] scPubSKEncoded = new byte[KEY_LEN];
-        memCpy(scPubSKEncoded, msg1, offset, KEY_LEN);
-        offset += KEY_LEN;
+        byte[] scPubSKEncoded = in.getKey(new byte[KEY_LEN]);
         scPubSK = bytesToPubkey(scPubSKEncoded);
-        cardID = new byte[ID_LEN];
-        memCpy(cardID, msg1, offset, ID_LEN);
-        offset += ID_LEN;
-
-        int scCertHashSignLen = getInt(msg1, offset);
-        offset += INT_LEN;
+        cardID = in.getBytes(new byte[ID_LEN]);
 
         //scCertHash signature
-        byte[] scCertHashSign = new byte[scCertHashSignLen];
-        memCpy(scCertHashSign, msg1, offset, scCertHashSignLen);
-        offset += scCertHashSignLen;
-        ByteBuffer msg1Cmps = ByteBuffer.wrap(new byte[KEY_LEN + ID_LEN]);
-        msg1Cmps.put(scPubSKEncoded).put(cardID);
-
-        if (!ac.verify(msg1Cmps, scCertHashSign, dbPubSK)) {
+        byte[] scCertHashSign = new byte[in.peekBlobLength()];
+        in.getBlob(scCertHashSign);
+        if (!ac.verifyCertificate(scPubSKEncoded, cardID, scCertHashSign, dbPubSK)) {
             errorState("Invalid certificate: hash does not match");
             autoLogger.fatal("Invalid certificate: hash does not match", "authenticateSmartCard message 1", cardID);
             sendErrorAPDU(INSERT_START, INVALID_HASH);
@@ -104,8 +134,7 @@ public class Auto extends CommunicatorExtended {
         }
 
         //Nonces
-        short cardNonce = getShort(msg1, offset);
-        offset += NONCE_LEN;
+        short cardNonce = in.getShort();
 
         //Message 2
         short autoNonce = ac.generateNonce();
@@ -119,24 +148,19 @@ public class Auto extends CommunicatorExtended {
         msgBuf.rewind();
 
         //Message 3
-        if (apdu.getSW() == AUTH_FAILED_MANIPULATION) {
+        if (apdu == null || apdu.getSW() == AUTH_FAILED_MANIPULATION) {
             autoLogger.fatal("Something has been manipulated", "authenticateSmartCard message 3", cardID);
             throw new AuthenticationFailedException("Something has been manipulated, authentication between auto and card failed");
         }
-        offset = ERESPAPDU_CDATA_OFFSET;
-
-        byte[] msg3 = apdu.getData();
-        short autoNonceResp = getShort(msg3, offset);
-        offset += 2;
-        byte[] autoNonceRespHashSignLenByte = new byte[INT_LEN];
-        memCpy(autoNonceRespHashSignLenByte, msg3, offset, INT_LEN);
-        offset += INT_LEN;
-        int autoNonceRespHashSignLen = intFromByteArray(autoNonceRespHashSignLenByte);
-        byte[] autoNonceRespHashSign = new byte[autoNonceRespHashSignLen];
-        memCpy(autoNonceRespHashSign, msg3, offset, autoNonceRespHashSignLen);
-
-        ByteBuffer msg3Cmps = ByteBuffer.wrap(new byte[NONCE_LEN]);
-        msg3Cmps.putShort(autoNonceResp);
+        in.wrap(apdu.getData(), ERESPAPDU_CDATA_OFFSET);
+        short autoNonceResp = in.getShort();
+        byte[] autoNonceRespHashSign = new byte[in.peekBlobLength()];
+        in.getBlob(autoNonceRespHashSign);
+        byte[] encryptedSecret = new byte[in.peekBlobLength()];
+        in.getBlob(encryptedSecret);
+
+        ByteBuffer msg3Cmps = ByteBuffer.wrap(new byte[NONCE_LEN + encryptedSecret.length]);
+        msg3Cmps.putShort(autoNonceResp).put(encryptedSecret);
         if (!ac.verify(msg3Cmps, autoNonceRespHashSign, scPubSK)) {
             errorState("Wrong nonce in P1 msg3 returned");
             autoLogger.fatal("Wrong nonce returned", "authenticateSmartCard message 3", cardID);
@@ -148,14 +172,19 @@ public class Auto extends CommunicatorExtended {
             msgBuf.put(SUCCESS_BYTE);
             msgBuf.putShort((short) (cardNonce + 1));
             byte[] succByte = {SUCCESS_BYTE};
-            msgBuf.putInt(ac.sign(concatBytes(succByte, shortToByteArray((short) (cardNonce + 1)))).length).put(ac.sign(concatBytes(succByte, shortToByteArray((short) (cardNonce + 1)))));
-            sendAPDU(CARD_CONT, INSERT_MS, msgBuf);
-            msgBuf.clear();
-            msgBuf.rewind();
-            if (apdu.getSW() == AUTH_FAILED || apdu.getSW() == AUTH_FAILED_MANIPULATION) {
+            byte[] succHashSign = ac.sign(concatBytes(succByte, shortToByteArray((short) (cardNonce + 1))));
+            msgBuf.putInt(succHashSign.length).put(succHashSign);
+            apdu = sendAPDU(CARD_CONT, INSERT_MS, msgBuf);
+            if (apdu == null || apdu.getSW() == AUTH_FAILED || apdu.getSW() == AUTH_FAILED_MANIPULATION) {
+                cardAuthenticated = false;
                 autoLogger.fatal("Something went wrong", "authenticateSmartCard", cardID);
                 throw new AuthenticationFailedException("Something has gone wrong, authentication between auto and card failed");
             } else {
+                //The card has taken the secret into use with the success message
+                startSession(ac.decrypt(encryptedSecret));
+                ByteBuffer nonces = ByteBuffer.allocate(2 * NONCE_LEN).putShort(cardNonce).putShort(autoNonce);
+                startKilometerage(nonces.array());
+                restoreKilometerage();
                 autoLogger.info("Card successfully authenticated", "authenticateSmartCard", cardID);
             }
 
@@ -163,57 +192,354 @@ public class Auto extends CommunicatorExtended {
     }
 
     /**
-     * protocol 5 - adding kilometerage to smartcard
+     * Protocol 1, resumed - proves to the card, and has it prove, that both still hold the secret of the last
+     * full P1, with one HMAC each instead of two RSA signatures and verifications.
+     *
+     * @return false if the session could not be resumed and a full P1 has to run
+     */
+    private boolean resumeSession() {
+        //Message 1
+        byte[] autoChallenge = ac.generateRandom(new byte[CHALLENGE_LEN]);
+        ResponseAPDU apdu = sendAPDU(CARD_AUTH, INSERT_RESUME, autoChallenge, (short) 0, CHALLENGE_LEN);
+        if (apdu == null || apdu.getSW() != 0x9000 || apdu.getNr() < ID_LEN + CHALLENGE_LEN + SHORT_LEN + MAC_LEN) {
+            //The card has no session (any more) or is busy with something else
+            endSession();
+            return false;
+        }
+
+        //Message 2
+        in.wrap(apdu.getData(), ERESPAPDU_CDATA_OFFSET);
+        byte[] resumedCardID = in.getBytes(new byte[ID_LEN]);
+        byte[] cardChallenge = in.getBytes(new byte[CHALLENGE_LEN]);
+        short counter = in.getShort();
+        byte[] cardProof = in.getBytes(new byte[MAC_LEN]);
+        //The card counts resumptions too, it must not fall behind what was already accepted
+        if (!Arrays.equals(resumedCardID, sessionCardID) || counter < sessionResumptions || counter >= maxResumptions
+                || !session.verifyResumeProof(SessionKey.CARD_PROOF, autoChallenge, cardChallenge, resumedCardID,
+                counter, cardProof, (short) 0)) {
+            autoLogger.warning("Card could not resume its session, running full authentication", "resumeSession", resumedCardID);
+            sendErrorAPDU(INSERT_RESUME, INVALID_HASH);
+            endSession();
+            return false;
+        }
+        byte[] autoProof = new byte[MAC_LEN];
+        session.resumeProof(SessionKey.AUTO_PROOF, autoChallenge, cardChallenge, resumedCardID, counter, autoProof, (short) 0);
+        apdu = sendAPDU(CARD_CONT, INSERT_RESUME_M2, autoProof, (short) 0, MAC_LEN);
+        if (apdu == null || apdu.getSW() != 0x9000) {
+            autoLogger.fatal("Card rejected the session proof", "resumeSession", resumedCardID);
+            endSession();
+            return false;
+        }
+        cardID = resumedCardID;
+        sessionResumptions = counter + 1;
+        startKilometerage(concatBytes(autoChallenge, cardChallenge));
+        restoreKilometerage();
+        cardAuthenticated = true;
+        autoLogger.info("Card successfully authenticated by resuming its session", "resumeSession", cardID);
+        return true;
+    }
+
+    /**
+     * @return whether the next {@link #authenticateSCInitiate()} tries to resume the last session first
+     */
+    public boolean hasResumableSession() {
+        return session != null && sessionResumptions < maxResumptions
+                && System.currentTimeMillis() - sessionStart < sessionLifetime;
+    }
+
+    /**
+     * After maxResumptions resumptions or lifetime ms, whichever comes first, P1 runs in full again.
+     * The card never allows more than {@link #SESSION_MAX_RESUMPTIONS} resumptions.
+     */
+    public void setSessionLimits(int maxResumptions, long lifetime) {
+        this.maxResumptions = Math.min(SESSION_MAX_RESUMPTIONS, maxResumptions);
+        this.sessionLifetime = lifetime;
+    }
+
+    private void startSession(byte[] secret) {
+        endSession();
+        session = new SessionKey(secret);
+        Arrays.fill(secret, (byte) 0);
+        sessionCardID = cardID.clone();
+        sessionStart = System.currentTimeMillis();
+        sessionResumptions = 0;
+    }
+
+    private void startKilometerage(byte[] context) {
+        if (kilometerageKey != null) {
+            kilometerageKey.clear();
+        }
+        kilometerageKey = session.deriveKey(SessionKey.KILOMETERAGE_KEY, context);
+    }
+
+    /**
+     * Picks up what the journal knows about the card, e.g. kilometres driven before the car restarted
+     */
+    private void restoreKilometerage() {
+        kilometerage = Math.max(kilometerage, odometerJournal.confirmedTotal(cardID));
+        pendingKilometres = odometerJournal.pending(cardID);
+        lastFlush = System.currentTimeMillis();
+    }
+
+    private void endSession() {
+        if (kilometerageKey != null) {
+            kilometerageKey.clear();
+            kilometerageKey = null;
+        }
+        if (session != null) {
+            session.clear();
+            session = null;
+        }
+        sessionCardID = null;
+    }
+
+    /**
+     * protocol 5 - adds one kilometre and sends it, with anything still pending, to the smartcard at once
      */
     public int kilometerageUpdate() throws ProcessFailedException {
-        if (!cardAuthenticated) {
+        addKilometres(1);
+        return flushKilometerage();
+    }
+
+    /**
+     * Adds km driven with the authenticated card without talking to it. The kilometres are journaled right away
+     * and sent in one protocol 5 run once flushDistance of them are pending or flushInterval has passed since
+     * the last run, see {@link #setFlushLimits(int, long)}.
+     *
+     * @return kilometerage including the kilometres not sent yet
+     */
+    public int drive(int km) throws ProcessFailedException {
+        addKilometres(km);
+        if (pendingKilometres >= flushDistance || System.currentTimeMillis() - lastFlush >= flushInterval) {
+            return flushKilometerage();
+        }
+        return kilometerage + pendingKilometres;
+    }
+
+    /**
+     * protocol 5 - sends all pending kilometres to the smartcard
+     *
+     * @return kilometerage the card confirmed
+     */
+    public int flushKilometerage() throws ProcessFailedException {
+        try (BufferPool.Lease lease = leaseMsgBuf()) {
+            return flushKilometerageRun(lease.buffer());
+        }
+    }
+
+    private void addKilometres(int km) throws ProcessFailedException {
+        if (!cardAuthenticated || kilometerageKey == null) {
+            errorState("Card not authenticated in drive");
+            autoLogger.warning("Aborting: Card not authenticated", "drive", cardID);
+            throw new ProcessFailedException("Aborting: Card not authenticated");
+        }
+        pendingKilometres += km;
+        try {
+            odometerJournal.driven(cardID, km);
+        } catch (UncheckedIOException e) {
+            //Still sent to the card with the next flush, but lost if the car restarts before that
+            errorState("Odometer journal could not be written");
+            autoLogger.fatal("Kilometres not journaled: " + e.getMessage(), "drive", cardID);
+            throw new ProcessFailedException("Driven kilometres could not be recorded");
+        }
+    }
+
+    private int flushKilometerageRun(ByteBuffer msgBuf) throws ProcessFailedException {
+        if (!cardAuthenticated || kilometerageKey == null) {
             errorState("Card not authenticated in kilometerageUpdate");
             autoLogger.warning("Aborting: Card not authenticated", "kilometerageUpdate", cardID);
             sendErrorAPDU(KMM_UPDATE, CARD_NOT_INITIALIZED);
             throw new ProcessFailedException("Aborting: Card not authenticated");
         }
+        lastFlush = System.currentTimeMillis();
+        while (pendingKilometres > 0) {
+            int km = odometerMode == OdometerMode.HASH_CHAIN ? kilometerageChainRun(msgBuf, pendingKilometres)
+                    : kilometerageMacRun(msgBuf, pendingKilometres);
+            pendingKilometres -= km;
+            try {
+                odometerJournal.flushed(cardID, km, kilometerage);
+            } catch (UncheckedIOException e) {
+                //The card has the kilometres, after a restart the journal would still count them as pending
+                errorState("Odometer journal could not be written");
+                autoLogger.fatal("Odometer journal failed: " + e.getMessage(), "kilometerageUpdate", cardID);
+                throw new ProcessFailedException("Confirmed kilometres could not be recorded");
+            }
+            msgBuf.clear();
+        }
+        return kilometerage;
+    }
+
+    /**
+     * protocol 5 - sends the total after km more kilometres, the card accepts any total above its own.
+     * If the run fails nothing advances here; the next flush sends the same total, which the card confirms
+     * again if it took it the first time.
+     *
+     * @return km
+     */
+    private int kilometerageMacRun(ByteBuffer msgBuf, int km) throws ProcessFailedException {
         //Message 1
-        kilometerage += 1;
-        msgBuf.putInt(kilometerage).putInt(ac.sign(intToByteArray(kilometerage)).length).put(ac.sign(intToByteArray(kilometerage)));
+        int newKilometerage = kilometerage + km;
+        byte[] kmmMac = new byte[MAC_LEN];
+        kilometerageKey.kilometerageMac(SessionKey.KILOMETERAGE_UPDATE, newKilometerage, kmmMac, (short) 0);
+        msgBuf.putInt(newKilometerage).put(kmmMac);
         ResponseAPDU apdu = sendAPDU(CARD_PROC, KMM_UPDATE, msgBuf);
-        msgBuf.clear();
-        msgBuf.rewind();
 
         //Message 2
-        if (apdu.getSW() == PROC_FAILED) {
+        if (apdu == null || apdu.getSW() == PROC_FAILED) {
             autoLogger.fatal("Something went wrong", "kilometerageUpdate", cardID);
             throw new ProcessFailedException("Something has gone wrong, updating the kilometerage has failed");
         }
 
-        offset = ERESPAPDU_CDATA_OFFSET;
-        byte[] confirmation = apdu.getData();
+        in.wrap(apdu.getData(), ERESPAPDU_CDATA_OFFSET);
 
-        byte confBYTE = confirmation[offset];
-        offset += BYTE_LEN;
-        int curKmmCard = getInt(confirmation, offset);
-        offset += INT_LEN;
-        if (kilometerage != curKmmCard) {
+        byte confBYTE = in.getByte();
+        int curKmmCard = in.getInt();
+        if (newKilometerage != curKmmCard) {
             errorState("Kilometerage does not match");
             autoLogger.warning("Kilometerage does not match, possible tampering. Please check.", "kilometerageUpdate", cardID);
             sendErrorAPDU(KMM_UPDATE, POSSIBLE_MANIPULATION);
             throw new ProcessFailedException("Kilometerage does not match. We detected possible tampering");
         }
-        int confHashSignLen = getInt(confirmation, offset);
-        offset += INT_LEN;
-        byte[] confHashSigned = new byte[confHashSignLen];
-        memCpy(confHashSigned, confirmation, offset, confHashSignLen);
-
-        ByteBuffer msgCmps = ByteBuffer.wrap(new byte[ID_LEN]);
-        msgCmps.put(confBYTE).putInt(curKmmCard);
-        if (!ac.verify(msgCmps, confHashSigned, scPubSK)) {
-            errorState("Invalid Hash in kilometerageUpdate");
+        byte[] confMac = in.getBytes(new byte[MAC_LEN]);
+        if (!kilometerageKey.verifyKilometerageMac(SessionKey.KILOMETERAGE_CONFIRMATION, curKmmCard, confMac, (short) 0)) {
+            errorState("Invalid MAC in kilometerageUpdate");
             autoLogger.fatal("Invalid Hash", "kilometerageUpdate", cardID);
             sendErrorAPDU(KMM_UPDATE, INVALID_HASH);
             throw new ProcessFailedException("Something has gone wrong. Please try again");
         } else {
             autoLogger.info("Kilometerage successfully updated", "kilometerageUpdate", cardID);
         }
-        return kilometerage;
+        kilometerage = newKilometerage;
+        return km;
+    }
+
+    /**
+     * protocol 5, hash chain variant - reveals the link km kilometres on, or the last link of the committed
+     * chain if that comes first, committing a new chain if there is none in this connection or it is used up
+     *
+     * @return kilometres sent, at most km
+     */
+    private int kilometerageChainRun(ByteBuffer msgBuf, int km) throws ProcessFailedException {
+        if (chain == null || chainPosition == chain.length - 1) {
+            commitChain(msgBuf);
+            msgBuf.clear();
+        }
+        //Message 1
+        short steps = (short) Math.min(km, chain.length - 1 - chainPosition);
+        msgBuf.putShort(steps).put(chain[chainPosition + steps]);
+        ResponseAPDU apdu = sendAPDU(CARD_PROC, KMM_CHAIN_UPDATE, msgBuf);
+
+        //Message 2
+        if (apdu == null || apdu.getSW() == PROC_FAILED) {
+            autoLogger.fatal("Something went wrong", "kilometerageUpdate", cardID);
+            throw new ProcessFailedException("Something has gone wrong, updating the kilometerage has failed");
+        }
+        in.wrap(apdu.getData(), ERESPAPDU_CDATA_OFFSET);
+        in.getByte();
+        int curKmmCard = in.getInt();
+        //Not authenticated, the card signs its total at the car return
+        if (kilometerage + steps != curKmmCard) {
+            errorState("Kilometerage does not match");
+            autoLogger.warning("Kilometerage does not match, possible tampering. Please check.", "kilometerageUpdate", cardID);
+            sendErrorAPDU(KMM_CHAIN_UPDATE, POSSIBLE_MANIPULATION);
+            throw new ProcessFailedException("Kilometerage does not match. We detected possible tampering");
+        }
+        kilometerage = curKmmCard;
+        chainPosition += steps;
+        autoLogger.info("Kilometerage successfully updated", "kilometerageUpdate", cardID);
+        return steps;
+    }
+
+    /**
+     * protocol 5, hash chain variant - signs the root of a fresh chain for this card, starting at the total the
+     * card reports. The only RSA operation of a trip of up to chainLength kilometres.
+     */
+    private void commitChain(ByteBuffer msgBuf) throws ProcessFailedException {
+        //The card starts over at every car return, so the car's own count is not where the card is
+        kilometerage = cardKilometerage();
+        byte[][] links = hashChain.generate(ac.generateRandom(new byte[HASH_LEN]), chainLength);
+        ByteBuffer rootCmps = ByteBuffer.allocate(SHORT_LEN + HASH_LEN + INT_LEN + ID_LEN);
+        rootCmps.putShort(chainLength).put(links[0]).putInt(kilometerage).put(cardID);
+        byte[] rootHashSign = ac.sign(rootCmps.array());
+        msgBuf.putShort(chainLength).put(links[0]).putInt(kilometerage).putInt(rootHashSign.length).put(rootHashSign);
+        ResponseAPDU apdu = sendAPDU(CARD_PROC, KMM_COMMIT, msgBuf);
+        if (apdu == null || apdu.getSW() != 0x9000) {
+            autoLogger.fatal("Card rejected the odometer commitment", "kilometerageUpdate", cardID);
+            throw new ProcessFailedException("Something has gone wrong, updating the kilometerage has failed");
+        }
+        chain = links;
+        chainPosition = 0;
+    }
+
+    /**
+     * protocol 5, hash chain variant - asks the card for its total, MACed with the kilometerage key
+     */
+    private int cardKilometerage() throws ProcessFailedException {
+        ResponseAPDU apdu;
+        try {
+            apdu = transmit(CARD_PROC, KMM_TOTAL, 256);
+        } catch (CardException e) {
+            e.printStackTrace();
+            apdu = null;
+        }
+        if (apdu == null || apdu.getSW() != 0x9000 || apdu.getNr() < BYTE_LEN + INT_LEN + MAC_LEN) {
+            autoLogger.fatal("Card did not report its kilometerage", "kilometerageUpdate", cardID);
+            throw new ProcessFailedException("Something has gone wrong, updating the kilometerage has failed");
+        }
+        in.wrap(apdu.getData(), ERESPAPDU_CDATA_OFFSET);
+        in.getByte();
+        int cardKmm = in.getInt();
+        byte[] mac = in.getBytes(new byte[MAC_LEN]);
+        if (!kilometerageKey.verifyKilometerageMac(SessionKey.KILOMETERAGE_CONFIRMATION, cardKmm, mac, (short) 0)) {
+            errorState("Invalid MAC on the kilometerage of the card");
+            autoLogger.fatal("Invalid Hash", "kilometerageUpdate", cardID);
+            sendErrorAPDU(KMM_TOTAL, INVALID_HASH);
+            throw new ProcessFailedException("Something has gone wrong. Please try again");
+        }
+        return cardKmm;
+    }
+
+    public OdometerMode getOdometerMode() {
+        return odometerMode;
+    }
+
+    /**
+     * Takes effect with the next kilometerage update. Starts at -Dhardware_security.odometer (default MAC).
+     */
+    public void setOdometerMode(OdometerMode odometerMode) {
+        this.odometerMode = odometerMode;
+    }
+
+    /**
+     * Kilometres one committed hash chain covers, -Dhardware_security.odometerChainLength (default 1024)
+     *
+     * @throws IllegalArgumentException if chainLength is not between 1 and {@link Short#MAX_VALUE}
+     */
+    public void setChainLength(int chainLength) {
+        this.chainLength = chainLength(chainLength);
+    }
+
+    private static short chainLength(int chainLength) {
+        //The card counts the links left in a short and rejects any commitment that covers none
+        if (chainLength < 1 || chainLength > Short.MAX_VALUE) {
+            throw new IllegalArgumentException("Odometer chain length must be between 1 and " + Short.MAX_VALUE
+                    + ", was " + chainLength);
+        }
+        return (short) chainLength;
+    }
+
+    /**
+     * {@link #drive(int)} sends the pending kilometres to the card once distance km are pending or interval ms
+     * have passed since they were last sent. Start at -Dhardware_security.odometerFlushDistance (default 100)
+     * and -Dhardware_security.odometerFlushInterval in seconds (default 60).
+     */
+    public void setFlushLimits(int distance, long interval) {
+        this.flushDistance = distance;
+        this.flushInterval = interval;
+    }
+
+    public int getPendingKilometres() {
+        return pendingKilometres;
     }
 
     private void select() {
@@ -246,10 +572,30 @@ public class Auto extends CommunicatorExtended {
         } catch (CardException e) {
             e.printStackTrace();
         }
+        if (pendingKilometres > 0 && cardAuthenticated && kilometerageKey != null) {
+            try {
+                flushKilometerage();
+            } catch (ProcessFailedException e) {
+                autoLogger.warning("Pending kilometres stay in the journal: " + e.getMessage(), "Deselect", cardID);
+            }
+        }
+        pendingKilometres = 0;
         smartcard.assignToTerminal(null);
         applet = null;
+        //The card forgets the key and the chain when it leaves, the next P1 (full or resumed) starts over
+        if (kilometerageKey != null) {
+            kilometerageKey.clear();
+            kilometerageKey = null;
+        }
+        chain = null;
     }
 
+    /**
+     * How protocol 5 authenticates kilometres: an HMAC with the session key per update, or links of a hash
+     * chain whose root is signed once per trip
+     */
+    public enum OdometerMode {MAC, HASH_CHAIN}
+
     private static class AutoCrypto extends CryptoImplementationExtended {
 
         public AutoCrypto(byte[] autoID, byte[] autoCertificate, PrivateKey privateKey) {
@@ -257,6 +603,7 @@ public class Auto extends CommunicatorExtended {
             super.certificate = autoCertificate;
             super.rc = new AutoWallet();
             ((KeyWallet) super.rc).storePrivateKey(privateKey);
+            super.certificates = new CertificateCache(CertificateCache.HOST_CAPACITY);
         }
 
         private static class AutoWallet extends RSACrypto implements KeyWallet {
@@ -279,7 +626,7 @@ public class Auto extends CommunicatorExtended {
         }
     }
 
-    class SimulatedCardThread extends Thread {
+    class SimulatedCard implements Runnable {
         public void run() {
             CardTerminals cardTerminals = CardTerminalSimulator.terminals(
                     Arrays.toString(ac.getID()));
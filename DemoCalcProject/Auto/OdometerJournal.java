@@ -0,0 +1,191 @@
+package Auto;
+
+import Interfaces.ProtocolComponentLengths;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Append-only record of the kilometres a car has driven per card and of what the card confirmed, so distance
+ * not yet sent to the card survives a restart of the car. A record is a type byte, the card ID and two ints;
+ * a record cut short by a crash is ignored when the journal is read back.
+ * Once the file grows past {@link #COMPACT_SIZE} it is rewritten with one record per card.
+ *
+ * @author Egidius Mysliwietz
+ */
+public class OdometerJournal implements ProtocolComponentLengths {
+    static final int COMPACT_SIZE = 64 * 1024;
+    private static final byte DRIVEN = 1;    //km driven, not yet on the card
+    private static final byte FLUSHED = 2;   //km the card confirmed, and its total afterwards
+    private static final int RECORD_LEN = BYTE_LEN + ID_LEN + 2 * INT_LEN;
+
+    private final File file;
+    private final Map<String, Integer> pending = new HashMap<>();
+    private final Map<String, Integer> totals = new HashMap<>();
+    private DataOutputStream out;
+    private long size;
+
+    public OdometerJournal(File file) {
+        this.file = file;
+        read();
+        open();
+    }
+
+    /**
+     * Records km driven with cardID in the car that have not been sent to the card yet.
+     *
+     * @throws UncheckedIOException if the record could not be written, the kilometres would not survive a restart
+     */
+    public synchronized void driven(byte[] cardID, int km) {
+        append(DRIVEN, cardID, km, 0);
+        pending.merge(key(cardID), km, Integer::sum);
+    }
+
+    /**
+     * Records that the card confirmed km of the pending kilometres, reaching total.
+     *
+     * @throws UncheckedIOException if the record could not be written, or the journal could not be compacted
+     *                              afterwards; in the latter case the record is in the journal
+     */
+    public synchronized void flushed(byte[] cardID, int km, int total) {
+        append(FLUSHED, cardID, km, total);
+        pending.merge(key(cardID), -km, Integer::sum);
+        totals.put(key(cardID), total);
+        if (size > COMPACT_SIZE) {
+            compact();
+        }
+    }
+
+    /**
+     * @return kilometres driven with cardID that the card has not confirmed yet
+     */
+    public synchronized int pending(byte[] cardID) {
+        return pending.getOrDefault(key(cardID), 0);
+    }
+
+    /**
+     * @return the last total the card confirmed, or -1 if it never did
+     */
+    public synchronized int confirmedTotal(byte[] cardID) {
+        return totals.getOrDefault(key(cardID), -1);
+    }
+
+    public synchronized long size() {
+        return size;
+    }
+
+    public synchronized void close() {
+        if (out == null) {
+            return;
+        }
+        try {
+            out.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static String key(byte[] cardID) {
+        return Base64.getEncoder().encodeToString(cardID);
+    }
+
+    private void append(byte type, byte[] cardID, int km, int total) {
+        if (out == null) {
+            throw new UncheckedIOException(new IOException("Odometer journal " + file + " is not open"));
+        }
+        try {
+            out.writeByte(type);
+            out.write(cardID, 0, ID_LEN);
+            out.writeInt(km);
+            out.writeInt(total);
+            //Handed to the OS on every record, so a crash of the car process loses nothing
+            out.flush();
+            size += RECORD_LEN;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void read() {
+        if (!file.exists()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            byte[] record = new byte[RECORD_LEN];
+            byte[] cardID = new byte[ID_LEN];
+            while (true) {
+                try {
+                    in.readFully(record);
+                } catch (EOFException e) {
+                    break;
+                }
+                ByteBuffer r = ByteBuffer.wrap(record);
+                byte type = r.get();
+                r.get(cardID);
+                int km = r.getInt();
+                int total = r.getInt();
+                if (type == DRIVEN) {
+                    pending.merge(key(cardID), km, Integer::sum);
+                } else if (type == FLUSHED) {
+                    pending.merge(key(cardID), -km, Integer::sum);
+                    totals.put(key(cardID), total);
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void open() {
+        try {
+            //Drops a partial record at the end, appending after it would misalign everything that follows
+            size = file.length() - file.length() % RECORD_LEN;
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(size);
+            }
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+        } catch (IOException e) {
+            //Reported by the next append
+            e.printStackTrace();
+            out = null;
+        }
+    }
+
+    private void compact() {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream snapshot = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            for (Map.Entry<String, Integer> card : totals.entrySet()) {
+                snapshot.writeByte(FLUSHED);
+                snapshot.write(Base64.getDecoder().decode(card.getKey()));
+                snapshot.writeInt(0);
+                snapshot.writeInt(card.getValue());
+            }
+            for (Map.Entry<String, Integer> card : pending.entrySet()) {
+                if (card.getValue() != 0) {
+                    snapshot.writeByte(DRIVEN);
+                    snapshot.write(Base64.getDecoder().decode(card.getKey()));
+                    snapshot.writeInt(card.getValue());
+                    snapshot.writeInt(0);
+                }
+            }
+        } catch (IOException e) {
+            //The journal itself is untouched and stays in use
+            tmp.delete();
+            throw new UncheckedIOException(e);
+        }
+        close();
+        try {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            tmp.delete();
+            throw new UncheckedIOException(e);
+        } finally {
+            open();
+        }
+    }
+}
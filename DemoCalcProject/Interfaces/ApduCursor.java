@@ -0,0 +1,180 @@
+package Interfaces;
+
+import javacard.framework.Util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reusable reader/writer over an APDU buffer, replacing the hand-kept offset fields of the protocols.
+ * Works on a byte[] (the applet's APDU buffer, the data of a ResponseAPDU) or a ByteBuffer (a leased message buffer);
+ * every get and put reads or writes in place and advances the cursor, nothing is allocated.
+ * <p>
+ * A blob is an int length followed by that many bytes, the format used for all signatures and certificates.
+ * A key is the {@link ProtocolComponentLengths#KEY_LEN} byte encoding of {@link Communicator#pubkToBytes}.
+ *
+ * @author Egidius Mysliwietz
+ */
+public final class ApduCursor implements ProtocolComponentLengths {
+    private byte[] array;
+    private ByteBuffer buffer;
+    private int position;
+
+    public ApduCursor wrap(byte[] b, int offset) {
+        array = b;
+        buffer = null;
+        position = offset;
+        return this;
+    }
+
+    /**
+     * Reads and writes at the buffer's position, which moves along with the cursor.
+     */
+    public ApduCursor wrap(ByteBuffer b) {
+        array = null;
+        buffer = b;
+        return this;
+    }
+
+    public int position() {
+        return buffer == null ? position : buffer.position();
+    }
+
+    public ApduCursor position(int p) {
+        if (buffer == null) {
+            position = p;
+        } else {
+            buffer.position(p);
+        }
+        return this;
+    }
+
+    public ApduCursor skip(int n) {
+        return position(position() + n);
+    }
+
+    public byte getByte() {
+        if (buffer != null) {
+            return buffer.get();
+        }
+        return array[position++];
+    }
+
+    public short getShort() {
+        if (buffer != null) {
+            return buffer.getShort();
+        }
+        short s = Util.getShort(array, (short) position);
+        position += SHORT_LEN;
+        return s;
+    }
+
+    public int getInt() {
+        if (buffer != null) {
+            return buffer.getInt();
+        }
+        int i = ((array[position] & 0xFF) << (3 * BYTE_BIT_LEN)) |
+                ((array[position + 1] & 0xFF) << (2 * BYTE_BIT_LEN)) |
+                ((array[position + 2] & 0xFF) << BYTE_BIT_LEN) |
+                ((array[position + 3] & 0xFF));
+        position += INT_LEN;
+        return i;
+    }
+
+    /**
+     * Fills dest completely.
+     */
+    public byte[] getBytes(byte[] dest) {
+        return getBytes(dest, 0, dest.length);
+    }
+
+    public byte[] getBytes(byte[] dest, int offset, int length) {
+        if (buffer != null) {
+            buffer.get(dest, offset, length);
+        } else {
+            Util.arrayCopyNonAtomic(array, (short) position, dest, (short) offset, (short) length);
+            position += length;
+        }
+        return dest;
+    }
+
+    /**
+     * @return length of the blob at the cursor, without moving it
+     */
+    public int peekBlobLength() {
+        int p = position();
+        int length = getInt();
+        position(p);
+        return length;
+    }
+
+    /**
+     * Copies the blob at the cursor into the start of dest.
+     *
+     * @return length of the blob
+     */
+    public int getBlob(byte[] dest) {
+        int length = getInt();
+        getBytes(dest, 0, length);
+        return length;
+    }
+
+    /**
+     * Copies the encoded key at the cursor into dest, ready for {@link Communicator#bytesToPubkey}.
+     */
+    public byte[] getKey(byte[] dest) {
+        return getBytes(dest, 0, KEY_LEN);
+    }
+
+    public ApduCursor putByte(byte b) {
+        if (buffer != null) {
+            buffer.put(b);
+        } else {
+            array[position++] = b;
+        }
+        return this;
+    }
+
+    public ApduCursor putShort(short s) {
+        if (buffer != null) {
+            buffer.putShort(s);
+        } else {
+            Util.setShort(array, (short) position, s);
+            position += SHORT_LEN;
+        }
+        return this;
+    }
+
+    public ApduCursor putInt(int i) {
+        if (buffer != null) {
+            buffer.putInt(i);
+        } else {
+            array[position] = (byte) (i >>> (3 * BYTE_BIT_LEN));
+            array[position + 1] = (byte) (i >>> (2 * BYTE_BIT_LEN));
+            array[position + 2] = (byte) (i >>> BYTE_BIT_LEN);
+            array[position + 3] = (byte) i;
+            position += INT_LEN;
+        }
+        return this;
+    }
+
+    public ApduCursor putBytes(byte[] b) {
+        return putBytes(b, 0, b.length);
+    }
+
+    public ApduCursor putBytes(byte[] b, int offset, int length) {
+        if (buffer != null) {
+            buffer.put(b, offset, length);
+        } else {
+            Util.arrayCopyNonAtomic(b, (short) offset, array, (short) position, (short) length);
+            position += length;
+        }
+        return this;
+    }
+
+    /**
+     * Writes the length of b followed by b.
+     */
+    public ApduCursor putBlob(byte[] b) {
+        return putInt(b.length).putBytes(b);
+    }
+}
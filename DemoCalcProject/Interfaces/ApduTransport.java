@@ -0,0 +1,45 @@
+package Interfaces;
+
+import javax.smartcardio.CardException;
+import javax.smartcardio.ResponseAPDU;
+
+/**
+ * How {@link CommunicatorExtended#sendAPDU} gets a command to the card. {@link SmartcardIOTransport} goes through
+ * javax.smartcardio like a real reader would, {@link SimulatorTransport} hands the bytes to the jcardsim simulator
+ * directly. Select the transport with the system property {@value #TRANSPORT_PROPERTY}, values
+ * {@value #SMARTCARDIO} (default) and {@value #SIMULATOR}.
+ *
+ * @author Egidius Mysliwietz
+ */
+public interface ApduTransport {
+    String TRANSPORT_PROPERTY = "hardware_security.apduTransport";
+    String SMARTCARDIO = "smartcardio";
+    String SIMULATOR = "simulator";
+
+    /**
+     * Sends a command with length bytes of data from offset; data may be null if length is 0.
+     *
+     * @param ne maximum number of response data bytes expected, 0 for none
+     */
+    ResponseAPDU transmit(byte cla, byte ins, byte[] data, int offset, int length, int ne) throws CardException;
+
+    /**
+     * @return bytes copied and time spent by all transports of this kind
+     */
+    TransportStats getStats();
+
+    /**
+     * Length of the ISO 7816-4 encoding of a command with P1 = P2 = 0, as built by CommandAPDU.
+     */
+    static int commandLength(int nc, int ne) {
+        boolean extended = nc > 255 || ne > 256;
+        int length = 4 + nc;
+        if (nc > 0) {
+            length += extended ? 3 : 1;
+        }
+        if (ne > 0) {
+            length += extended ? (nc > 0 ? 2 : 3) : 1;
+        }
+        return length;
+    }
+}
@@ -0,0 +1,131 @@
+package Interfaces;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of message buffers in power-of-two size classes, so protocol runs borrow a buffer instead of sharing one
+ * field or allocating a new one per message. A {@link Lease} belongs to exactly one protocol run; closing it zeroes
+ * the buffer (it held signatures and keys) and puts it back. Requests larger than the biggest class are allocated
+ * and dropped again. Buffers can be direct (off-heap); {@link CommunicatorExtended#sendAPDU} copies those into the
+ * APDU, heap buffers are sent without an extra copy.
+ *
+ * @author Egidius Mysliwietz
+ */
+public class BufferPool {
+    public static final int MIN_CLASS = 256;
+    public static final int MAX_CLASS = 4096;
+    public static final int DEFAULT_PER_CLASS = 16;
+
+    private final ArrayBlockingQueue<ByteBuffer>[] classes;
+    private final boolean direct;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public BufferPool(int perClass, boolean direct) {
+        this.direct = direct;
+        classes = new ArrayBlockingQueue[sizeClass(MAX_CLASS) + 1];
+        for (int i = 0; i < classes.length; i++) {
+            classes[i] = new ArrayBlockingQueue<>(Math.max(1, perClass));
+        }
+    }
+
+    /**
+     * @return a cleared buffer of at least size bytes, capacity rounded up to its size class
+     */
+    public Lease lease(int size) {
+        int c = sizeClass(size);
+        ByteBuffer buf = c < classes.length ? classes[c].poll() : null;
+        if (buf == null) {
+            misses.incrementAndGet();
+            int capacity = c < classes.length ? MIN_CLASS << c : size;
+            buf = direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+        } else {
+            hits.incrementAndGet();
+        }
+        return new Lease(buf, c);
+    }
+
+    public boolean isDirect() {
+        return direct;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return number of idle buffers of the size class of size
+     */
+    public int available(int size) {
+        int c = sizeClass(size);
+        return c < classes.length ? classes[c].size() : 0;
+    }
+
+    private void giveBack(ByteBuffer buf, int c) {
+        if (c >= classes.length) {
+            return;
+        }
+        buf.clear();
+        if (buf.hasArray()) {
+            Arrays.fill(buf.array(), buf.arrayOffset(), buf.arrayOffset() + buf.capacity(), (byte) 0);
+        } else {
+            while (buf.remaining() >= Long.BYTES) {
+                buf.putLong(0L);
+            }
+            while (buf.hasRemaining()) {
+                buf.put((byte) 0);
+            }
+            buf.clear();
+        }
+        //If the size class is already full the buffer is left to the garbage collector
+        classes[c].offer(buf);
+    }
+
+    private static int sizeClass(int size) {
+        int c = 0;
+        while ((MIN_CLASS << c) < size && (MIN_CLASS << c) <= MAX_CLASS) {
+            c++;
+        }
+        return c;
+    }
+
+    /**
+     * A borrowed buffer, usable until closed. Not thread-safe, hand the lease over rather than the buffer.
+     */
+    public final class Lease implements AutoCloseable {
+        private ByteBuffer buffer;
+        private final int sizeClass;
+
+        private Lease(ByteBuffer buffer, int sizeClass) {
+            this.buffer = buffer;
+            this.sizeClass = sizeClass;
+        }
+
+        public ByteBuffer buffer() {
+            if (buffer == null) {
+                throw new IllegalStateException("Buffer lease already returned");
+            }
+            return buffer;
+        }
+
+        /**
+         * Zeroes the buffer and returns it to the pool; closing twice does nothing.
+         */
+        @Override
+        public void close() {
+            if (buffer != null) {
+                ByteBuffer b = buffer;
+                buffer = null;
+                giveBack(b, sizeClass);
+            }
+        }
+    }
+}
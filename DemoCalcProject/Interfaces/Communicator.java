@@ -3,6 +3,7 @@ package Interfaces;
 import javacard.framework.APDU;
 import javacard.framework.ISO7816;
 import javacard.framework.JCSystem;
+import javacard.framework.Util;
 import javacard.security.*;
 
 /**
@@ -25,12 +26,17 @@ public interface Communicator extends ProtocolComponentLengths {
     byte INSERT_START         = (byte) 0x20;
     byte INSERT_M2            = (byte) 0x21;
     byte INSERT_MS            = (byte) 0x22;
+    byte INSERT_RESUME        = (byte) 0x23;
+    byte INSERT_RESUME_M2     = (byte) 0x24;
     byte AUTH_RECEPTION_START = (byte) 0x30;
     byte AUTH_RECEPTION_M2    = (byte) 0x31;
     byte AUTH_RECEPTION_MS    = (byte) 0x32;
     byte CAR_ASSIGNMENT_START = (byte) 0x40;
     byte CAR_ASSIGNMENT_M2    = (byte) 0x41;
     byte KMM_UPDATE           = (byte) 0x50;
+    byte KMM_COMMIT           = (byte) 0x51;
+    byte KMM_CHAIN_UPDATE     = (byte) 0x52;
+    byte KMM_TOTAL            = (byte) 0x53;
     byte CAR_RETURN_START     = (byte) 0x60;
     byte CAR_RETURN_M2        = (byte) 0x62;
     byte CAR_RETURN_MS        = (byte) 0x63;
@@ -52,6 +58,7 @@ public interface Communicator extends ProtocolComponentLengths {
     // Smartcard -> Terminal Error codes
     short AUTH_FAILED                       = 0x5100;
     short AUTH_FAILED_MANIPULATION          = 0x5101;
+    short RESUMPTION_REJECTED               = 0x5102;
     short PROC_FAILED                       = 0x5200;
     short WRONG_CONTINUATION                = 0x5300;
     short CARD_NOT_INITIALIZED              = 0x4000;
@@ -70,6 +77,9 @@ public interface Communicator extends ProtocolComponentLengths {
 
     byte SUCCESS_BYTE = (byte) 0xFF;
 
+    //The card resumes a P1 session at most this often, the car may end sessions sooner
+    short SESSION_MAX_RESUMPTIONS = 16;
+
     int EAPDU_CDATA_OFFSET = 7;
     int ERESPAPDU_CDATA_OFFSET = 0;
 
@@ -178,18 +188,16 @@ public interface Communicator extends ProtocolComponentLengths {
     }
 
     default short putShort(byte[] b, short s, int offset) {
-        byte[] a = shortToByteArray(s);
-        memCpy(b, a, (short) offset, (short) 0, (short) a.length);
-        return (short) a.length; //SHORT_LEN: 2
+        b[offset] = (byte) (s >>> BYTE_BIT_LEN);
+        b[offset + 1] = (byte) s;
+        return SHORT_LEN;
     }
 
     default short putInt(byte[] b, int i, int offset) {
-        byte[] a = intToByteArray(i);
-        /*for(byte j=0;j<4;j++){
-            b[j+offset] = a[j];
-        }*/
-        memCpy(b, a, (short) offset, (short) 0, (short) a.length);
-        return (short) a.length; //INT_LEN: 4
+        for (int j = 0; j < INT_LEN; j++) {
+            b[offset + j] = (byte) (i >>> (BYTE_BIT_LEN * (INT_LEN - 1 - j)));
+        }
+        return INT_LEN;
     }
 
     default int threeBytesToInt(byte[] b, int offset) {
@@ -245,15 +253,10 @@ public interface Communicator extends ProtocolComponentLengths {
     }
 
     default void memCpy(byte[] dest, byte[] src, short destOffset, short srcOffset, short n) {
-        // We don't use "if (n >= 0) System.arraycopy(src, offset + 0, dest, 0, n);"
-        // because we're not sure if a smartcard supports this library operation
-        // (ByteBuffer, although a library class as well, should be different, as
-        // it _should_ be translated directly into JVM bytecode without any class
-        // overhead. The same _probably_ applies to System.arraycopy but we didn't
-        // confirmed that, so we opted for this manual implementation.)
-        // We are aware that ByteBuffer uses arraycopy internally.
-        for (short i = 0; i < n; i++) {
-            dest[destOffset + i] = src[srcOffset + i];
+        // We don't use System.arraycopy because a smartcard does not support it.
+        // Util.arrayCopyNonAtomic is the Java Card API equivalent and native on the card.
+        if (n > 0) {
+            Util.arrayCopyNonAtomic(src, srcOffset, dest, destOffset, n);
         }
     }
 
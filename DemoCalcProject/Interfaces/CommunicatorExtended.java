@@ -1,6 +1,8 @@
 package Interfaces;
 
+import com.licel.jcardsim.smartcardio.CardSimulator;
 import javacard.framework.ISOException;
+import javacard.security.PublicKey;
 import org.jetbrains.annotations.NotNull;
 import utility.Logger;
 
@@ -8,9 +10,11 @@ import javax.smartcardio.CardChannel;
 import javax.smartcardio.CardException;
 import javax.smartcardio.CommandAPDU;
 import javax.smartcardio.ResponseAPDU;
-import java.io.*;
 import java.nio.ByteBuffer;
-import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * @author Matti Eisenlohr
@@ -27,13 +31,38 @@ public abstract class CommunicatorExtended implements Communicator, Receivable {
             (byte) 0x01
     };
     protected final CommandAPDU SELECT_APDU = new CommandAPDU((byte) 0x00, (byte) 0xA4, (byte) 0x04, (byte) 0x00, SC_APPLET_AID);
-    final int WAITING_TIMEOUT /* ms */ = 10000 * 10;
+    protected final int WAITING_TIMEOUT /* ms */ = 10000 * 10;
     protected byte[] cardID;
     protected CardChannel applet;
+    protected ApduTransport transport = new SmartcardIOTransport(() -> applet);
     protected boolean cardAuthenticated = false;
-    protected ByteBuffer msgBuf = ByteBuffer.allocate(512);
+    //Message buffers are leased per protocol run, see leaseMsgBuf
+    protected static final int MSG_BUF_LEN = 512;
+    protected static final BufferPool BUFFERS = new BufferPool(BufferPool.DEFAULT_PER_CLASS,
+            Boolean.getBoolean("hardware_security.directBuffers"));
+    //Staging array for APDUs built in direct buffers, only touched while sending
+    private byte[] apduScratch;
+    //Reader for the data of response APDUs
+    protected final ApduCursor in = new ApduCursor();
+    protected final Mailbox<ByteBuffer> inputQueue = new Mailbox<>(INBOX_CAPACITY);
+    protected final RequestChannel channel = new RequestChannel();
+    //Shared by the host parties only, the card builds its own keys
+    private static final PublicKeyCache PUBLIC_KEYS = new PublicKeyCache(PublicKeyCache.DEFAULT_CAPACITY);
     protected Logger logger;
 
+    @Override
+    public Mailbox<ByteBuffer> getInputQueue() {
+        return inputQueue;
+    }
+
+    @Override
+    public void receiveReply(byte[] reply) {
+        if (!channel.complete(reply)) {
+            logger.warning("Dropping reply to request " + RequestChannel.correlationID(reply) + ", nobody is waiting for it",
+                    "receiveReply", cardID);
+        }
+    }
+
     @Override
     public Object errorState(String msg) {
         System.err.println("I don't want to be here...");
@@ -47,6 +76,19 @@ public abstract class CommunicatorExtended implements Communicator, Receivable {
         return sendAPDU(CARD_ERROR, currentMethodINS, shortToByteArray(status_word), (short) 0, SHORT_LEN);
     }
 
+    /**
+     * @return the key encoded in bytes, shared with every other host party that passes the same encoding
+     */
+    @Override
+    public PublicKey bytesToPubkey(byte[] bytes) {
+        PublicKey pk = PUBLIC_KEYS.get(bytes);
+        if (pk == null) {
+            pk = Communicator.super.bytesToPubkey(bytes);
+            PUBLIC_KEYS.put(bytes, pk);
+        }
+        return pk;
+    }
+
     //make a transient byte array with length len
     @Override
     public byte[] newB(int len) {
@@ -58,18 +100,44 @@ public abstract class CommunicatorExtended implements Communicator, Receivable {
         return ByteBuffer.allocate(len);
     }
 
+    /**
+     * Borrows a cleared message buffer for one protocol run; close it (try-with-resources) when the run is done.
+     */
+    protected BufferPool.Lease leaseMsgBuf() {
+        return BUFFERS.lease(MSG_BUF_LEN);
+    }
+
+    /**
+     * Sends everything up to the buffer's limit, independent of its position.
+     */
     protected ResponseAPDU sendAPDU(int cla, int ins, @NotNull ByteBuffer data) {
-       return sendAPDU((byte) cla, (byte) ins, data.array(), (short) data.arrayOffset(), (short) data.array().length);
+        if (data.hasArray()) {
+            return sendAPDU((byte) cla, (byte) ins, data.array(), (short) data.arrayOffset(), (short) data.limit());
+        }
+        synchronized (this) {
+            if (apduScratch == null || apduScratch.length < data.limit()) {
+                apduScratch = new byte[data.capacity()];
+            }
+            data.duplicate().position(0).get(apduScratch, 0, data.limit());
+            return sendAPDU((byte) cla, (byte) ins, apduScratch, (short) 0, (short) data.limit());
+        }
     }
 
     protected ResponseAPDU sendAPDU(byte cla, byte ins, @NotNull byte[] data, short dataOffset, short dataLength) {
-        CommandAPDU commandAPDU = new CommandAPDU(cla, ins, 0, 0, data, dataOffset, dataLength, 1024);
         try {
-            logger.info(String.format("Sent APDU %x %x with %d bytes of data", cla, ins, dataLength), "sendAPDU", cardID);
-            ResponseAPDU response = applet.transmit(commandAPDU);
-            logger.info(String.format("Received APDU of length %d with %d bytes of data", response.getBytes().length, response.getData().length), "sendAPDU", cardID);
-            if (response.getBytes().length == 2) {
-                logger.info("APDU has SW: " + Arrays.toString(intToByteArray(response.getSW())), "sendAPDU", cardID);
+            //Sent, received and SW of one exchange are traced together or not at all
+            boolean trace = logger.sampleTrace();
+            if (trace) {
+                logger.tracef("sendAPDU", cardID, "Sent APDU %x %x with %d bytes of data", cla, ins, dataLength);
+            }
+            ResponseAPDU response = transport.transmit(cla, ins, data, dataOffset, dataLength, 1024);
+            if (trace) {
+                //getNr and getSW do not copy the response, getBytes and getData do
+                int nr = response.getNr();
+                logger.tracef("sendAPDU", cardID, "Received APDU of length %d with %d bytes of data", nr + SHORT_LEN, nr);
+                if (nr == 0) {
+                    logger.tracef("sendAPDU", cardID, "APDU has SW: %04X", response.getSW());
+                }
             }
             return response;
         } catch (CardException e) {
@@ -79,60 +147,130 @@ public abstract class CommunicatorExtended implements Communicator, Receivable {
         }
     }
 
-    protected byte[] prepareMessage(Object... objects) {
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        ObjectOutputStream oos = null;
-        try {
-            oos = new ObjectOutputStream(bos);
-            oos.writeObject(objects);
-            oos.flush();
-            oos.close();
-        } catch (IOException e) {
-            e.printStackTrace();
+    /**
+     * Sends a command without data, expecting up to ne bytes back.
+     */
+    protected ResponseAPDU transmit(int cla, int ins, int ne) throws CardException {
+        return transport.transmit((byte) cla, (byte) ins, null, 0, 0, ne);
+    }
+
+    /**
+     * Uses the transport named by {@link ApduTransport#TRANSPORT_PROPERTY} for APDUs to this simulated card.
+     */
+    protected void connectTransport(CardSimulator card) {
+        if (ApduTransport.SIMULATOR.equals(System.getProperty(ApduTransport.TRANSPORT_PROPERTY))) {
+            transport = new SimulatorTransport(card);
         }
-        return bos.toByteArray();
     }
 
+    public ApduTransport getTransport() {
+        return transport;
+    }
+
+    public void setTransport(ApduTransport transport) {
+        this.transport = transport;
+    }
+
+    /**
+     * Encodes the components with {@link MessageCodec} into an array of exactly the right size.
+     */
+    protected byte[] prepareMessage(Object... objects) {
+        ByteBuffer message = ByteBuffer.allocate(MessageCodec.encodedLength(objects));
+        MessageCodec.encode(message, objects);
+        return message.array();
+    }
 
-    protected void send(Receivable receiver, ByteBuffer msgBuf) {
-        receiver.receive(msgBuf.array());
+    /**
+     * Encodes the components in place, starting at the buffer's position.
+     *
+     * @return number of bytes written
+     */
+    protected int prepareMessage(ByteBuffer buf, Object... objects) {
+        int start = buf.position();
+        MessageCodec.encode(buf, objects);
+        return buf.position() - start;
+    }
+
+
+    /**
+     * Hands the receiver its own copy of what was written to the buffer, so the buffer can go back to its pool
+     * while the receiver's thread is still reading.
+     *
+     * @return false if the receiver's inbox was full and the message was dropped
+     */
+    protected boolean send(Receivable receiver, ByteBuffer msgBuf) {
+        byte[] message = new byte[msgBuf.position()];
+        msgBuf.duplicate().flip().get(message);
+        return deliver(receiver, message);
+    }
+
+    private boolean deliver(Receivable receiver, byte[] message) {
+        if (!receiver.receive(message)) {
+            logger.warning("Inbox of the receiver full, dropping message of " + message.length + " bytes", "send", cardID);
+            return false;
+        }
+        return true;
     }
 
     protected Object[] processMessage(byte[] message) {
-        ByteArrayInputStream bis = new ByteArrayInputStream(message);
-        Object o = null;
+        return processMessage(ByteBuffer.wrap(message));
+    }
+
+    protected Object[] processMessage(ByteBuffer message) {
         try {
-            ObjectInputStream ois = new ObjectInputStream(bis);
-            o = ois.readObject();
-            ois.close();
-            bis.close();
-        } catch (IOException | ClassNotFoundException e) {
+            return MessageCodec.decode(message);
+        } catch (RuntimeException e) {
             e.printStackTrace();
+            return null;
         }
-        return (Object[]) o;
-    }
-
-    protected synchronized ByteBuffer waitForInput() throws MessageTimeoutException {
-        //lock.readLock().lock();
-        int totalwait = 0;
-        while (inputQueue.isEmpty()) {
-            try {
-                Thread.sleep(100);
-                totalwait += 100;
-                if (totalwait > WAITING_TIMEOUT)
-                    throw new MessageTimeoutException();
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
+    }
+
+    protected ByteBuffer waitForInput() throws MessageTimeoutException {
+        ByteBuffer input;
+        try {
+            input = inputQueue.take(WAITING_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MessageTimeoutException();
+        }
+        if (input == null) {
+            throw new MessageTimeoutException();
         }
-        lock.writeLock().lock();
-        ByteBuffer input = inputQueue.pop();
-        lock.writeLock().unlock();
         return input;
     }
 
-    protected void sendLegacy(Receivable receiver, Object... msgComponents) {
-        receiver.receive(prepareMessage(msgComponents));
+    protected CompletableFuture<ByteBuffer> requestAsync(RequestHandler handler, byte op, byte[] payload) {
+        return channel.request(handler, this, op, payload);
+    }
+
+    /**
+     * Sends a request and waits for its reply, without blocking any other request in flight.
+     */
+    protected ByteBuffer request(RequestHandler handler, byte op, byte[] payload)
+            throws MessageTimeoutException, ProcessFailedException {
+        CompletableFuture<ByteBuffer> reply = requestAsync(handler, op, payload);
+        try {
+            return reply.get(WAITING_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            reply.cancel(false);
+            throw new MessageTimeoutException();
+        } catch (InterruptedException e) {
+            reply.cancel(false);
+            Thread.currentThread().interrupt();
+            throw new MessageTimeoutException();
+        } catch (ExecutionException e) {
+            throw new ProcessFailedException(e.getCause().getMessage());
+        }
+    }
+
+    protected boolean sendLegacy(Receivable receiver, Object... msgComponents) {
+        return deliver(receiver, prepareMessage(msgComponents));
+    }
+
+    protected byte[] bufToBytes(ByteBuffer b) {
+        byte[] bytes = new byte[b.remaining()];
+        b.get(bytes);
+        return bytes;
     }
 
     protected byte[] clearBuf(ByteBuffer b) {
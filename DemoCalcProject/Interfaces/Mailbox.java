@@ -0,0 +1,142 @@
+package Interfaces;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded, lock-free inbox owned by a single {@link Receivable}.
+ * Any number of senders may {@link #offer} concurrently; the owner blocks in {@link #take}
+ * until a message arrives instead of polling. Messages are delivered in the order they were sent.
+ * <p>
+ * Slots carry a sequence number (Vyukov's bounded queue), so neither producers nor the consumer
+ * ever take a lock. Waiting consumers park and are unparked by the producer that fills a slot.
+ *
+ * @author Egidius Mysliwietz
+ */
+public class Mailbox<E> {
+    private final int mask;
+    private final AtomicReferenceArray<E> slots;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong(); //next slot to be written by a producer
+    private final AtomicLong head = new AtomicLong(); //next slot to be read by the consumer
+    private final ConcurrentLinkedQueue<Thread> waiters = new ConcurrentLinkedQueue<>();
+
+    /**
+     * @param capacity maximum number of undelivered messages, rounded up to a power of two and at least 2
+     */
+    public Mailbox(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Mailbox capacity must be positive");
+        }
+        //With one slot a full slot's sequence looks free to the next producer, so there are at least two
+        int size = Math.max(2, Integer.highestOneBit(capacity - 1) << 1);
+        mask = size - 1;
+        slots = new AtomicReferenceArray<>(size);
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * Enqueues a message and wakes one waiting consumer.
+     *
+     * @return false if the mailbox is full, in which case the message is not delivered
+     */
+    public boolean offer(E message) {
+        if (message == null) {
+            throw new NullPointerException();
+        }
+        long pos;
+        while (true) {
+            pos = tail.get();
+            int index = (int) pos & mask;
+            long diff = sequences.get(index) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    slots.set(index, message);
+                    sequences.set(index, pos + 1);
+                    break;
+                }
+            } else if (diff < 0) {
+                return false; //full
+            }
+            //another producer claimed this slot first, retry
+        }
+        Thread waiter = waiters.poll();
+        if (waiter != null) {
+            LockSupport.unpark(waiter);
+        }
+        return true;
+    }
+
+    /**
+     * @return the oldest message, or null if the mailbox is empty
+     */
+    public E poll() {
+        while (true) {
+            long pos = head.get();
+            int index = (int) pos & mask;
+            long diff = sequences.get(index) - (pos + 1);
+            if (diff == 0) {
+                if (head.compareAndSet(pos, pos + 1)) {
+                    E message = slots.getAndSet(index, null);
+                    sequences.set(index, pos + mask + 1);
+                    return message;
+                }
+            } else if (diff < 0) {
+                return null; //empty
+            }
+        }
+    }
+
+    /**
+     * Blocks until a message arrives or the timeout elapses.
+     *
+     * @return the oldest message, or null if none arrived in time
+     */
+    public E take(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        Thread self = Thread.currentThread();
+        while (true) {
+            E message = poll();
+            if (message != null) {
+                return message;
+            }
+            waiters.add(self);
+            //re-check after registering so a message offered in between is not missed
+            message = poll();
+            if (message != null) {
+                waiters.remove(self);
+                return message;
+            }
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                waiters.remove(self);
+                return null;
+            }
+            LockSupport.parkNanos(this, remaining);
+            waiters.remove(self);
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+    }
+
+    public boolean isEmpty() {
+        long pos = head.get();
+        return sequences.get((int) pos & mask) - (pos + 1) < 0;
+    }
+
+    public int size() {
+        return (int) Math.max(0, tail.get() - head.get());
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+}
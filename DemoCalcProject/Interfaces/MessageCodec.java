@@ -0,0 +1,246 @@
+package Interfaces;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Compact, schema-less binary encoding for messages between terminals and the database.
+ * Every field is a one byte type tag followed by its value; byte arrays and strings carry an int length.
+ * <p>
+ * The typed put/get methods write straight into (and read straight out of) a caller supplied
+ * {@link ByteBuffer} and allocate nothing. Strings are encoded as UTF-8 by hand and decoded into a
+ * reusable {@link StringBuilder} for the same reason.
+ *
+ * @author Egidius Mysliwietz
+ */
+public final class MessageCodec implements ProtocolComponentLengths {
+    public static final byte TYPE_SHORT = 0x01;
+    public static final byte TYPE_INT = 0x02;
+    public static final byte TYPE_BYTES = 0x03;
+    public static final byte TYPE_STRING = 0x04;
+
+    private MessageCodec() {
+    }
+
+    public static void putShort(ByteBuffer buf, short s) {
+        buf.put(TYPE_SHORT).putShort(s);
+    }
+
+    public static void putInt(ByteBuffer buf, int i) {
+        buf.put(TYPE_INT).putInt(i);
+    }
+
+    public static void putBytes(ByteBuffer buf, byte[] b) {
+        putBytes(buf, b, 0, b.length);
+    }
+
+    public static void putBytes(ByteBuffer buf, byte[] b, int offset, int length) {
+        buf.put(TYPE_BYTES).putInt(length).put(b, offset, length);
+    }
+
+    public static void putString(ByteBuffer buf, CharSequence s) {
+        buf.put(TYPE_STRING).putInt(utf8Length(s));
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                buf.put((byte) c);
+            } else if (c < 0x800) {
+                buf.put((byte) (0xC0 | (c >> 6)));
+                buf.put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+                    && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                buf.put((byte) (0xF0 | (cp >> 18)));
+                buf.put((byte) (0x80 | ((cp >> 12) & 0x3F)));
+                buf.put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+                buf.put((byte) (0x80 | (cp & 0x3F)));
+            } else {
+                buf.put((byte) (0xE0 | (c >> 12)));
+                buf.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                buf.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+
+    /**
+     * @return type tag of the next field without consuming it
+     */
+    public static byte peekType(ByteBuffer buf) {
+        return buf.get(buf.position());
+    }
+
+    public static short getShort(ByteBuffer buf) {
+        expect(buf, TYPE_SHORT);
+        return buf.getShort();
+    }
+
+    public static int getInt(ByteBuffer buf) {
+        expect(buf, TYPE_INT);
+        return buf.getInt();
+    }
+
+    /**
+     * Copies the next byte array field into dest.
+     *
+     * @return number of bytes copied
+     */
+    public static int getBytes(ByteBuffer buf, byte[] dest, int offset) {
+        expect(buf, TYPE_BYTES);
+        int length = buf.getInt();
+        buf.get(dest, offset, length);
+        return length;
+    }
+
+    /**
+     * @return length of the next byte array field, so the caller can size its destination
+     */
+    public static int peekBytesLength(ByteBuffer buf) {
+        return buf.getInt(buf.position() + BYTE_LEN);
+    }
+
+    /**
+     * Appends the next string field to out.
+     */
+    public static StringBuilder getString(ByteBuffer buf, StringBuilder out) {
+        expect(buf, TYPE_STRING);
+        int end = buf.getInt() + buf.position();
+        while (buf.position() < end) {
+            int b = buf.get() & 0xFF;
+            if (b < 0x80) {
+                out.append((char) b);
+            } else if (b < 0xE0) {
+                out.append((char) (((b & 0x1F) << 6) | (buf.get() & 0x3F)));
+            } else if (b < 0xF0) {
+                out.append((char) (((b & 0x0F) << 12) | ((buf.get() & 0x3F) << 6) | (buf.get() & 0x3F)));
+            } else {
+                int cp = ((b & 0x07) << 18) | ((buf.get() & 0x3F) << 12) | ((buf.get() & 0x3F) << 6) | (buf.get() & 0x3F);
+                out.append(Character.highSurrogate(cp)).append(Character.lowSurrogate(cp));
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Encodes Short, Integer, byte[] and String components in order.
+     */
+    public static void encode(ByteBuffer buf, Object... components) {
+        for (Object o : components) {
+            if (o instanceof Short) {
+                putShort(buf, (Short) o);
+            } else if (o instanceof Integer) {
+                putInt(buf, (Integer) o);
+            } else if (o instanceof byte[]) {
+                putBytes(buf, (byte[]) o);
+            } else if (o instanceof CharSequence) {
+                putString(buf, (CharSequence) o);
+            } else {
+                throw new IllegalArgumentException("Cannot encode " + (o == null ? "null" : o.getClass().getName()));
+            }
+        }
+    }
+
+    /**
+     * Decodes all remaining fields. Convenience for callers that want objects rather than the
+     * allocation-free typed getters.
+     */
+    public static Object[] decode(ByteBuffer buf) {
+        int count = 0;
+        int start = buf.position();
+        while (buf.hasRemaining() && skip(buf)) {
+            count++;
+        }
+        buf.position(start);
+        Object[] components = new Object[count];
+        for (int i = 0; i < count; i++) {
+            switch (peekType(buf)) {
+                case TYPE_SHORT:
+                    components[i] = getShort(buf);
+                    break;
+                case TYPE_INT:
+                    components[i] = getInt(buf);
+                    break;
+                case TYPE_BYTES:
+                    byte[] b = new byte[peekBytesLength(buf)];
+                    getBytes(buf, b, 0);
+                    components[i] = b;
+                    break;
+                default:
+                    components[i] = getString(buf, new StringBuilder()).toString();
+            }
+        }
+        return components;
+    }
+
+    /**
+     * @return number of bytes {@link #encode} needs for these components
+     */
+    public static int encodedLength(Object... components) {
+        int length = 0;
+        for (Object o : components) {
+            length += BYTE_LEN;
+            if (o instanceof Short) {
+                length += SHORT_LEN;
+            } else if (o instanceof Integer) {
+                length += INT_LEN;
+            } else if (o instanceof byte[]) {
+                length += INT_LEN + ((byte[]) o).length;
+            } else if (o instanceof CharSequence) {
+                length += INT_LEN + utf8Length((CharSequence) o);
+            } else {
+                throw new IllegalArgumentException("Cannot encode " + (o == null ? "null" : o.getClass().getName()));
+            }
+        }
+        return length;
+    }
+
+    public static int utf8Length(CharSequence s) {
+        int length = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+                    && Character.isLowSurrogate(s.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Skips one field; stops at padding (an unknown tag such as the zeros after a message in msgBuf).
+     *
+     * @return false if the next byte is not a field
+     */
+    private static boolean skip(ByteBuffer buf) {
+        switch (buf.get(buf.position())) {
+            case TYPE_SHORT:
+                buf.position(buf.position() + BYTE_LEN + SHORT_LEN);
+                return true;
+            case TYPE_INT:
+                buf.position(buf.position() + BYTE_LEN + INT_LEN);
+                return true;
+            case TYPE_BYTES:
+            case TYPE_STRING:
+                buf.position(buf.position() + BYTE_LEN + INT_LEN + buf.getInt(buf.position() + BYTE_LEN));
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static void expect(ByteBuffer buf, byte type) {
+        if (!buf.hasRemaining()) {
+            throw new BufferUnderflowException();
+        }
+        byte actual = buf.get();
+        if (actual != type) {
+            throw new IllegalArgumentException("Expected field of type " + type + " but found " + actual);
+        }
+    }
+}
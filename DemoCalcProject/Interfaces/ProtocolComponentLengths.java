@@ -14,9 +14,14 @@ public interface ProtocolComponentLengths {
     byte BOOL_LEN = 1;
     byte ID_LEN = 5;
     byte NONCE_LEN = SHORT_LEN;
+    byte SESSION_SECRET_LEN = 32;
+    byte CHALLENGE_LEN = 16;
 
     //defined by cryptographic algorithm used
     byte SIGNED_HASH_LEN = 64;
+    byte RSA_CIPHERTEXT_LEN = 64;
+    byte MAC_LEN = 32; //HMAC-SHA-256
+    byte HASH_LEN = 32; //SHA-256
     byte RSA_KEY_EXPONENT_MAX_LENGTH = 64;
     byte RSA_KEY_MODULUS_MAX_LENGTH = 64;
 
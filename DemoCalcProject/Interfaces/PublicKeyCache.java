@@ -0,0 +1,65 @@
+package Interfaces;
+
+import javacard.security.PublicKey;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Content-addressed cache from the {@link ProtocolComponentLengths#KEY_LEN} byte encoding of a public key to the
+ * key object built from it, so {@link CommunicatorExtended#bytesToPubkey} does not run KeyBuilder for every certificate.
+ * Cached keys are shared and must not be modified. When full, the least recently used key is dropped.
+ *
+ * @author Egidius Mysliwietz
+ */
+public class PublicKeyCache implements ProtocolComponentLengths {
+    public static final int DEFAULT_CAPACITY = 128;
+
+    private final LinkedHashMap<ByteBuffer, PublicKey> keys;
+    private long hits = 0;
+    private long misses = 0;
+
+    public PublicKeyCache(int capacity) {
+        keys = new LinkedHashMap<ByteBuffer, PublicKey>(capacity, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ByteBuffer, PublicKey> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * @return the key built from this encoding before, or null
+     */
+    public synchronized PublicKey get(byte[] encoded) {
+        PublicKey key = keys.get(encoding(encoded));
+        if (key == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return key;
+    }
+
+    public synchronized void put(byte[] encoded, PublicKey key) {
+        //Copy, the caller may reuse its buffer
+        keys.put(encoding(encoded.clone()), key);
+    }
+
+    public synchronized int size() {
+        return keys.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    private static ByteBuffer encoding(byte[] encoded) {
+        return ByteBuffer.wrap(encoded, 0, Math.min(encoded.length, KEY_LEN));
+    }
+}
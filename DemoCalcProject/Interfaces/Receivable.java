@@ -1,30 +1,28 @@
 package Interfaces;
 
 import java.nio.ByteBuffer;
-import java.util.Stack;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * @author Matti Eisenlohr
  * @author Egidius Mysliwietz
  */
 public interface Receivable {
-    Stack<ByteBuffer> inputQueue = new Stack<>();
-    ReadWriteLock lock = new ReentrantReadWriteLock();
+    int INBOX_CAPACITY = 16;
 
+    /**
+     * Every receiver owns its inbox, so messages for one terminal never end up with another.
+     */
+    Mailbox<ByteBuffer> getInputQueue();
 
-    default void receive(byte[] message) {
-        //possible TOCTOU here in combination with waitingForInput
-        lock.readLock().lock();
-        //lock.writeLock().lock();
-        if (!inputQueue.isEmpty()) {
-            inputQueue.clear();
-        }
-        inputQueue.add(ByteBuffer.wrap(message));
-        lock.readLock().unlock();
-        //lock.writeLock().unlock();
+    /**
+     * @return false if the inbox is full and the message was dropped
+     */
+    default boolean receive(byte[] message) {
+        return getInputQueue().offer(ByteBuffer.wrap(message));
     }
 
-
-}
\ No newline at end of file
+    /**
+     * Delivers the reply to a request this receiver sent through a {@link RequestChannel}.
+     */
+    void receiveReply(byte[] reply);
+}
@@ -0,0 +1,102 @@
+package Interfaces;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Request/response channel in which every message carries a correlation ID, so any number of
+ * requests can be in flight at once and each reply completes exactly the future of its request.
+ * <p>
+ * Request frame: correlation ID (int), operation (byte), payload.
+ * Reply frame:   correlation ID (int), status (byte), payload.
+ *
+ * @author Egidius Mysliwietz
+ */
+public class RequestChannel implements ProtocolComponentLengths {
+    public static final byte STATUS_OK = (byte) 0xFF;
+    public static final byte STATUS_FAILED = (byte) 0x00;
+    public static final int REQUEST_HEADER_LEN = INT_LEN + BYTE_LEN;
+    public static final int REPLY_HEADER_LEN = INT_LEN + BYTE_LEN;
+
+    private final AtomicInteger nextCorrelationID = new AtomicInteger();
+    private final ConcurrentHashMap<Integer, CompletableFuture<ByteBuffer>> pending = new ConcurrentHashMap<>();
+
+    /**
+     * Sends a request and returns a future for the matching reply. The future completes
+     * exceptionally with {@link RequestFailedException} if the handler reports a failure.
+     */
+    public CompletableFuture<ByteBuffer> request(RequestHandler handler, Receivable replyTo, byte op, byte[] payload) {
+        int correlationID = nextCorrelationID.incrementAndGet();
+        CompletableFuture<ByteBuffer> reply = new CompletableFuture<>();
+        pending.put(correlationID, reply);
+        //A request that is cancelled or timed out must not leak its entry
+        reply.whenComplete((r, t) -> pending.remove(correlationID));
+        ByteBuffer frame = ByteBuffer.allocate(REQUEST_HEADER_LEN + payload.length);
+        frame.putInt(correlationID).put(op).put(payload);
+        handler.handleRequest(replyTo, frame.array());
+        return reply;
+    }
+
+    /**
+     * Completes the future waiting for this reply.
+     *
+     * @return false if nobody is waiting for it anymore (unknown, cancelled or timed out)
+     */
+    public boolean complete(byte[] reply) {
+        ByteBuffer frame = ByteBuffer.wrap(reply);
+        int correlationID = frame.getInt();
+        byte status = frame.get();
+        CompletableFuture<ByteBuffer> future = pending.remove(correlationID);
+        if (future == null) {
+            return false;
+        }
+        ByteBuffer payload = frame.slice();
+        if (status == STATUS_OK) {
+            return future.complete(payload);
+        }
+        byte[] reason = new byte[payload.remaining()];
+        payload.get(reason);
+        return future.completeExceptionally(new RequestFailedException(new String(reason)));
+    }
+
+    public int inFlight() {
+        return pending.size();
+    }
+
+    public static int correlationID(byte[] request) {
+        return ByteBuffer.wrap(request).getInt(0);
+    }
+
+    public static byte operation(byte[] request) {
+        return request[INT_LEN];
+    }
+
+    /**
+     * @return the request payload, positioned after the header
+     */
+    public static ByteBuffer payload(byte[] request) {
+        return ByteBuffer.wrap(request, REQUEST_HEADER_LEN, request.length - REQUEST_HEADER_LEN).slice();
+    }
+
+    public static byte[] reply(int correlationID, byte[] payload) {
+        return frameReply(correlationID, STATUS_OK, payload);
+    }
+
+    public static byte[] failure(int correlationID, String reason) {
+        return frameReply(correlationID, STATUS_FAILED, reason.getBytes());
+    }
+
+    private static byte[] frameReply(int correlationID, byte status, byte[] payload) {
+        ByteBuffer frame = ByteBuffer.allocate(REPLY_HEADER_LEN + payload.length);
+        frame.putInt(correlationID).put(status).put(payload);
+        return frame.array();
+    }
+
+    public static class RequestFailedException extends Exception {
+        public RequestFailedException(String s) {
+            super(s);
+        }
+    }
+}
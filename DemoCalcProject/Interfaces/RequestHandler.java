@@ -0,0 +1,18 @@
+package Interfaces;
+
+/**
+ * Serves requests sent through a {@link RequestChannel}.
+ *
+ * @author Egidius Mysliwietz
+ */
+public interface RequestHandler {
+
+    /**
+     * Accepts a framed request and eventually answers it through {@link Receivable#receiveReply}.
+     * Must not block the caller until the request is served.
+     *
+     * @param replyTo who to send the reply to
+     * @param request correlation ID, operation code and payload as framed by {@link RequestChannel}
+     */
+    void handleRequest(Receivable replyTo, byte[] request);
+}
@@ -0,0 +1,90 @@
+package Interfaces;
+
+import com.licel.jcardsim.smartcardio.CardSimulator;
+
+import javax.smartcardio.CardException;
+import javax.smartcardio.ResponseAPDU;
+import java.util.HashMap;
+
+/**
+ * Hands APDUs straight to the jcardsim simulator of the card, skipping CardTerminalSimulator and the
+ * javax.smartcardio channel. The command is encoded into a reused array; the simulator reads the case of the
+ * APDU from the array length, so there is one array per command length, and the protocols only use a few.
+ * Per APDU only the data and the response (by the ResponseAPDU) are copied.
+ * <p>
+ * The card must have been selected over its terminal first, as for {@link SmartcardIOTransport}.
+ *
+ * @author Egidius Mysliwietz
+ */
+public class SimulatorTransport implements ApduTransport {
+    public static final TransportStats STATS = new TransportStats(SIMULATOR);
+    private static final int MAX_COMMAND_BUFFERS = 8;
+
+    private final CardSimulator card;
+    private final HashMap<Integer, byte[]> commands = new HashMap<>();
+
+    public SimulatorTransport(CardSimulator card) {
+        this.card = card;
+    }
+
+    @Override
+    public synchronized ResponseAPDU transmit(byte cla, byte ins, byte[] data, int offset, int length, int ne) throws CardException {
+        long start = System.nanoTime();
+        byte[] command = encode(cla, ins, data, offset, length, ne);
+        byte[] response;
+        //The simulator is shared with the terminal channel and not thread-safe
+        synchronized (card) {
+            try {
+                response = card.transmitCommand(command);
+            } catch (RuntimeException e) {
+                throw new CardException(e);
+            }
+        }
+        ResponseAPDU apdu = new ResponseAPDU(response);
+        STATS.record(length + response.length, System.nanoTime() - start);
+        return apdu;
+    }
+
+    @Override
+    public TransportStats getStats() {
+        return STATS;
+    }
+
+    private byte[] encode(byte cla, byte ins, byte[] data, int offset, int length, int ne) {
+        int commandLength = ApduTransport.commandLength(length, ne);
+        byte[] command = commands.get(commandLength);
+        if (command == null) {
+            if (commands.size() >= MAX_COMMAND_BUFFERS) {
+                commands.clear();
+            }
+            command = new byte[commandLength];
+            commands.put(commandLength, command);
+        }
+        boolean extended = length > 255 || ne > 256;
+        command[0] = cla;
+        command[1] = ins;
+        command[2] = 0;
+        command[3] = 0;
+        int p = 4;
+        if (length > 0) {
+            if (extended) {
+                command[p++] = 0;
+                command[p++] = (byte) (length >> 8);
+            }
+            command[p++] = (byte) length;
+            System.arraycopy(data, offset, command, p, length);
+            p += length;
+        }
+        if (ne > 0) {
+            if (extended) {
+                if (length == 0) {
+                    command[p++] = 0;
+                }
+                //65536 is encoded as 00 00, 256 as 00
+                command[p++] = (byte) (ne >> 8);
+            }
+            command[p] = (byte) ne;
+        }
+        return command;
+    }
+}
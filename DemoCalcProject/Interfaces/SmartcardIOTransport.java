@@ -0,0 +1,44 @@
+package Interfaces;
+
+import javax.smartcardio.CardChannel;
+import javax.smartcardio.CardException;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+import java.util.function.Supplier;
+
+/**
+ * Sends APDUs through the javax.smartcardio channel of the terminal, the way a physical reader is used.
+ * Per APDU the data is copied into the CommandAPDU, the channel copies the whole command again (getBytes) and
+ * the ResponseAPDU copies the response.
+ *
+ * @author Egidius Mysliwietz
+ */
+public class SmartcardIOTransport implements ApduTransport {
+    public static final TransportStats STATS = new TransportStats(SMARTCARDIO);
+
+    private final Supplier<CardChannel> channel;
+
+    /**
+     * @param channel the channel of the currently connected card, it changes on every select
+     */
+    public SmartcardIOTransport(Supplier<CardChannel> channel) {
+        this.channel = channel;
+    }
+
+    @Override
+    public ResponseAPDU transmit(byte cla, byte ins, byte[] data, int offset, int length, int ne) throws CardException {
+        long start = System.nanoTime();
+        CommandAPDU command = length == 0
+                ? new CommandAPDU(cla, ins, 0, 0, ne)
+                : new CommandAPDU(cla, ins, 0, 0, data, offset, length, ne);
+        ResponseAPDU response = channel.get().transmit(command);
+        STATS.record(length + ApduTransport.commandLength(length, ne) + response.getNr() + 2,
+                System.nanoTime() - start);
+        return response;
+    }
+
+    @Override
+    public TransportStats getStats() {
+        return STATS;
+    }
+}
@@ -0,0 +1,64 @@
+package Interfaces;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts APDUs, host side bytes copied and time from command to response for one kind of {@link ApduTransport}.
+ * The copies inside jcardsim itself are the same for every transport and not counted.
+ *
+ * @author Egidius Mysliwietz
+ */
+public class TransportStats {
+    private final String name;
+    private final LongAdder apdus = new LongAdder();
+    private final LongAdder bytesCopied = new LongAdder();
+    private final LongAdder nanos = new LongAdder();
+
+    public TransportStats(String name) {
+        this.name = name;
+    }
+
+    public void record(long copied, long elapsedNanos) {
+        apdus.increment();
+        bytesCopied.add(copied);
+        nanos.add(elapsedNanos);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getApdus() {
+        return apdus.sum();
+    }
+
+    public long getBytesCopied() {
+        return bytesCopied.sum();
+    }
+
+    public long getNanos() {
+        return nanos.sum();
+    }
+
+    public double getBytesCopiedPerApdu() {
+        long n = getApdus();
+        return n == 0 ? 0 : (double) getBytesCopied() / n;
+    }
+
+    public double getMicrosPerApdu() {
+        long n = getApdus();
+        return n == 0 ? 0 : getNanos() / 1000.0 / n;
+    }
+
+    public void reset() {
+        apdus.reset();
+        bytesCopied.reset();
+        nanos.reset();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: %d APDUs, %.1f bytes copied/APDU, %.1f us/APDU",
+                name, getApdus(), getBytesCopiedPerApdu(), getMicrosPerApdu());
+    }
+}
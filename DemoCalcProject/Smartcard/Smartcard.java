@@ -1,16 +1,21 @@
 package Smartcard;
 
+import Interfaces.ApduCursor;
 import Interfaces.Communicator;
 import Interfaces.KeyWallet;
 import javacard.framework.APDU;
 import javacard.framework.Applet;
 import javacard.framework.ISO7816;
 import javacard.framework.ISOException;
+import javacard.framework.Util;
 import javacard.security.PrivateKey;
 import javacard.security.PublicKey;
 import javacardx.apdu.ExtendedLength;
+import rsa.CertificateCache;
 import rsa.CryptoImplementation;
+import rsa.HashChain;
 import rsa.RSACrypto;
+import rsa.SessionKey;
 
 import java.nio.charset.StandardCharsets;
 
@@ -25,7 +30,9 @@ public class Smartcard extends Applet implements Communicator, ISO7816, Extended
     public PublicKey rtPubSK;
     public PublicKey autoPubSK;
     public States state = States.EMPTY;
-    short offset;
+    //Reader for incoming and writer for outgoing messages, both over the APDU buffer
+    private final ApduCursor in = new ApduCursor();
+    private final ApduCursor out = new ApduCursor();
     ProtocolAwaited currentAwaited = ProtocolAwaited.AUTH;
     boolean terminalAuthenticated = false;
     byte[] cardCertificate;
@@ -43,6 +50,19 @@ public class Smartcard extends Applet implements Communicator, ISO7816, Extended
     private byte[] autoID;
     private short nonceReception;
     private short nonceCard;
+    private short nonceAuto;
+    //Session with the assigned car from its last full P1, see insertResume
+    private SessionKey session;
+    private SessionKey pendingSession;
+    private short sessionResumptions;
+    private byte[] resumeAutoChallenge;
+    private byte[] resumeCardChallenge;
+    //Authenticates P5 until the card leaves the car, derived from session with the nonces of the P1 run
+    private SessionKey kilometerageKey;
+    //Last odometer hash chain link accepted from the car in this connection, see kilometerageCommit
+    private final HashChain hashChain = new HashChain();
+    private byte[] chainLink;
+    private short chainRemaining;
     private Smartcard(byte[] bArray, short bOffset, byte bLength) {
         register();
     }
@@ -71,6 +91,9 @@ public class Smartcard extends Applet implements Communicator, ISO7816, Extended
                     case INSERT_START:
                         insertStart(apdu);
                         return;
+                    case INSERT_RESUME:
+                        insertResume(apdu);
+                        return;
                     case AUTH_RECEPTION_START:
                         authReception(apdu);
                         return;
@@ -89,6 +112,15 @@ public class Smartcard extends Applet implements Communicator, ISO7816, Extended
                     case KMM_UPDATE:
                         kilometerageUpdate(apdu);
                         return;
+                    case KMM_TOTAL:
+                        kilometerageTotal(apdu);
+                        return;
+                    case KMM_COMMIT:
+                        kilometerageCommit(apdu);
+                        return;
+                    case KMM_CHAIN_UPDATE:
+                        kilometerageChainUpdate(apdu);
+                        return;
                     case CAR_RETURN_START:
                         carReturnStart(apdu);
                         return;
@@ -110,6 +142,12 @@ public class Smartcard extends Applet implements Communicator, ISO7816, Extended
                         }
                         insertMS(apdu);
                         return;
+                    case INSERT_RESUME_M2:
+                        if (currentAwaited != ProtocolAwaited.INSR2) {
+                            return;
+                        }
+                        insertResumeM2(apdu);
+                        return;
                     case AUTH_RECEPTION_M2:
                         if (currentAwaited != ProtocolAwaited.AUTHR2) {
                             return;
@@ -181,6 +219,10 @@ public class Smartcard extends Applet implements Communicator, ISO7816, Extended
                     case INSERT_MS:
                         insertMSOnError(sw);
                         return;
+                    case INSERT_RESUME:
+                    case INSERT_RESUME_M2:
+                        insertResumeOnError(sw);
+                        return;
                     case AUTH_RECEPTION_START:
                         authReceptionOnError(sw);
                         return;
@@ -197,6 +239,9 @@ public class Smartcard extends Applet implements Communicator, ISO7816, Extended
                         carAssignmentM2OnError(sw);
                         return;
                     case KMM_UPDATE:
+                    case KMM_TOTAL:
+                    case KMM_COMMIT:
+                    case KMM_CHAIN_UPDATE:
                         kilometerageUpdateOnError(sw);
                         return;
                     case CAR_RETURN_START:
@@ -221,25 +266,15 @@ public class Smartcard extends Applet implements Communicator, ISO7816, Extended
     }
 
     private void init(APDU apdu) {
-        offset = EAPDU_CDATA_OFFSET;
         byte[] tmp = apdu.getBuffer();
+        in.wrap(tmp, EAPDU_CDATA_OFFSET);
         int dataLen = threeBytesToInt(tmp, ISO7816.OFFSET_LC);
-        cardID = newStaticB(ID_LEN);
-        memCpy(cardID, tmp, offset, ID_LEN);
-        offset += ID_LEN;
-        int certLength = getInt(tmp, offset);
-        offset += INT_LEN;
-        cardCertificate = newStaticB(certLength);
-        memCpy(cardCertificate, tmp, offset, certLength);
-        offset += certLength;
-        byte[] privateKeyEncoded = newStaticB(KEY_LEN);
-        memCpy(privateKeyEncoded, tmp, offset, KEY_LEN);
-        privateKey = bytesToPrivkey(privateKeyEncoded);
-        offset += KEY_LEN;
+        cardID = in.getBytes(newStaticB(ID_LEN));
+        cardCertificate = newStaticB(in.peekBlobLength());
+        in.getBlob(cardCertificate);
+        privateKey = bytesToPrivkey(in.getKey(newStaticB(KEY_LEN)));
         sc = new SmartcardCrypto(cardID, cardCertificate, privateKey);
-        byte[] dbPubkB = newB(KEY_LEN);
-        memCpy(dbPubkB, tmp, offset, KEY_LEN);
-        dbPubSK = bytesToPubkey(dbPubkB);
+        dbPubSK = bytesToPubkey(in.getKey(newB(KEY_LEN)));
         state = States.ASSIGNED_NONE;
     }
 
@@ -276,6 +311,9 @@ public class Smartcard extends Applet implements Communicator, ISO7816, Extended
     @Override
     public void deselect() {
         currentAwaited = ProtocolAwaited.AUTH;
+        endSession(kilometerageKey);
+        kilometerageKey = null;
+        chainLink = null;
     }
 
     public void sendErrorAPDU(short status_word) {
@@ -299,11 +337,8 @@ public class Smartcard extends Applet implements Communicator, ISO7816, Extended
         }
         nonceCard = sc.generateNonce();
         apdu.setOutgoing();
-        byte[] msgBuf = clearBuf(apdu);
-        byte[] scCert = sc.getCertificate();
-        put(msgBuf, scCert, 0);
-        putShort(msgBuf, nonceCard, scCert.length);
-        short msgLen = (short) (NONCE_LEN + scCert.length);
+        out.wrap(clearBuf(apdu), 0).putBytes(sc.getCertificate()).putShort(nonceCard);
+        short msgLen = (short) out.position();
         apdu.setOutgoingLength(msgLen);
         apdu.sendBytes((short) 0, msgLen);
         currentAwaited = ProtocolAwaited.INS2;
@@ -322,12 +357,10 @@ public class Smartcard extends Applet implements Communicator, ISO7816, Extended
      * Protocol 1 - mutual authentication between smartcard and car
      */
     private void insertM2(APDU apdu) {
-        offset = EAPDU_CDATA_OFFSET;
-        byte[] msg2 = apdu.getBuffer();
+        in.wrap(apdu.getBuffer(), EAPDU_CDATA_OFFSET);
 
         //Response of nonceCard
-        short nonceCardResponse = getShort(msg2, offset);//msg2.getShort(73 + certSignLen);
-        offset += 2;
+        short nonceCardResponse = in.getShort();
         if (nonceCard != nonceCardResponse) {
             errorState("Wrong nonce returned in message 2 of P1");
             currentAwaited = ProtocolAwaited.AUTH;
@@ -336,11 +369,8 @@ public class Smartcard extends Applet implements Communicator, ISO7816, Extended
         }
 
         //signed hash of nonceCard
-        int msg2NonceSignLen = getInt(msg2, offset);//msg2.getInt(curBufIndex);
-        offset += INT_LEN;
-        byte[] nonceCardResponseHashSign = newB(msg2NonceSignLen);
-        memCpy(nonceCardResponseHashSign, msg2, offset, msg2NonceSignLen);
-        offset += msg2NonceSignLen;
+        byte[] nonceCardResponseHashSign = newB(in.peekBlobLength());
+        in.getBlob(nonceCardResponseHashSign);
 
         if (!sc.verify(shortToByteArray(nonceCardResponse), nonceCardResponseHashSign, autoPubSK)) {
             errorState("Invalid hash of nonce returned in message 2 of P1");
@@ -350,16 +380,23 @@ public class Smartcard extends Applet implements Communicator, ISO7816, Extended
         }
 
         //nonceAuto
-        short nonceAuto = getShort(msg2, offset);
+        nonceAuto = in.getShort();
+
+        //Session secret for later resumptions, only readable by the car
+        byte[] sessionSecret = sc.generateRandom(newB(SESSION_SECRET_LEN));
+        byte[] encryptedSecret = sc.encrypt(sessionSecret, autoPubSK);
+        endSession(pendingSession);
+        pendingSession = new SessionKey(sessionSecret);
+        clearBuf(sessionSecret, SESSION_SECRET_LEN);
 
         //Message 3
         apdu.setOutgoing();
-        byte[] msgBuf = clearBuf(apdu);
-        byte[] msg3HashSign = sc.sign(shortToByteArray(nonceAuto));
-        putShort(msgBuf, nonceAuto, 0);
-        putInt(msgBuf, msg3HashSign.length, NONCE_LEN);
-        put(msgBuf, msg3HashSign, NONCE_LEN + INT_LEN);
-        short msgLen = (short) (NONCE_LEN + INT_LEN + msg3HashSign.length);
+        byte[] msg3Cmps = newB(NONCE_LEN + RSA_CIPHERTEXT_LEN);
+        putShort(msg3Cmps, nonceAuto, 0);
+        memCpy(msg3Cmps, encryptedSecret, NONCE_LEN, 0, RSA_CIPHERTEXT_LEN);
+        byte[] msg3HashSign = sc.sign(msg3Cmps);
+        out.wrap(clearBuf(apdu), 0).putShort(nonceAuto).putBlob(msg3HashSign).putBlob(encryptedSecret);
+        short msgLen = (short) out.position();
         apdu.setOutgoingLength(msgLen);
         apdu.sendBytes((short) 0, msgLen);
         currentAwaited = ProtocolAwaited.INSS;
@@ -386,29 +423,24 @@ public class Smartcard extends Applet implements Communicator, ISO7816, Extended
      */
     private void insertMS(APDU apdu) {
         // Success message
-        offset = EAPDU_CDATA_OFFSET;
-        byte[] succMb = apdu.getBuffer();
+        in.wrap(apdu.getBuffer(), EAPDU_CDATA_OFFSET);
 
-        byte success = succMb[offset];
-        offset += BOOL_LEN;
+        byte success = in.getByte();
         if (success != SUCCESS_BYTE) {
             errorState("Wrong code, expected 0xFF");
             currentAwaited = ProtocolAwaited.AUTH;
             sendErrorAPDU(AUTH_FAILED);
             return;
         }
-        short nonceSucc = getShort(succMb, offset);
-        offset += NONCE_LEN;
+        short nonceSucc = in.getShort();
         if (!sc.areSubsequentNonces(nonceCard, nonceSucc)) {
             errorState("Wrong nonce in success message of P1");
             currentAwaited = ProtocolAwaited.AUTH;
             sendErrorAPDU(AUTH_FAILED_MANIPULATION);
             return;
         }
-        int nonceSuccSignLen = getInt(succMb, offset);
-        offset += INT_LEN;
-        byte[] succMHashSign = newB(nonceSuccSignLen);
-        memCpy(succMHashSign, succMb, offset, nonceSuccSignLen);
+        byte[] succMHashSign = newB(in.peekBlobLength());
+        in.getBlob(succMHashSign);
         byte[] succMsgCmps = newB(BOOL_LEN + NONCE_LEN);
         succMsgCmps[0] = success;
         putShort(succMsgCmps, nonceSucc, BOOL_LEN);
@@ -418,6 +450,14 @@ public class Smartcard extends Applet implements Communicator, ISO7816, Extended
             sendErrorAPDU(AUTH_FAILED_MANIPULATION);
             return;
         }
+        endSession(session);
+        session = pendingSession;
+        pendingSession = null;
+        sessionResumptions = 0;
+        byte[] nonces = newB(2 * NONCE_LEN);
+        putShort(nonces, nonceCard, 0);
+        putShort(nonces, nonceAuto, NONCE_LEN);
+        startKilometerage(nonces);
         currentAwaited = ProtocolAwaited.PROC;
     }
 
@@ -433,17 +473,81 @@ public class Smartcard extends Applet implements Communicator, ISO7816, Extended
         }
     }
 
+    /**
+     * Protocol 1, resumed - the car proves it still holds the secret of the last full P1 with a MAC instead of
+     * RSA. Message 1 carries the challenge of the car; the card answers with its ID, its own challenge, the
+     * resumption counter and its proof.
+     */
+    private void insertResume(APDU apdu) {
+        if (sc == null || sc.getID() == null || session == null || sessionResumptions >= SESSION_MAX_RESUMPTIONS) {
+            currentAwaited = ProtocolAwaited.AUTH;
+            sendErrorAPDU(RESUMPTION_REJECTED);
+            return;
+        }
+        in.wrap(apdu.getBuffer(), EAPDU_CDATA_OFFSET);
+        resumeAutoChallenge = in.getBytes(newB(CHALLENGE_LEN));
+        resumeCardChallenge = sc.generateRandom(newB(CHALLENGE_LEN));
+
+        //Message 2
+        apdu.setOutgoing();
+        byte[] buf = clearBuf(apdu);
+        out.wrap(buf, 0).putBytes(sc.getID()).putBytes(resumeCardChallenge).putShort(sessionResumptions);
+        session.resumeProof(SessionKey.CARD_PROOF, resumeAutoChallenge, resumeCardChallenge, sc.getID(),
+                sessionResumptions, buf, (short) out.position());
+        short msgLen = (short) (out.position() + MAC_LEN);
+        apdu.setOutgoingLength(msgLen);
+        apdu.sendBytes((short) 0, msgLen);
+        currentAwaited = ProtocolAwaited.INSR2;
+    }
+
+    /**
+     * Protocol 1, resumed - checks the proof of the car
+     */
+    private void insertResumeM2(APDU apdu) {
+        byte[] buf = apdu.getBuffer();
+        if (!session.verifyResumeProof(SessionKey.AUTO_PROOF, resumeAutoChallenge, resumeCardChallenge, sc.getID(),
+                sessionResumptions, buf, (short) EAPDU_CDATA_OFFSET)) {
+            errorState("Invalid proof in resumed P1");
+            //Whoever sent it does not hold the secret, do not let them try again
+            endSession(session);
+            session = null;
+            currentAwaited = ProtocolAwaited.AUTH;
+            sendErrorAPDU(AUTH_FAILED_MANIPULATION);
+            return;
+        }
+        sessionResumptions++;
+        startKilometerage(concatBytes(resumeAutoChallenge, resumeCardChallenge));
+        currentAwaited = ProtocolAwaited.PROC;
+    }
+
+    private void insertResumeOnError(short sw) {
+        if (sw == INVALID_HASH) {
+            errorState("Car rejected the proof of the card in resumed P1");
+        } else {
+            errorState("Something has gone wrong");
+        }
+        currentAwaited = ProtocolAwaited.AUTH;
+    }
+
+    private void startKilometerage(byte[] context) {
+        endSession(kilometerageKey);
+        kilometerageKey = session.deriveKey(SessionKey.KILOMETERAGE_KEY, context);
+    }
+
+    private void endSession(SessionKey key) {
+        if (key != null) {
+            key.clear();
+        }
+    }
+
     /**
      * Protocol 2 - Mutual Authentication between smartcard and reception terminal
      */
     public void authReception(APDU apdu) {
         apdu.setOutgoing();
-        byte[] msgBuf = clearBuf(apdu);
-        byte[] scCert = sc.getCertificate();
-        put(msgBuf, scCert, 0);
         nonceCard = sc.generateNonce();
-        putShort(msgBuf, nonceCard, scCert.length);
-        short msgLen = (short) (NONCE_LEN + INT_LEN + scCert.length);
+        out.wrap(clearBuf(apdu), 0).putBytes(sc.getCertificate()).putShort(nonceCard);
+        short msgLen = (short) (out.position() + INT_LEN);
         apdu.setOutgoingLength(msgLen);
         apdu.sendBytes((short) 0, msgLen);
         currentAwaited = ProtocolAwaited.AUTHR2;
@@ -470,31 +574,18 @@ public class Smartcard extends Applet implements Communicator, ISO7816, Extended
      * Protocol 2 - Mutual Authentication between smartcard and reception terminal
      */
     private void authReceptionM2(APDU apdu) {
-        offset = EAPDU_CDATA_OFFSET;
-        byte[] response = apdu.getBuffer();
+        in.wrap(apdu.getBuffer(), EAPDU_CDATA_OFFSET);
 
-        byte[] rtPubSkb = newB(KEY_LEN);
-        memCpy(rtPubSkb, response, offset, KEY_LEN);
-        offset += KEY_LEN;
+        byte[] rtPubSkb = in.getKey(newB(KEY_LEN));
         rtPubSK = bytesToPubkey(rtPubSkb);
 
-        byte[] receptionID = newB(ID_LEN);
-        memCpy(receptionID, response, offset, ID_LEN);
-        offset += ID_LEN;
+        byte[] receptionID = in.getBytes(newB(ID_LEN));
 
-        int receptionCertHSLength = getInt(response, offset);
-        offset += INT_LEN;
+        byte[] receptionCertHashSign = newB(in.peekBlobLength());
+        in.getBlob(receptionCertHashSign);
 
-        byte[] receptionCertHashSign = newB(receptionCertHSLength);
-        memCpy(receptionCertHashSign, response, offset, receptionCertHSLength);
-        offset += receptionCertHSLength;
-
-        nonceReception = getShort(response, offset);
-        byte[] msg2Cmps = newB(KEY_LEN + ID_LEN);
-        put(msg2Cmps, rtPubSkb, 0);
-        put(msg2Cmps, receptionID, KEY_LEN);
-
-        if (!sc.verify(msg2Cmps, receptionCertHashSign, dbPubSK)) { //Step 5
+        nonceReception = in.getShort();
+        if (!sc.verifyCertificate(rtPubSkb, receptionID, receptionCertHashSign, dbPubSK)) { //Step 5
             errorState("ReceptionCertHash does not match expected value, check for manipulation.");
             currentAwaited = ProtocolAwaited.AUTH;
             sendErrorAPDU(AUTH_FAILED_MANIPULATION);
@@ -503,11 +594,8 @@ public class Smartcard extends Applet implements Communicator, ISO7816, Extended
         byte[] noncePrepped = shortToByteArray(nonceReception);
         byte[] nonceReceptionHashSign = sc.sign(noncePrepped);
         apdu.setOutgoing();
-        byte[] msgBuf = clearBuf(apdu);
-        putShort(msgBuf, nonceReception, 0);
-        putInt(msgBuf, nonceReceptionHashSign.length, NONCE_LEN);
-        put(msgBuf, nonceReceptionHashSign, NONCE_LEN + INT_LEN);
-        short msgLen = (short) (NONCE_LEN + INT_LEN + nonceReceptionHashSign.length);
+        out.wrap(clearBuf(apdu), 0).putShort(nonceReception).putBlob(nonceReceptionHashSign);
+        short msgLen = (short) out.position();
         apdu.setOutgoingLength(msgLen);
         apdu.sendBytes((short) 0, msgLen);
         currentAwaited = ProtocolAwaited.AUTHRS;
@@ -534,11 +622,9 @@ public class Smartcard extends Applet implements Communicator, ISO7816, Extended
      * Protocol 2 - Mutual Authentication between smartcard and reception terminal
      */
     private void authReceptionMS(APDU apdu) {
-        offset = EAPDU_CDATA_OFFSET;
-        byte[] response2 = apdu.getBuffer();
+        in.wrap(apdu.getBuffer(), EAPDU_CDATA_OFFSET);
 
-        byte success = response2[offset];
-        offset++;
+        byte success = in.getByte();
         if (success != SUCCESS_BYTE) {
             errorState("Wrong byte code, expected 0xFF");
             currentAwaited = ProtocolAwaited.AUTH;
@@ -546,8 +632,7 @@ public class Smartcard extends Applet implements Communicator, ISO7816, Extended
             return;
         }
 
-        short nonceCardResp = getShort(response2, offset);
-        offset += NONCE_LEN;
+        short nonceCardResp = in.getShort();
         if (nonceCardResp != nonceCard) {
             errorState("Wrong nonce returned in message 4 of P2");
             currentAwaited = ProtocolAwaited.AUTH;
@@ -555,10 +640,8 @@ public class Smartcard extends Applet implements Communicator, ISO7816, Extended
             return;
         }
 
-        int responseData2Length = getInt(response2, offset);
-        offset += INT_LEN;
-        byte[] responseData2 = newB(responseData2Length);
-        memCpy(responseData2, response2, offset, responseData2Length);
+        byte[] responseData2 = newB(in.peekBlobLength());
+        in.getBlob(responseData2);
         byte[] succMsgCmps = newB(BOOL_LEN + NONCE_LEN);
         succMsgCmps[0] = success;
         putShort(succMsgCmps, nonceCard, BOOL_LEN);
@@ -604,14 +687,8 @@ public class Smartcard extends Applet implements Communicator, ISO7816, Extended
         byte[] giveCarSigned = sc.sign(concatBytes(value, shortToByteArray(nonceReceptionCount)));
 
         apdu.setOutgoing();
-        byte[] msgBuf = clearBuf(apdu);
-        offset = 0;
-        put(msgBuf, value, offset);
-        offset += value.length;
-        offset += putShort(msgBuf, nonceReceptionCount, offset);
-        offset += putInt(msgBuf, giveCarSigned.length, offset);
-        put(msgBuf, giveCarSigned, offset);
-        short msgLen = (short) (INT_LEN + SHORT_LEN + INT_LEN + giveCarSigned.length);
+        out.wrap(clearBuf(apdu), 0).putBytes(value).putShort(nonceReceptionCount).putBlob(giveCarSigned);
+        short msgLen = (short) out.position();
         apdu.setOutgoingLength(msgLen);
         apdu.sendBytes((short) 0, msgLen);
         currentAwaited = ProtocolAwaited.CASS2;
@@ -641,55 +718,34 @@ public class Smartcard extends Applet implements Communicator, ISO7816, Extended
      * Protocol 3 - Assignment of car to smartcard
      */
     private void carAssignmentM2(APDU apdu) {
-        offset = EAPDU_CDATA_OFFSET;
-        byte[] response = apdu.getBuffer();
+        in.wrap(apdu.getBuffer(), EAPDU_CDATA_OFFSET);
 
-        byte[] autoPubSkb = newB(KEY_LEN);
-        memCpy(autoPubSkb, response, offset, KEY_LEN);
-        offset += KEY_LEN;
+        byte[] autoPubSkb = in.getKey(newB(KEY_LEN));
         autoPubSK = bytesToPubkey(autoPubSkb);
 
-        autoID = newB(ID_LEN);
-        memCpy(autoID, response, offset, ID_LEN);
-        offset += ID_LEN;
+        autoID = in.getBytes(newB(ID_LEN));
 
-        int autoCertHSLength = getInt(response, offset);
-        offset += INT_LEN;
-        byte[] autoCertHashSign = newB(autoCertHSLength);
-        memCpy(autoCertHashSign, response, offset, autoCertHSLength);
-        offset += autoCertHSLength;
+        byte[] autoCertHashSign = newB(in.peekBlobLength());
+        in.getBlob(autoCertHashSign);
 
-        byte[] autoCertCmps = newB(KEY_LEN + ID_LEN);
-        put(autoCertCmps, autoPubSkb, 0);
-        put(autoCertCmps, autoID, KEY_LEN);
-        if (!sc.verify(autoCertCmps, autoCertHashSign, dbPubSK)) { //Step 7 - certificate
+        if (!sc.verifyCertificate(autoPubSkb, autoID, autoCertHashSign, dbPubSK)) { //Step 7 - certificate
             errorState("Invalid car certificate received");
             currentAwaited = ProtocolAwaited.PROC;
             sendErrorAPDU(PROC_FAILED);
             return;
         }
 
-        short nonceCard2 = getShort(response, offset);
-        offset += NONCE_LEN;
+        short nonceCard2 = in.getShort();
         if (nonceCard2 != ((short) (nonceCard + 1))) {
             errorState("Wrong sequence number in message 2 of P3");
             currentAwaited = ProtocolAwaited.PROC;
             sendErrorAPDU(PROC_FAILED);
             return;
         }
-        int msg2SignLen = getInt(response, offset);
-        offset += INT_LEN;
-        byte[] msg2HashSign = newB(msg2SignLen);
-        memCpy(msg2HashSign, response, offset, msg2SignLen);
+        byte[] msg2HashSign = newB(in.peekBlobLength());
+        in.getBlob(msg2HashSign);
         byte[] msg2Cmps = newB(KEY_LEN + ID_LEN + SIGNED_HASH_LEN + NONCE_LEN);
-        offset = 0;
-        put(msg2Cmps, autoPubSkb, offset);
-        offset += KEY_LEN;
-        put(msg2Cmps, autoID, offset);
-        offset += autoID.length;
-        put(msg2Cmps, autoCertHashSign, offset);
-        offset += autoCertHashSign.length;
-        putShort(msg2Cmps, nonceCard2, offset);
+        out.wrap(msg2Cmps, 0).putBytes(autoPubSkb).putBytes(autoID).putBytes(autoCertHashSign).putShort(nonceCard2);
         if (!sc.verify(msg2Cmps, msg2HashSign, rtPubSK)) {
             errorState("Wrong signature in msg2 of P3");
             currentAwaited = ProtocolAwaited.PROC;
@@ -697,17 +753,13 @@ public class Smartcard extends Applet implements Communicator, ISO7816, Extended
             return;
         }
         state = States.ASSIGNED;
+        endSession(session);
+        session = null;
         byte[] successByteArray = {SUCCESS_BYTE};
         byte[] successHash = sc.sign(concatBytes(successByteArray, shortToByteArray((short) (nonceReception + 2))));
         apdu.setOutgoing();
-        byte[] msgBuf = clearBuf(apdu);
-        offset = 0;
-        msgBuf[offset] = SUCCESS_BYTE;
-        offset += BOOL_LEN;
-        offset += putShort(msgBuf, (short) (nonceReception + 2), offset);
-        offset += putInt(msgBuf, successHash.length, offset);
-        put(msgBuf, successHash, offset);
-        short msgLen = (short) (BOOL_LEN + NONCE_LEN + INT_LEN + successHash.length);
+        out.wrap(clearBuf(apdu), 0).putByte(SUCCESS_BYTE).putShort((short) (nonceReception + 2)).putBlob(successHash);
+        short msgLen = (short) out.position();
         apdu.setOutgoingLength(msgLen);
         apdu.sendBytes((short) 0, msgLen);
         currentAwaited = ProtocolAwaited.AUTH;
@@ -745,44 +797,130 @@ public class Smartcard extends Applet implements Communicator, ISO7816, Extended
      * protocol 5  - Adding kilometerage to smartcard
      */
     public void kilometerageUpdate(APDU apdu) {
-        byte[] receivedKmm = apdu.getBuffer();
-        offset = EAPDU_CDATA_OFFSET;
-
-        int oldKMM = kilometerage;
-
-        kilometerage = getInt(receivedKmm, offset);
-        offset += INT_LEN;
-        int recKmmHashSignLength = getInt(receivedKmm, offset);
-        offset += INT_LEN;
-        byte[] recKmmHashSign = newB(recKmmHashSignLength);
-        memCpy(recKmmHashSign, receivedKmm, offset, recKmmHashSignLength);
-
-        if (!sc.verify(intToByteArray(kilometerage), recKmmHashSign, autoPubSK)) {
+        if (kilometerageKey == null) {
+            errorState("No kilometerage key, the car has not authenticated in this connection");
+            currentAwaited = ProtocolAwaited.PROC;
+            sendErrorAPDU(PROC_FAILED);
+            return;
+        }
+        byte[] buf = apdu.getBuffer();
+        in.wrap(buf, EAPDU_CDATA_OFFSET);
+        int newKMM = in.getInt();
+        //Updates are MACed with the key of this connection; RSA is left for the signed total of the car return
+        if (!kilometerageKey.verifyKilometerageMac(SessionKey.KILOMETERAGE_UPDATE, newKMM, buf, (short) in.position())) {
             manipulation = true;
-            errorState("Hashes do not match in kilometerage update! Potential manipulation!");
+            errorState("MAC does not match in kilometerage update! Potential manipulation!");
             currentAwaited = ProtocolAwaited.PROC;
             sendErrorAPDU(PROC_FAILED);
             return;
         }
-        if (oldKMM >= kilometerage) {
+        //The current total again is a car resending after it lost the reply; confirmed, nothing is counted twice
+        if (kilometerage > newKMM) {
             manipulation = true;
-            kilometerage = oldKMM; //TODO: Is this a security problem? race condition?
             errorState("Old kilometerage is higher than the new kilometerage. Potential manipulation!");
             currentAwaited = ProtocolAwaited.PROC;
             sendErrorAPDU(PROC_FAILED);
+            return;
         }
+        kilometerage = newKMM;
         byte confirmation = (byte) 1;
-        byte[] confirmationArray = {confirmation};
-        byte[] confirmationHash = sc.sign(concatBytes(confirmationArray, intToByteArray(kilometerage)));
         apdu.setOutgoing();
-        byte[] msgBuf = clearBuf(apdu);
-        offset = 0;
-        msgBuf[0] = confirmation;
-        offset += BYTE_LEN;
-        offset += putInt(msgBuf, kilometerage, offset);
-        offset += putInt(msgBuf, confirmationHash.length, offset);
-        put(msgBuf, confirmationHash, offset);
-        short msgLen = (short) (BYTE_LEN + INT_LEN + INT_LEN + confirmationHash.length);
+        out.wrap(clearBuf(apdu), 0).putByte(confirmation).putInt(kilometerage);
+        kilometerageKey.kilometerageMac(SessionKey.KILOMETERAGE_CONFIRMATION, kilometerage, buf, (short) out.position());
+        short msgLen = (short) (out.position() + MAC_LEN);
+        apdu.setOutgoingLength(msgLen);
+        apdu.sendBytes((short) 0, msgLen);
+        currentAwaited = ProtocolAwaited.PROC;
+    }
+
+    /**
+     * Protocol 5, hash chain variant - tells the car the total a new commitment has to start from, MACed like
+     * a confirmed update. The total starts over at every car return, so the car cannot know it by itself.
+     */
+    private void kilometerageTotal(APDU apdu) {
+        if (kilometerageKey == null) {
+            errorState("No kilometerage key, the car has not authenticated in this connection");
+            currentAwaited = ProtocolAwaited.PROC;
+            sendErrorAPDU(PROC_FAILED);
+            return;
+        }
+        byte[] buf = apdu.getBuffer();
+        apdu.setOutgoing();
+        out.wrap(clearBuf(apdu), 0).putByte((byte) 1).putInt(kilometerage);
+        kilometerageKey.kilometerageMac(SessionKey.KILOMETERAGE_CONFIRMATION, kilometerage, buf, (short) out.position());
+        short msgLen = (short) (out.position() + MAC_LEN);
+        apdu.setOutgoingLength(msgLen);
+        apdu.sendBytes((short) 0, msgLen);
+        currentAwaited = ProtocolAwaited.PROC;
+    }
+
+    /**
+     * Protocol 5, hash chain variant - the car commits to the root of a hash chain with one signature
+     * per trip, bound to this card and the kilometerage it starts from
+     */
+    private void kilometerageCommit(APDU apdu) {
+        in.wrap(apdu.getBuffer(), EAPDU_CDATA_OFFSET);
+        short length = in.getShort();
+        byte[] root = in.getBytes(newB(HASH_LEN));
+        int startKMM = in.getInt();
+        byte[] rootHashSign = newB(in.peekBlobLength());
+        in.getBlob(rootHashSign);
+        byte[] rootCmps = newB(SHORT_LEN + HASH_LEN + INT_LEN + ID_LEN);
+        out.wrap(rootCmps, 0).putShort(length).putBytes(root).putInt(startKMM).putBytes(cardID);
+        if (autoPubSK == null || !sc.verify(rootCmps, rootHashSign, autoPubSK)) {
+            manipulation = true;
+            errorState("Invalid signature on odometer commitment! Potential manipulation!");
+            currentAwaited = ProtocolAwaited.PROC;
+            sendErrorAPDU(PROC_FAILED);
+            return;
+        }
+        if (startKMM != kilometerage || length <= 0) {
+            errorState("Odometer commitment does not start at the kilometerage of the card");
+            currentAwaited = ProtocolAwaited.PROC;
+            sendErrorAPDU(PROC_FAILED);
+            return;
+        }
+        chainLink = root;
+        chainRemaining = length;
+        currentAwaited = ProtocolAwaited.PROC;
+    }
+
+    /**
+     * Protocol 5, hash chain variant - the car proves steps more kilometres by revealing the link that many
+     * steps past the last one; checking it costs one SHA-256 per kilometre and no RSA
+     */
+    private void kilometerageChainUpdate(APDU apdu) {
+        in.wrap(apdu.getBuffer(), EAPDU_CDATA_OFFSET);
+        short steps = in.getShort();
+        byte[] preimage = in.getBytes(newB(HASH_LEN));
+        //The link accepted last time again is a car resending after it lost the reply, it is only confirmed
+        if (chainLink != null && Util.arrayCompare(preimage, (short) 0, chainLink, (short) 0, HASH_LEN) == 0) {
+            kilometerageChainConfirm(apdu);
+            return;
+        }
+        if (chainLink == null || steps <= 0 || steps > chainRemaining) {
+            errorState("No odometer commitment covers this kilometerage update");
+            currentAwaited = ProtocolAwaited.PROC;
+            sendErrorAPDU(PROC_FAILED);
+            return;
+        }
+        if (!hashChain.follows(chainLink, preimage, steps)) {
+            manipulation = true;
+            errorState("Odometer hash chain broken in kilometerage update! Potential manipulation!");
+            currentAwaited = ProtocolAwaited.PROC;
+            sendErrorAPDU(PROC_FAILED);
+            return;
+        }
+        chainLink = preimage;
+        chainRemaining -= steps;
+        kilometerage += steps;
+        kilometerageChainConfirm(apdu);
+    }
+
+    private void kilometerageChainConfirm(APDU apdu) {
+        apdu.setOutgoing();
+        out.wrap(clearBuf(apdu), 0).putByte((byte) 1).putInt(kilometerage);
+        short msgLen = (short) out.position();
         apdu.setOutgoingLength(msgLen);
         apdu.sendBytes((short) 0, msgLen);
         currentAwaited = ProtocolAwaited.PROC;
@@ -820,15 +958,9 @@ public class Smartcard extends Applet implements Communicator, ISO7816, Extended
         byte[] car_return = "Car Return".getBytes(StandardCharsets.UTF_8);
         byte[] msg1Hash = sc.sign(concatBytes(car_return, shortToByteArray(seqNum1), booleanToByteArray(manipulation)));
         apdu.setOutgoing();
-        byte[] msgBuf = clearBuf(apdu);
-        byte[] manByte = booleanToByteArray(manipulation);
-        offset = 0;
-        offset += put(msgBuf, car_return, offset);
-        offset += putShort(msgBuf, seqNum1, offset);
-        offset += put(msgBuf, manByte, offset);
-        offset += putInt(msgBuf, msg1Hash.length, offset);
-        put(msgBuf, msg1Hash, offset);
-        short msgLen = (short) (car_return.length + NONCE_LEN + BYTE_LEN + INT_LEN + msg1Hash.length);
+        out.wrap(clearBuf(apdu), 0).putBytes(car_return).putShort(seqNum1)
+                .putByte(manipulation ? Byte.MAX_VALUE : 0x00).putBlob(msg1Hash);
+        short msgLen = (short) out.position();
         apdu.setOutgoingLength(msgLen);
         apdu.sendBytes((short) 0, msgLen);
         currentAwaited = ProtocolAwaited.CRET2;
@@ -866,17 +998,12 @@ public class Smartcard extends Applet implements Communicator, ISO7816, Extended
      * Protocol 4 - Car return and kilometerage check
      */
     private void carReturnM2(APDU apdu) {
-        byte[] msg2 = apdu.getBuffer();
-        offset = EAPDU_CDATA_OFFSET;
+        in.wrap(apdu.getBuffer(), EAPDU_CDATA_OFFSET);
         short seqNum1 = (short) (nonceReception + 1);
-        short kmmNonce = getShort(msg2, offset);
-        offset += NONCE_LEN;
-        short seqNum2 = getShort(msg2, offset);
-        offset += NONCE_LEN;
-        int lengthHash = getInt(msg2, offset);
-        offset += INT_LEN;
-        byte[] hash = newB(lengthHash);
-        memCpy(hash, msg2, offset, lengthHash);
+        short kmmNonce = in.getShort();
+        short seqNum2 = in.getShort();
+        byte[] hash = newB(in.peekBlobLength());
+        in.getBlob(hash);
         if (!sc.areSubsequentNonces(nonceCard, seqNum2)) {
             errorState("Wrong sequence number in carReturn message 2");
             currentAwaited = ProtocolAwaited.PROC;
@@ -894,14 +1021,8 @@ public class Smartcard extends Applet implements Communicator, ISO7816, Extended
         }
         byte[] msg3Hash = sc.sign(concatBytes(intToByteArray(kilometerage), shortToByteArray(kmmNonce), shortToByteArray((short) (seqNum1 + 1))));
         apdu.setOutgoing();
-        byte[] msgBuf = clearBuf(apdu);
-        offset = 0;
-        offset += putInt(msgBuf, kilometerage, offset);
-        offset += putShort(msgBuf, kmmNonce, offset);
-        offset += putShort(msgBuf, ((short) (seqNum1 + 1)), offset);
-        offset += putInt(msgBuf, msg3Hash.length, offset);
-        put(msgBuf, msg3Hash, offset);
-        short msgLen = (short) (INT_LEN + NONCE_LEN + NONCE_LEN + INT_LEN + msg3Hash.length);
+        out.wrap(clearBuf(apdu), 0).putInt(kilometerage).putShort(kmmNonce).putShort((short) (seqNum1 + 1)).putBlob(msg3Hash);
+        short msgLen = (short) out.position();
         apdu.setOutgoingLength(msgLen);
         apdu.sendBytes((short) 0, msgLen);
         kilometerage = 0;
@@ -909,6 +1030,8 @@ public class Smartcard extends Applet implements Communicator, ISO7816, Extended
         state = States.ASSIGNED_NONE;
         autoID = null;
         autoPubSK = null;
+        endSession(session);
+        session = null;
         currentAwaited = ProtocolAwaited.CRETS;
 
     }
@@ -945,29 +1068,24 @@ public class Smartcard extends Applet implements Communicator, ISO7816, Extended
      * Protocol 4 - Car return and kilometerage check
      */
     private void carReturnMS(APDU apdu) {
-        byte[] succMsg = apdu.getBuffer();
-        offset = EAPDU_CDATA_OFFSET;
+        in.wrap(apdu.getBuffer(), EAPDU_CDATA_OFFSET);
 
-        byte success = succMsg[offset];
-        offset++;
+        byte success = in.getByte();
         if (success != SUCCESS_BYTE) {
             errorState("Wrong code, expected 0xFF");
             currentAwaited = ProtocolAwaited.PROC;
             sendErrorAPDU(PROC_FAILED);
             return;
         }
-        short succNonce = getShort(succMsg, offset);
-        offset += NONCE_LEN;
+        short succNonce = in.getShort();
         if (!sc.areSubsequentNonces(nonceCard, succNonce, 2)) {
             errorState("Wrong sequence number in success message of P4");
             currentAwaited = ProtocolAwaited.PROC;
             sendErrorAPDU(PROC_FAILED);
             return;
         }
-        int hashLength = getInt(succMsg, offset);
-        offset += INT_LEN;
-        byte[] signedSuccHash = newB(hashLength);
-        memCpy(signedSuccHash, succMsg, offset, hashLength);
+        byte[] signedSuccHash = newB(in.peekBlobLength());
+        in.getBlob(signedSuccHash);
         byte[] msgCmps = newB(BYTE_LEN + NONCE_LEN);
         msgCmps[0] = success;
         putShort(msgCmps, succNonce, BYTE_LEN);
@@ -1013,6 +1131,7 @@ public class Smartcard extends Applet implements Communicator, ISO7816, Extended
         PROC,   //card waits for a processing protocol (assignment, kmmUpdate, carReturn)
         INS2,   //card has started Insert        Protocol and is waiting for message 2
         INSS,   //card has started Insert        Protocol and is waiting for success message
+        INSR2,  //card has started Insert resume Protocol and is waiting for message 2
         AUTHR2, //card has started authReception Protocol and is waiting for message 2
         AUTHRS, //card has started authReception Protocol and is waiting for success message
         CASS2,  //card has started carAssignment Protocol and is waiting for message 2
@@ -1030,6 +1149,12 @@ public class Smartcard extends Applet implements Communicator, ISO7816, Extended
             super.certificate = cardCertificate;
             super.rc = new SmartCardWallet();
             ((KeyWallet) super.rc).storePrivateKey(privateKey);
+            super.certificates = new CertificateCache(CertificateCache.CARD_CAPACITY);
+        }
+
+        @Override
+        protected byte[] certificateComponents(byte[] pubKey, byte[] id) {
+            return concatBytes(pubKey, id);
         }
 
         private class SmartCardWallet extends RSACrypto implements KeyWallet {
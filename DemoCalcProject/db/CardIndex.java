@@ -0,0 +1,224 @@
+package db;
+
+import Interfaces.ProtocolComponentLengths;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In-memory set of the IDs of all valid (not blocked) cards, so {@link Database#isBlocked} needs no query.
+ * An ID of {@link ProtocolComponentLengths#ID_LEN} bytes fits in a long, which is kept in an open addressing
+ * table without boxing. A Bloom filter in front of it rejects most unknown IDs after a few bit tests.
+ * Removed IDs stay in the Bloom filter until it is rebuilt, which happens once they make up half of it.
+ *
+ * @author Egidius Mysliwietz
+ */
+public class CardIndex implements ProtocolComponentLengths {
+    private static final int BLOOM_HASHES = 3;
+    private static final int BLOOM_BITS_PER_ID = 16;
+    private static final long EMPTY = -1L; //IDs use 40 bits, so no ID maps to -1
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private long[] table;
+    private int size = 0;
+    private long[] bloom;
+    private int bloomRemoved = 0;
+    private final AtomicLong bloomRejects = new AtomicLong();
+
+    public CardIndex(int expectedCards) {
+        table = newTable(tableCapacity(expectedCards));
+        bloom = new long[bloomWords(expectedCards)];
+    }
+
+    /**
+     * @return true if cardID belongs to a valid card
+     */
+    public boolean contains(byte[] cardID) {
+        if (!isID(cardID)) {
+            return false;
+        }
+        long key = toKey(cardID);
+        lock.readLock().lock();
+        try {
+            if (!mightContain(key)) {
+                bloomRejects.incrementAndGet();
+                return false;
+            }
+            return slot(table, key) >= 0;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Ignores anything that is not an ID of {@link ProtocolComponentLengths#ID_LEN} bytes
+     */
+    public void add(byte[] cardID) {
+        if (!isID(cardID)) {
+            return;
+        }
+        long key = toKey(cardID);
+        lock.writeLock().lock();
+        try {
+            if (slot(table, key) >= 0) {
+                return;
+            }
+            if (2 * (size + 1) > table.length) {
+                rehash(table.length * 2);
+            }
+            insert(table, key);
+            size++;
+            if (size * BLOOM_BITS_PER_ID > bloom.length * Long.SIZE) {
+                rebuildBloom();
+            } else {
+                setBloom(key);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void remove(byte[] cardID) {
+        if (!isID(cardID)) {
+            return;
+        }
+        long key = toKey(cardID);
+        lock.writeLock().lock();
+        try {
+            int i = slot(table, key);
+            if (i < 0) {
+                return;
+            }
+            table[i] = EMPTY;
+            size--;
+            //Re-insert the rest of the probe run so lookups do not stop at the gap
+            int mask = table.length - 1;
+            for (int j = (i + 1) & mask; table[j] != EMPTY; j = (j + 1) & mask) {
+                long moved = table[j];
+                table[j] = EMPTY;
+                insert(table, moved);
+            }
+            if (++bloomRemoved > size) {
+                rebuildBloom();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return number of lookups answered by the Bloom filter alone
+     */
+    public long getBloomRejects() {
+        return bloomRejects.get();
+    }
+
+    //IDs can come from a request payload, e.g. BLOCK, whose length nobody checked
+    private static boolean isID(byte[] cardID) {
+        return cardID != null && cardID.length == ID_LEN;
+    }
+
+    private static long toKey(byte[] cardID) {
+        long key = 0;
+        for (int i = 0; i < ID_LEN; i++) {
+            key = (key << BYTE_BIT_LEN) | (cardID[i] & 0xFF);
+        }
+        return key;
+    }
+
+    private static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        return key ^ (key >>> 33);
+    }
+
+    private static int slot(long[] table, long key) {
+        int mask = table.length - 1;
+        for (int i = (int) mix(key) & mask; table[i] != EMPTY; i = (i + 1) & mask) {
+            if (table[i] == key) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static void insert(long[] table, long key) {
+        int mask = table.length - 1;
+        int i = (int) mix(key) & mask;
+        while (table[i] != EMPTY) {
+            i = (i + 1) & mask;
+        }
+        table[i] = key;
+    }
+
+    private void rehash(int capacity) {
+        long[] grown = newTable(capacity);
+        for (long key : table) {
+            if (key != EMPTY) {
+                insert(grown, key);
+            }
+        }
+        table = grown;
+    }
+
+    private boolean mightContain(long key) {
+        long h = mix(key);
+        int bits = bloom.length * Long.SIZE;
+        for (int k = 0; k < BLOOM_HASHES; k++) {
+            int bit = (int) Long.remainderUnsigned(h + k * (h >>> 32), bits);
+            if ((bloom[bit >>> 6] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void setBloom(long key) {
+        long h = mix(key);
+        int bits = bloom.length * Long.SIZE;
+        for (int k = 0; k < BLOOM_HASHES; k++) {
+            int bit = (int) Long.remainderUnsigned(h + k * (h >>> 32), bits);
+            bloom[bit >>> 6] |= 1L << bit;
+        }
+    }
+
+    private void rebuildBloom() {
+        bloom = new long[bloomWords(2 * size)];
+        bloomRemoved = 0;
+        for (long key : table) {
+            if (key != EMPTY) {
+                setBloom(key);
+            }
+        }
+    }
+
+    private static int bloomWords(int cards) {
+        return Math.max(1, (Math.max(cards, 16) * BLOOM_BITS_PER_ID + Long.SIZE - 1) / Long.SIZE);
+    }
+
+    private static int tableCapacity(int cards) {
+        int capacity = 16;
+        while (capacity < 2 * cards) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    private static long[] newTable(int capacity) {
+        long[] t = new long[capacity];
+        Arrays.fill(t, EMPTY);
+        return t;
+    }
+}
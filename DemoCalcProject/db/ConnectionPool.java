@@ -0,0 +1,135 @@
+package db;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fixed number of SQLite connections to one database file. The database runs in WAL mode, so reads on one
+ * connection go on while another writes; writers still take turns, waiting up to {@link #BUSY_TIMEOUT} ms.
+ * Each connection keeps the statements prepared on it, so the queries the protocols run on every card are
+ * compiled once per connection instead of once per call.
+ *
+ * @author Egidius Mysliwietz
+ */
+public class ConnectionPool implements AutoCloseable {
+    public static final int DEFAULT_SIZE = 4;
+    public static final int BUSY_TIMEOUT /* ms */ = 5000;
+    private static final int ACQUIRE_TIMEOUT /* ms */ = 10000;
+
+    private final ArrayBlockingQueue<PooledConnection> idle;
+    private final List<PooledConnection> all = new ArrayList<>();
+
+    public ConnectionPool(String url, int size) throws SQLException {
+        idle = new ArrayBlockingQueue<>(Math.max(1, size));
+        for (int i = 0; i < Math.max(1, size); i++) {
+            PooledConnection connection = new PooledConnection(DriverManager.getConnection(url));
+            all.add(connection);
+            idle.add(connection);
+        }
+    }
+
+    /**
+     * Borrows a connection until it is closed; waits if all connections are in use.
+     */
+    public PooledConnection acquire() throws SQLException {
+        PooledConnection connection;
+        try {
+            connection = idle.poll(ACQUIRE_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a database connection");
+        }
+        if (connection == null) {
+            throw new SQLException("No database connection available");
+        }
+        return connection;
+    }
+
+    public int size() {
+        return all.size();
+    }
+
+    public int available() {
+        return idle.size();
+    }
+
+    @Override
+    public void close() {
+        for (PooledConnection connection : all) {
+            connection.closeConnection();
+        }
+    }
+
+    public final class PooledConnection implements AutoCloseable {
+        private final Connection connection;
+        private final HashMap<String, PreparedStatement> statements = new HashMap<>();
+
+        private PooledConnection(Connection connection) throws SQLException {
+            this.connection = connection;
+            try (Statement s = connection.createStatement()) {
+                //WAL persists in the file, the other settings hold per connection
+                s.execute("PRAGMA journal_mode = WAL");
+                //NORMAL only syncs at checkpoints in WAL mode; a power loss can lose the last commits, not corrupt
+                s.execute("PRAGMA synchronous = NORMAL");
+                s.execute("PRAGMA busy_timeout = " + BUSY_TIMEOUT);
+                s.execute("PRAGMA temp_store = MEMORY");
+            }
+        }
+
+        public Connection getConnection() {
+            return connection;
+        }
+
+        /**
+         * @return the statement prepared for sql on this connection, with its parameters cleared.
+         * It belongs to the connection, do not close it.
+         */
+        public PreparedStatement prepare(String sql) throws SQLException {
+            PreparedStatement statement = statements.get(sql);
+            if (statement == null || statement.isClosed()) {
+                statement = connection.prepareStatement(sql);
+                statements.put(sql, statement);
+            } else {
+                statement.clearParameters();
+            }
+            return statement;
+        }
+
+        /**
+         * Returns the connection to the pool.
+         */
+        @Override
+        public void close() {
+            try {
+                if (!connection.getAutoCommit()) {
+                    //Whoever borrowed it left a transaction open
+                    connection.rollback();
+                    connection.setAutoCommit(true);
+                }
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+            idle.offer(this);
+        }
+
+        private void closeConnection() {
+            try {
+                for (PreparedStatement statement : statements.values()) {
+                    statement.close();
+                }
+                statements.clear();
+                connection.close();
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
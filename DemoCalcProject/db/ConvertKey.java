@@ -14,6 +14,7 @@ import java.security.NoSuchAlgorithmException;
  * @author Alessandra van Veen
  */
 public class ConvertKey implements Communicator {
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
     protected KeyFactory factory;
     short offset;
 
@@ -63,16 +64,28 @@ public class ConvertKey implements Communicator {
         return str_pubkey;*/
     }
 
+    /**
+     * Readable form of bytes, e.g. for confirmation messages; the database stores the bytes themselves
+     */
     public String toHexString(byte[] bytes) {
-        StringBuilder sb = new StringBuilder();
-        for (byte b : bytes) {
-            sb.append(String.format("%02X ", b)); //Do not remove the space.
+        char[] chars = new char[3 * bytes.length];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[3 * i] = HEX_DIGITS[(bytes[i] >> 4) & 0xF];
+            chars[3 * i + 1] = HEX_DIGITS[bytes[i] & 0xF];
+            chars[3 * i + 2] = ' '; //Do not remove the space.
         }
-        return sb.toString();
+        return new String(chars);
     }
 
+    /**
+     * Inverse of {@link #toHexString}, used to migrate databases that stored hex text
+     */
     public byte[] fromHexString(String str) {
-        String[] str0 = str.split(" ");
+        String trimmed = str.trim();
+        if (trimmed.isEmpty()) {
+            return new byte[0];
+        }
+        String[] str0 = trimmed.split(" +");
         byte[] b = new byte[str0.length];
         for (int i = 0; i < str0.length; i++) {
             b[i] = (byte) ((short) Short.valueOf(str0[i], 16));
@@ -1,8 +1,12 @@
 package db;
 
 import Auto.Auto;
+import Interfaces.BufferPool;
 import Interfaces.CommunicatorExtended;
 import Interfaces.KeyWallet;
+import Interfaces.Receivable;
+import Interfaces.RequestChannel;
+import Interfaces.RequestHandler;
 import Smartcard.Smartcard;
 import com.licel.jcardsim.io.JavaxSmartCardInterface;
 import com.licel.jcardsim.smartcardio.CardSimulator;
@@ -14,12 +18,22 @@ import javafx.application.Application;
 import receptionTerminal.ReceptionTerminal;
 import rsa.CryptoImplementationExtended;
 import rsa.RSACrypto;
+import utility.Logger;
+import utility.ProtocolExecutor;
 
 import java.io.File;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.sql.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
 
 /**
  * @author Matti Eisenlohr
@@ -27,7 +41,7 @@ import java.util.UUID;
  * @author Laura Philipse
  * @author Alessandra van Veen
  */
-public class Database extends CommunicatorExtended {
+public class Database extends CommunicatorExtended implements RequestHandler {
 
     public PublicKey dbPubSK;
     protected PrivateKey dbPrivSK;
@@ -35,29 +49,60 @@ public class Database extends CommunicatorExtended {
     protected DatabaseCrypto dc;
     ConvertKey conv = new ConvertKey();
     CardSimulator smartcard = new CardSimulator();
-    private Connection conn;
+    private final ConnectionPool connections;
+    public static final int CARD_PAGE_SIZE = 20;
+    //Entities written with one JDBC batch by the bulk generate methods
+    public static final int PROVISIONING_BATCH = 500;
+    private final KeyPairPool keyPairs;
+    private final CardIndex validCards;
+    //IDs of the autos that are not rented out, mirrors autos.available
+    private final ConcurrentLinkedQueue<byte[]> freeCars = new ConcurrentLinkedQueue<>();
+    private int provisioningBatch = PROVISIONING_BATCH;
 
+    /**
+     * Progress of a bulk generation, called after every batch that has been written
+     */
+    public interface ProvisioningListener {
+        void progress(int written, int total);
+    }
 
     public Database() {
-        conn = null;
+        this(KeyPairPool.DEFAULT_DEPTH);
+    }
+
+    /**
+     * @param keyPoolDepth number of key pairs generated ahead of time for new cards, cars and terminals
+     */
+    public Database(int keyPoolDepth) {
+        this("jdbc:sqlite:" + new File("").getAbsolutePath().replace("\\", "\\\\") + "/DemoCalcProject/db/CarCompany.db",
+                keyPoolDepth);
+    }
+
+    /**
+     * @param url JDBC URL of the SQLite database, e.g. a temporary file in tests
+     */
+    public Database(String url, int keyPoolDepth) {
+        ConnectionPool pool = null;
         try {
             Class.forName("org.sqlite.JDBC");
-            File currentDir = new File("");
-            String url = "jdbc:sqlite:" + currentDir.getAbsolutePath().replace("\\", "\\\\") +
-                    "/DemoCalcProject/db/CarCompany.db";
-            conn = DriverManager.getConnection(url);
+            pool = new ConnectionPool(url, ConnectionPool.DEFAULT_SIZE);
         } catch (Exception e) {
             System.err.println(e.getClass().getName() + ": " + e.getMessage());
             System.exit(0);
         }
+        connections = pool;
 
         createDatabase();
         setKeys();
+        logger = new Logger(new File(Base64.getEncoder().encodeToString(databaseID) + "_database_log.log"));
         clearAutos(); //Clear autos otherwise program may crash
+        validCards = loadCardIndex();
+        loadFreeCars();
 
         dc = new DatabaseCrypto(databaseID, null);
         byte[] dbCERT = issueCertificate(dbPubSK, databaseID, dbPrivSK); //rc = null
         dc.setCertificate(dbCERT);
+        keyPairs = new KeyPairPool(keyPoolDepth, KeyPairPool.DEFAULT_WORKERS, this::generateKeyPair);
     }
 
     public static void main(String[] args) {
@@ -70,51 +115,161 @@ public class Database extends CommunicatorExtended {
     }
 
     /**
-     * Creates the necessary tables for the database if they are not present
+     * Schema version kept in PRAGMA user_version: 0 stored ids, keys and certificates as hex text, 1 as BLOB,
+     * 2 added the indexed availability of autos
+     */
+    private static final int SCHEMA_VERSION = 2;
+    private static final String[][] TABLES = {
+            {"autos", "CREATE TABLE IF NOT EXISTS autos(\n" +
+                    "\t\"id\"\tblob UNIQUE,\n" +
+                    "\t\"publickey\"\tblob NOT NULL,\n" +
+                    "\t\"certificate\"\tblob NOT NULL,\n" +
+                    "\t\"available\"\tinteger NOT NULL DEFAULT 1,\n" +
+                    "\tPRIMARY KEY(\"id\")\n" +
+                    ");"},
+            {"cards", "CREATE TABLE IF NOT EXISTS \"cards\" (\n" +
+                    "\t\"id\"\tblob UNIQUE,\n" +
+                    "\t\"publickey\"\tblob NOT NULL,\n" +
+                    "\t\"certificate\"\tblob NOT NULL,\n" +
+                    "\tPRIMARY KEY(\"id\")\n" +
+                    ");"},
+            {"database", "CREATE TABLE IF NOT EXISTS \"database\" (\n" +
+                    "\t\"publickey\"\tBLOB,\n" +
+                    "\t\"privatekey\"\tBLOB,\n" +
+                    "\t\"id\"\tBLOB UNIQUE,\n" +
+                    "\tPRIMARY KEY(\"id\")\n" +
+                    ");"},
+            {"rentRelations", "CREATE TABLE IF NOT EXISTS \"rentRelations\" (\n" +
+                    "\t\"cardID\"\tblob,\n" +
+                    "\t\"autoID\"\tblob NOT NULL,\n" +
+                    "\tPRIMARY KEY(\"cardID\")\n" +
+                    ");"},
+            {"terminals", "CREATE TABLE IF NOT EXISTS \"terminals\" (\n" +
+                    "\t\"id\"\tblob UNIQUE,\n" +
+                    "\t\"publickey\"\tblob NOT NULL,\n" +
+                    "\t\"certificate\"\tblob NOT NULL,\n" +
+                    "\tPRIMARY KEY(\"id\")\n" +
+                    ");"}
+    };
+    private static final String INDEX_AVAILABLE_AUTOS = "CREATE INDEX IF NOT EXISTS autos_available ON autos(available)";
+
+    /**
+     * Creates the necessary tables for the database if they are not present, and migrates databases written
+     * by an older version of the schema
      */
     public void createDatabase() {
-        String tableAutos = "CREATE TABLE IF NOT EXISTS autos(\n" +
-                "\t\"id\"\ttext UNIQUE,\n" +
-                "\t\"publickey\"\ttext NOT NULL,\n" +
-                "\t\"certificate\"\ttext NOT NULL,\n" +
-                "\tPRIMARY KEY(\"id\")\n" +
-                ");";
-        String tableCards = "CREATE TABLE IF NOT EXISTS \"cards\" (\n" +
-                "\t\"id\"\ttext UNIQUE,\n" +
-                "\t\"publickey\"\ttext NOT NULL,\n" +
-                "\t\"certificate\"\ttext NOT NULL,\n" +
-                "\tPRIMARY KEY(\"id\")\n" +
-                ");";
-        String tabledatabase = "CREATE TABLE IF NOT EXISTS \"database\" (\n" +
-                "\t\"publickey\"\tTEXT,\n" +
-                "\t\"privatekey\"\tTEXT,\n" +
-                "\t\"id\"\tTEXT UNIQUE,\n" +
-                "\tPRIMARY KEY(\"id\")\n" +
-                ");";
-        String tableRelations = "CREATE TABLE IF NOT EXISTS \"rentRelations\" (\n" +
-                "\t\"cardID\"\ttext,\n" +
-                "\t\"autoID\"\ttext NOT NULL,\n" +
-                "\tPRIMARY KEY(\"cardID\")\n" +
-                ");";
-        String tableTerminals = "CREATE TABLE IF NOT EXISTS \"terminals\" (\n" +
-                "\t\"id\"\ttext UNIQUE,\n" +
-                "\t\"publickey\"\ttext NOT NULL,\n" +
-                "\t\"certificate\"\ttext NOT NULL,\n" +
-                "\tPRIMARY KEY(\"id\")\n" +
-                ");";
-        Statement s = null;
-        try {
-            s = conn.createStatement();
-            s.addBatch(tableAutos);
-            s.addBatch(tableCards);
-            s.addBatch(tabledatabase);
-            s.addBatch(tableRelations);
-            s.addBatch(tableTerminals);
+        try (ConnectionPool.PooledConnection c = connections.acquire();
+             Statement s = c.getConnection().createStatement()) {
+            for (String[] table : TABLES) {
+                s.addBatch(table[1]);
+            }
             s.executeBatch();
+            migrateDatabase(c.getConnection());
+            s.execute(INDEX_AVAILABLE_AUTOS);
         } catch (SQLException throwables) {
             throwables.printStackTrace();
         }
+    }
+
+    /**
+     * Brings a database of an older schema version up to date, in one transaction
+     */
+    private void migrateDatabase(Connection conn) {
+        try (Statement s = conn.createStatement()) {
+            int version;
+            try (ResultSet rs = s.executeQuery("PRAGMA user_version")) {
+                version = rs.getInt(1);
+            }
+            if (version >= SCHEMA_VERSION) {
+                return;
+            }
+            conn.setAutoCommit(false);
+            try {
+                //Version 1: hex text columns to BLOB
+                for (String[] table : TABLES) {
+                    if (hasTextColumns(conn, table[0])) {
+                        migrateToBlob(conn, table[0], table[1]);
+                    }
+                }
+                //Version 2: availability of autos, set from rentRelations by loadFreeCars
+                if (!hasColumn(conn, "autos", "available")) {
+                    s.execute("ALTER TABLE autos ADD COLUMN \"available\" integer NOT NULL DEFAULT 1");
+                }
+                s.execute("PRAGMA user_version = " + SCHEMA_VERSION);
+                conn.commit();
+            } catch (SQLException | RuntimeException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        } catch (SQLException | RuntimeException e) {
+            System.err.println("Could not migrate database: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    private boolean hasColumn(Connection conn, String table, String column) throws SQLException {
+        try (Statement s = conn.createStatement();
+             ResultSet rs = s.executeQuery("PRAGMA table_info(\"" + table + "\")")) {
+            while (rs.next()) {
+                if (column.equalsIgnoreCase(rs.getString("name"))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private boolean hasTextColumns(Connection conn, String table) throws SQLException {
+        try (Statement s = conn.createStatement();
+             ResultSet rs = s.executeQuery("PRAGMA table_info(\"" + table + "\")")) {
+            while (rs.next()) {
+                if ("text".equalsIgnoreCase(rs.getString("type"))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
 
+    /**
+     * Every column of the old schema holds bytes as written by {@link ConvertKey#toHexString}
+     */
+    private void migrateToBlob(Connection conn, String table, String createTable) throws SQLException {
+        String old = table + "_text";
+        try (Statement s = conn.createStatement()) {
+            s.execute("ALTER TABLE \"" + table + "\" RENAME TO \"" + old + "\"");
+            s.execute(createTable);
+            try (ResultSet rs = s.executeQuery("SELECT * FROM \"" + old + "\"")) {
+                int columns = rs.getMetaData().getColumnCount();
+                StringBuilder names = new StringBuilder();
+                StringBuilder params = new StringBuilder();
+                for (int i = 1; i <= columns; i++) {
+                    names.append(i > 1 ? "," : "").append('"').append(rs.getMetaData().getColumnName(i)).append('"');
+                    params.append(i > 1 ? "," : "").append('?');
+                }
+                String insert = "INSERT INTO \"" + table + "\"(" + names + ") VALUES(" + params + ")";
+                try (PreparedStatement pstmt = conn.prepareStatement(insert)) {
+                    int rows = 0;
+                    while (rs.next()) {
+                        for (int i = 1; i <= columns; i++) {
+                            String hex = rs.getString(i);
+                            if (hex == null) {
+                                pstmt.setNull(i, Types.BLOB);
+                            } else {
+                                pstmt.setBytes(i, conv.fromHexString(hex));
+                            }
+                        }
+                        pstmt.addBatch();
+                        rows++;
+                    }
+                    pstmt.executeBatch();
+                    System.out.println("Migrated " + rows + " rows of " + table + " to BLOB columns");
+                }
+            }
+            s.execute("DROP TABLE \"" + old + "\"");
+        }
     }
 
     public Object[] generateKeyPair() {
@@ -128,6 +283,10 @@ public class Database extends CommunicatorExtended {
         return keyPair;
     }
 
+    public KeyPairPool getKeyPairPool() {
+        return keyPairs;
+    }
+
     /**
      * @return byte array of shape: 0-127: Encoded public key; 128-132: id, 133-136: length of signed hash, 137-end: signed hash
      */
@@ -149,11 +308,11 @@ public class Database extends CommunicatorExtended {
      * Get and set the database keys and id
      */
     private void setKeys() {
-        ConvertKey conv = new ConvertKey();
         String sqlGetKeys = "SELECT db.* FROM database db LIMIT 1";
 
         try (
-                Statement stmt = conn.createStatement();
+                ConnectionPool.PooledConnection c = connections.acquire();
+                Statement stmt = c.getConnection().createStatement();
                 ResultSet rs = stmt.executeQuery(sqlGetKeys)) {
             if (!rs.next()) { //Generate keys if they do not exist yet
                 Object[] dbKeyPair = generateKeyPair();
@@ -164,19 +323,59 @@ public class Database extends CommunicatorExtended {
                 //Store keys in database
                 String sqlSetKeys = "INSERT INTO database(id, publickey, privatekey) VALUES(?,?,?)";
 
-                try (PreparedStatement pstmt = conn.prepareStatement((sqlSetKeys))) {
-                    pstmt.setString(1, conv.toHexString(databaseID));
-                    pstmt.setString(2, conv.publicToString(dbPubSK));
-                    pstmt.setString(3, conv.privateToString(dbPrivSK));
+                try (PreparedStatement pstmt = c.getConnection().prepareStatement((sqlSetKeys))) {
+                    pstmt.setBytes(1, databaseID);
+                    pstmt.setBytes(2, pubkToBytes(dbPubSK));
+                    pstmt.setBytes(3, privkToBytes(dbPrivSK));
                     pstmt.executeUpdate();
                 } catch (SQLException e) {
                     System.out.println(e.getMessage());
                 }
 
             } else { //Otherwise, grab them from the database
-                dbPubSK = conv.stringToPublic(rs.getString("publickey"));
-                dbPrivSK = conv.stringToPrivate(rs.getString("privatekey"));
-                databaseID = rs.getString("id").getBytes();
+                dbPubSK = bytesToPubkey(rs.getBytes("publickey"));
+                dbPrivSK = bytesToPrivkey(rs.getBytes("privatekey"));
+                databaseID = rs.getBytes("id");
+            }
+        } catch (SQLException throwables) {
+            throwables.printStackTrace();
+        }
+    }
+
+    /**
+     * Reads the IDs of all cards into memory, isBlocked answers from there afterwards
+     */
+    private CardIndex loadCardIndex() {
+        CardIndex index = null;
+        try (ConnectionPool.PooledConnection c = connections.acquire();
+             Statement stmt = c.getConnection().createStatement()) {
+            try (ResultSet rs = stmt.executeQuery("SELECT COUNT(id) FROM cards")) {
+                index = new CardIndex(rs.getInt(1));
+            }
+            try (ResultSet rs = stmt.executeQuery("SELECT id FROM cards")) {
+                while (rs.next()) {
+                    index.add(rs.getBytes("id"));
+                }
+            }
+        } catch (SQLException throwables) {
+            throwables.printStackTrace();
+        }
+        return index != null ? index : new CardIndex(0);
+    }
+
+    /**
+     * Marks the autos without a rent relation as available and queues them for carAssign
+     */
+    private void loadFreeCars() {
+        String sqlReconcile = "UPDATE autos SET available = (id NOT IN (SELECT autoID FROM rentRelations))";
+        String sqlFreeCars = "SELECT id FROM autos WHERE available = 1";
+        try (ConnectionPool.PooledConnection c = connections.acquire();
+             Statement stmt = c.getConnection().createStatement()) {
+            stmt.executeUpdate(sqlReconcile);
+            try (ResultSet rs = stmt.executeQuery(sqlFreeCars)) {
+                while (rs.next()) {
+                    freeCars.offer(rs.getBytes("id"));
+                }
             }
         } catch (SQLException throwables) {
             throwables.printStackTrace();
@@ -185,7 +384,8 @@ public class Database extends CommunicatorExtended {
 
     private void clearAutos() {
         String sql = "DELETE FROM autos";
-        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+        try (ConnectionPool.PooledConnection c = connections.acquire();
+             PreparedStatement pstmt = c.getConnection().prepareStatement(sql)) {
             // execute the delete statement
             pstmt.executeUpdate();
 
@@ -194,149 +394,230 @@ public class Database extends CommunicatorExtended {
         }
     }
 
+    @Override
+    public void handleRequest(Receivable replyTo, byte[] request) {
+        if (request == null || request.length < RequestChannel.REQUEST_HEADER_LEN) {
+            //Without a correlation ID there is nobody to reply to
+            errorState("Request without header dropped");
+            return;
+        }
+        ProtocolExecutor.execute(() -> replyTo.receiveReply(serve(request)));
+    }
+
     /**
-     * assign a car to the cardID and send the car info to the terminal
+     * Executes one request and frames the reply with the request's correlation ID.
      */
-    public void carAssign(ReceptionTerminal reception) {
-        ByteBuffer response;
+    private byte[] serve(byte[] request) {
+        int correlationID = RequestChannel.correlationID(request);
+        //Whatever goes wrong, the requester gets a reply instead of waiting out its timeout
         try {
-            response = waitForInput();
-        } catch (MessageTimeoutException e) {
+            return serve(correlationID, request);
+        } catch (RuntimeException e) {
             e.printStackTrace();
-            errorState("Waiting for response carAssign");
-            return;
+            errorState("Request could not be served");
+            return RequestChannel.failure(correlationID, "Database could not serve the request");
         }
+    }
 
-
+    private byte[] serve(int correlationID, byte[] request) {
+        ByteBuffer payload = RequestChannel.payload(request);
+        if (payload.remaining() < ID_LEN) {
+            return RequestChannel.failure(correlationID, "Malformed request");
+        }
         byte[] cardID = new byte[ID_LEN];
-        response.get(cardID, 0, ID_LEN);//Get card ID so DB knows which car is assigned to which card
-
-        String autoID = null;
+        payload.get(cardID, 0, ID_LEN);
+        byte[] reply;
+        switch (RequestChannel.operation(request)) {
+            case CAR_ASSIGNMENT_START:
+                reply = carAssign(cardID);
+                break;
+            case CAR_RETURN_START:
+                reply = carUnassign(cardID);
+                break;
+            case BLOCK:
+                reply = deleteCard(cardID);
+                break;
+            default:
+                return RequestChannel.failure(correlationID, "Unknown operation");
+        }
+        if (reply == null) {
+            return RequestChannel.failure(correlationID, "Database could not serve the request");
+        }
+        return RequestChannel.reply(correlationID, reply);
+    }
 
-        String sqlFindCar = "SELECT a.* FROM autos a LEFT JOIN rentrelations r ON a.id = r.autoID " +
-                "/*WHERE r.autoID IS NULL*/ ORDER BY random() LIMIT 1"; //Store link between auto and card
+    /**
+     * assign a free car to the cardID
+     *
+     * @return certificate of the assigned car, or null if no car is available
+     */
+    public synchronized byte[] carAssign(byte[] cardID) {
+        String sqlGetCar = "SELECT certificate FROM autos WHERE id = ? AND available = 1";
+        String sqlTakeCar = "UPDATE autos SET available = 0 WHERE id = ?";
+        String sqlSetRelation = "INSERT INTO rentRelations(autoID, cardID) VALUES(?,?)"; //Store link between auto and card
 
+        byte[] autoID;
         byte[] autoCert = null;
+        //Skip autos that were deleted or taken while queued
+        while (autoCert == null && (autoID = freeCars.poll()) != null) {
+            try (ConnectionPool.PooledConnection c = connections.acquire()) {
+                PreparedStatement pstmt = c.prepare(sqlGetCar);
+                pstmt.setBytes(1, autoID);
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    if (!rs.next()) {
+                        continue;
+                    }
+                    autoCert = rs.getBytes("certificate");
+                }
 
-        try (
-                Statement stmt = conn.createStatement();
-                ResultSet rs = stmt.executeQuery(sqlFindCar)) {
-
-            autoID = rs.getString("id");
-            autoCert = conv.fromHexString(rs.getString("certificate"));
-        } catch (SQLException e) {
-            System.out.println(e.getMessage());
+                c.getConnection().setAutoCommit(false);
+                pstmt = c.prepare(sqlTakeCar);
+                pstmt.setBytes(1, autoID);
+                pstmt.executeUpdate();
+                pstmt = c.prepare(sqlSetRelation);
+                pstmt.setBytes(1, autoID);
+                pstmt.setBytes(2, cardID);
+                pstmt.executeUpdate();
+                c.getConnection().commit();
+                c.getConnection().setAutoCommit(true);
+            } catch (SQLException e) {
+                //e.g. the card has a car already; closing the connection rolls back
+                System.out.println(e.getMessage());
+                freeCars.offer(autoID);
+                errorState("Car could not be assigned");
+                return null;
+            }
         }
 
-        if (autoID == null) { //If no car available
+        if (autoCert == null) { //If no car available
             errorState("No car found");
-            return;
-        }
-
-        String sqlSetRelation = "INSERT INTO rentRelations(autoID, cardID) VALUES(?,?)";
-
-        try (PreparedStatement pstmt = conn.prepareStatement(sqlSetRelation)) {
-            pstmt.setString(1, autoID);
-            pstmt.setString(2, conv.toHexString(cardID));
-            pstmt.executeUpdate();
-        } catch (SQLException e) {
-            System.out.println(e.getMessage());
         }
-        msgBuf.clear().rewind();
-        clearBuf(msgBuf);
-        msgBuf.put(autoCert);
-        send(reception, msgBuf);
-        msgBuf.clear();
-        msgBuf.rewind();
-        //Potentially get confirmation from terminal that they received it? or do we already ack stuff TODO
+        return autoCert;
     }
 
     /**
      * remove car assignment from rentrelations table
+     *
+     * @return confirmation message for the terminal
      */
-    public void carUnassign(ReceptionTerminal reception) {
-        ByteBuffer response;
-        try {
-            response = waitForInput();
-        } catch (MessageTimeoutException e) {
-            e.printStackTrace();
-            errorState("Waiting for response carUnassign");
-            return;
-        }
-        byte[] cardID = new byte[ID_LEN];
-        response.get(cardID, 0, ID_LEN);
+    public byte[] carUnassign(byte[] cardID) {
+        returnCar(cardID);
 
-        String sql = "DELETE FROM rentRelations WHERE cardID = ?";
+        String confirmation = conv.toHexString(cardID) + " has been removed from Rent Relations.";
+        return prepareMessage(confirmation);
+    }
 
-        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+    /**
+     * Ends the rent relation of the card, if any, and puts its car back into the free pool
+     */
+    private synchronized void returnCar(byte[] cardID) {
+        String sqlFindCar = "SELECT autoID FROM rentRelations WHERE cardID = ?";
+        String sqlDeleteRelation = "DELETE FROM rentRelations WHERE cardID = ?";
+        String sqlFreeCar = "UPDATE autos SET available = 1 WHERE id = ? AND available = 0";
+
+        try (ConnectionPool.PooledConnection c = connections.acquire()) {
+            byte[] autoID = null;
+            PreparedStatement pstmt = c.prepare(sqlFindCar);
+            pstmt.setBytes(1, cardID);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                if (rs.next()) {
+                    autoID = rs.getBytes("autoID");
+                }
+            }
 
-            // set the corresponding param
-            pstmt.setString(1, conv.toHexString(cardID));
-            // execute the delete statement
+            c.getConnection().setAutoCommit(false);
+            pstmt = c.prepare(sqlDeleteRelation);
+            pstmt.setBytes(1, cardID);
             pstmt.executeUpdate();
-
+            int freed = 0;
+            if (autoID != null) {
+                pstmt = c.prepare(sqlFreeCar);
+                pstmt.setBytes(1, autoID);
+                freed = pstmt.executeUpdate();
+            }
+            c.getConnection().commit();
+            c.getConnection().setAutoCommit(true);
+            //Only queued if this call freed it, a car that was available already is queued already
+            if (freed == 1) {
+                freeCars.offer(autoID);
+            }
         } catch (SQLException e) {
             System.out.println(e.getMessage());
         }
+    }
 
-        String confirmation = conv.toHexString(cardID) + " has been removed from Rent Relations.";
-        byte[] message = prepareMessage(confirmation);
-        msgBuf.put(message);
-        send(reception, msgBuf);
-        msgBuf.clear();
-        msgBuf.rewind();
-        //Terminal might need to receive this message. We'll fix later. :) TODO
-    }
-
-    public byte[][] getAllCards() {
-        String sql = "SELECT id FROM cards";
-        String counterSql = "SELECT COUNT(id) FROM cards";
-        int counter = 0;
-        try {
-            Statement cstmt = conn.createStatement();
-            ResultSet rs = cstmt.executeQuery(counterSql);
-            counter = rs.getInt("COUNT(id)");
-        } catch (SQLException throwables) {
-            throwables.printStackTrace();
+    /**
+     * One page of card IDs in ascending order. Pages are found by key rather than offset, so every page costs
+     * the same index lookup however many cards come before it.
+     *
+     * @param after  last ID of the previous page, or null for the first page
+     * @param prefix only IDs starting with these bytes, or null for all
+     */
+    public List<byte[]> getCardPage(byte[] after, byte[] prefix, int pageSize) {
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException("Page size must be positive");
         }
-        byte[][] cards = new byte[counter][ID_LEN];
-        int i = 0;
-        try {
-            Statement stmt = conn.createStatement();
-            ResultSet rs = stmt.executeQuery(sql);
-            while (rs.next()) {
-                String temp = rs.getString("id");
-                byte[] card = conv.fromHexString(temp);
-                cards[i] = card;
-                i++;
+        byte[] lower = after == null ? new byte[0] : after;
+        boolean inclusive = false;
+        byte[] upper = null;
+        if (prefix != null && prefix.length > 0) {
+            if (Arrays.compareUnsigned(prefix, lower) > 0) {
+                lower = prefix;
+                inclusive = true;
+            }
+            upper = prefixEnd(prefix);
+        }
+        String sql = "SELECT id FROM cards WHERE id " + (inclusive ? ">=" : ">") + " ?" +
+                (upper != null ? " AND id < ?" : "") + " ORDER BY id LIMIT ?";
+
+        List<byte[]> page = new ArrayList<>(pageSize);
+        try (ConnectionPool.PooledConnection c = connections.acquire()) {
+            PreparedStatement pstmt = c.prepare(sql);
+            int i = 1;
+            pstmt.setBytes(i++, lower);
+            if (upper != null) {
+                pstmt.setBytes(i++, upper);
+            }
+            pstmt.setInt(i, pageSize);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    page.add(rs.getBytes("id"));
+                }
             }
         } catch (SQLException throwables) {
             throwables.printStackTrace();
         }
-        return cards;
+        return page;
     }
 
     /**
-     * delete card from database
+     * @return smallest byte string greater than everything starting with prefix, or null if there is none
      */
-    public void deleteCard(ReceptionTerminal reception) {
-        ByteBuffer response;
-        try {
-            response = waitForInput();
-        } catch (MessageTimeoutException e) {
-            e.printStackTrace();
-            errorState("Waiting for response carUnassign");
-            return;
+    private static byte[] prefixEnd(byte[] prefix) {
+        for (int i = prefix.length - 1; i >= 0; i--) {
+            if (prefix[i] != (byte) 0xFF) {
+                byte[] end = Arrays.copyOf(prefix, i + 1);
+                end[i]++;
+                return end;
+            }
         }
-        byte[] cardID = new byte[ID_LEN];
-        response.get(cardID, 0, ID_LEN);
+        return null;
+    }
 
+    /**
+     * delete card from database
+     *
+     * @return confirmation message for the terminal
+     */
+    public byte[] deleteCard(byte[] cardID) {
+        //Blocked from now on, even before the rows are gone
+        validCards.remove(cardID);
         String sql = "DELETE FROM cards WHERE id = ?";
 
-        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
-
+        try (ConnectionPool.PooledConnection c = connections.acquire()) {
+            PreparedStatement pstmt = c.prepare(sql);
             // set the corresponding param
-            pstmt.setString(1, conv.toHexString(cardID));
+            pstmt.setBytes(1, cardID);
             // execute the delete statement
             pstmt.executeUpdate();
 
@@ -344,25 +625,10 @@ public class Database extends CommunicatorExtended {
             System.out.println(e.getMessage());
         }
 
-        String sql2 = "DELETE FROM rentrelations WHERE cardID = ?";
-
-        try (PreparedStatement pstmt = conn.prepareStatement(sql2)) {
-
-            // set the corresponding param
-            pstmt.setString(1, conv.toHexString(cardID));
-            // execute the delete statement
-            pstmt.executeUpdate();
-
-        } catch (SQLException e) {
-            System.out.println(e.getMessage());
-        }
+        returnCar(cardID);
 
         String confirmation = new String(cardID) + " has been removed from cards.";
-        byte[] message = confirmation.getBytes(StandardCharsets.UTF_8);
-        msgBuf.put(message);
-        send(reception, msgBuf);
-        msgBuf.clear();
-        msgBuf.rewind();
+        return confirmation.getBytes(StandardCharsets.UTF_8);
     }
 
     /**
@@ -378,7 +644,7 @@ public class Database extends CommunicatorExtended {
         simulator.installApplet(scAID, Smartcard.class);
         simulator.transmitCommand(SELECT_APDU);
 
-        Object[] scKeyPair = generateKeyPair();
+        Object[] scKeyPair = keyPairs.take();
         PublicKey scPubSK = (PublicKey) scKeyPair[0];
         PrivateKey scPrivSK = (PrivateKey) scKeyPair[1];
         byte[] scID = dc.generateID();
@@ -386,11 +652,13 @@ public class Database extends CommunicatorExtended {
 
         String sql = "INSERT INTO cards(id,publickey,certificate) VALUES(?,?,?)";
 
-        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            pstmt.setString(1, conv.toHexString(scID));
-            pstmt.setString(2, conv.publicToString(scPubSK));
-            pstmt.setString(3, conv.toHexString(scCERT));
+        try (ConnectionPool.PooledConnection c = connections.acquire()) {
+            PreparedStatement pstmt = c.prepare(sql);
+            pstmt.setBytes(1, scID);
+            pstmt.setBytes(2, pubkToBytes(scPubSK));
+            pstmt.setBytes(3, scCERT);
             pstmt.executeUpdate();
+            validCards.add(scID);
         } catch (SQLException e) {
             System.out.println(e.getMessage());
         }
@@ -398,13 +666,17 @@ public class Database extends CommunicatorExtended {
         //byte[] cardID, int certLength, byte[] cardCertificate, byte[] privateKeyEncoded
         int certLen = scCERT.length;
         int ibLen = 5 + 4 + certLen + privkToBytes(scPrivSK).length + KEY_LEN;
-        ByteBuffer installBuf = ByteBuffer.allocate(ibLen);
-        installBuf.put(scID);
-        installBuf.putInt(certLen);
-        installBuf.put(scCERT);
-        installBuf.put(privkToBytes(scPrivSK));
-        installBuf.put(pubkToBytes(dbPubSK));
-        send(reception, installBuf);
+        try (BufferPool.Lease lease = BUFFERS.lease(ibLen)) {
+            ByteBuffer installBuf = lease.buffer();
+            installBuf.put(scID);
+            installBuf.putInt(certLen);
+            installBuf.put(scCERT);
+            installBuf.put(privkToBytes(scPrivSK));
+            installBuf.put(pubkToBytes(dbPubSK));
+            if (!send(reception, installBuf)) {
+                logger.fatal("Reception terminal did not take the card data", "generateCard", scID);
+            }
+        }
 
     }
 
@@ -412,7 +684,7 @@ public class Database extends CommunicatorExtended {
      * generate a car
      */
     public Auto generateAuto() {
-        Object[] autoKeyPair = generateKeyPair();
+        Object[] autoKeyPair = keyPairs.take();
         PublicKey autoPubSK = (PublicKey) autoKeyPair[0];
         PrivateKey autoPrivSK = (PrivateKey) autoKeyPair[1];
         byte[] autoID = dc.generateID();
@@ -420,11 +692,13 @@ public class Database extends CommunicatorExtended {
 
         String sql = "INSERT INTO autos(id,publickey,certificate) VALUES(?,?,?)";
 
-        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            pstmt.setString(1, conv.toHexString(autoID));
-            pstmt.setString(2, conv.publicToString(autoPubSK));
-            pstmt.setString(3, conv.toHexString(autoCERT));
+        try (ConnectionPool.PooledConnection c = connections.acquire()) {
+            PreparedStatement pstmt = c.prepare(sql);
+            pstmt.setBytes(1, autoID);
+            pstmt.setBytes(2, pubkToBytes(autoPubSK));
+            pstmt.setBytes(3, autoCERT);
             pstmt.executeUpdate();
+            freeCars.offer(autoID);
         } catch (SQLException e) {
             System.out.println(e.getMessage());
         }
@@ -436,7 +710,7 @@ public class Database extends CommunicatorExtended {
      * generate a reception terminal
      */
     public ReceptionTerminal generateTerminal() {
-        Object[] rtKeyPair = generateKeyPair();
+        Object[] rtKeyPair = keyPairs.take();
         PublicKey rtPubSK = (PublicKey) rtKeyPair[0];
         PrivateKey rtPrivSK = (PrivateKey) rtKeyPair[1];
         byte[] rtID = dc.generateID();
@@ -444,10 +718,11 @@ public class Database extends CommunicatorExtended {
 
         String sql = "INSERT INTO terminals(id,publickey,certificate) VALUES(?,?,?)";
 
-        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            pstmt.setString(1, conv.toHexString(rtID));
-            pstmt.setString(2, conv.publicToString(rtPubSK));
-            pstmt.setString(3, conv.toHexString(rtCERT));
+        try (ConnectionPool.PooledConnection c = connections.acquire()) {
+            PreparedStatement pstmt = c.prepare(sql);
+            pstmt.setBytes(1, rtID);
+            pstmt.setBytes(2, pubkToBytes(rtPubSK));
+            pstmt.setBytes(3, rtCERT);
             pstmt.executeUpdate();
         } catch (SQLException e) {
             System.out.println(e.getMessage());
@@ -458,20 +733,151 @@ public class Database extends CommunicatorExtended {
     }
 
     /**
-     * check if a card is blocked, e.g. it does not exist in the database
+     * generate count cars in one transaction, see {@link #provision}
+     *
+     * @return the new cars, each constructed when the stream reaches it; empty if the transaction failed
      */
-    public boolean isBlocked(byte[] cardID) {
-        String sql = "SELECT id FROM cards WHERE id = ?";
+    public Stream<Auto> generateAutos(int count, ProvisioningListener listener) {
+        List<Provisioned> autos = provision("INSERT INTO autos(id,publickey,certificate) VALUES(?,?,?)", count, listener);
+        for (Provisioned auto : autos) {
+            freeCars.offer(auto.id);
+        }
+        return autos.stream().map(auto -> new Auto(auto.id, auto.certificate, auto.privateKey, dbPubSK, smartcard));
+    }
+
+    /**
+     * generate count reception terminals in one transaction, see {@link #provision}
+     *
+     * @return the new terminals, each constructed when the stream reaches it; empty if the transaction failed
+     */
+    public Stream<ReceptionTerminal> generateTerminals(int count, ProvisioningListener listener) {
+        List<Provisioned> terminals = provision("INSERT INTO terminals(id,publickey,certificate) VALUES(?,?,?)", count, listener);
+        return terminals.stream().map(rt -> new ReceptionTerminal(rt.id, rt.certificate, this, rt.privateKey, smartcard));
+    }
 
-        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            pstmt.setString(1, conv.toHexString(cardID));
-            ResultSet rs = pstmt.executeQuery();
-            //If the cardID is not listed
-            return !rs.next();
+    /**
+     * generate count smartcards in one transaction, see {@link #provision}
+     *
+     * @return for every card the message {@link #generateCard} sends to a reception terminal to initialise it;
+     * empty if the transaction failed
+     */
+    public Stream<byte[]> generateCards(int count, ProvisioningListener listener) {
+        List<Provisioned> cards = provision("INSERT INTO cards(id,publickey,certificate) VALUES(?,?,?)", count, listener);
+        for (Provisioned card : cards) {
+            validCards.add(card.id);
+        }
+        return cards.stream().map(card -> {
+            byte[] privateKey = privkToBytes(card.privateKey);
+            ByteBuffer installBuf = ByteBuffer.allocate(ID_LEN + INT_LEN + card.certificate.length + privateKey.length + KEY_LEN);
+            installBuf.put(card.id).putInt(card.certificate.length).put(card.certificate).put(privateKey).put(pubkToBytes(dbPubSK));
+            return installBuf.array();
+        });
+    }
+
+    /**
+     * Generates keys, IDs and certificates for count entities in parallel, then inserts them PROVISIONING_BATCH
+     * at a time with one JDBC batch each. Only the inserts run in the transaction, so other writers are not held
+     * up by key generation, and either all entities exist afterwards or none.
+     */
+    private List<Provisioned> provision(String insert, int count, ProvisioningListener listener) {
+        List<Provisioned> provisioned = generateProvisioned(count);
+        if (provisioned.size() < count) {
+            return new ArrayList<>();
+        }
+        try (ConnectionPool.PooledConnection c = connections.acquire()) {
+            c.getConnection().setAutoCommit(false);
+            PreparedStatement pstmt = c.prepare(insert);
+            int written = 0;
+            while (written < count) {
+                int batch = Math.min(provisioningBatch, count - written);
+                for (Provisioned entity : provisioned.subList(written, written + batch)) {
+                    pstmt.setBytes(1, entity.id);
+                    pstmt.setBytes(2, pubkToBytes(entity.publicKey));
+                    pstmt.setBytes(3, entity.certificate);
+                    pstmt.addBatch();
+                }
+                pstmt.executeBatch();
+                written += batch;
+                if (listener != null) {
+                    listener.progress(written, count);
+                }
+            }
+            c.getConnection().commit();
+            c.getConnection().setAutoCommit(true);
         } catch (SQLException e) {
+            //Closing the connection rolled the transaction back
             System.out.println(e.getMessage());
+            return new ArrayList<>();
         }
-        return false;
+        return provisioned;
+    }
+
+    /**
+     * Key generation and signing dominate provisioning, so they are spread over one slice per core
+     */
+    private List<Provisioned> generateProvisioned(int count) {
+        int slices = Math.max(1, Math.min(count, Runtime.getRuntime().availableProcessors()));
+        List<Future<List<Provisioned>>> forks = new ArrayList<>(slices);
+        List<Provisioned> provisioned = new ArrayList<>(count);
+        try (ProtocolExecutor.Scope scope = ProtocolExecutor.openScope()) {
+            for (int i = 0; i < slices; i++) {
+                int size = count / slices + (i < count % slices ? 1 : 0);
+                forks.add(scope.fork(() -> {
+                    List<Provisioned> slice = new ArrayList<>(size);
+                    for (int j = 0; j < size; j++) {
+                        slice.add(new Provisioned());
+                    }
+                    return slice;
+                }));
+            }
+            scope.join();
+            for (Future<List<Provisioned>> fork : forks) {
+                provisioned.addAll(fork.get());
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            e.printStackTrace();
+            return new ArrayList<>();
+        }
+        return provisioned;
+    }
+
+    /**
+     * Entities per JDBC batch of {@link #generateAutos}, {@link #generateTerminals} and {@link #generateCards},
+     * {@link #PROVISIONING_BATCH} by default
+     *
+     * @throws IllegalArgumentException if provisioningBatch is less than 1
+     */
+    public void setProvisioningBatch(int provisioningBatch) {
+        if (provisioningBatch < 1) {
+            throw new IllegalArgumentException("Provisioning batch must be at least 1, was " + provisioningBatch);
+        }
+        this.provisioningBatch = provisioningBatch;
+    }
+
+    private class Provisioned {
+        private final byte[] id;
+        private final PublicKey publicKey;
+        private final PrivateKey privateKey;
+        private final byte[] certificate;
+
+        private Provisioned() {
+            Object[] keyPair = keyPairs.take();
+            publicKey = (PublicKey) keyPair[0];
+            privateKey = (PrivateKey) keyPair[1];
+            id = dc.generateID();
+            certificate = issueCertificate(publicKey, id, dbPrivSK);
+        }
+    }
+
+    /**
+     * check if a card is blocked, e.g. it does not exist in the database
+     */
+    public boolean isBlocked(byte[] cardID) {
+        return !validCards.contains(cardID);
+    }
+
+    public CardIndex getCardIndex() {
+        return validCards;
     }
 
     private class DatabaseCrypto extends CryptoImplementationExtended {
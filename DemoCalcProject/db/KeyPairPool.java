@@ -0,0 +1,105 @@
+package db;
+
+import utility.ProtocolExecutor;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Pre-generated RSA key pairs, so issuing a card, car or terminal does not wait on prime generation.
+ * Background workers keep the pool topped up to its depth; {@link #take()} only generates a key pair
+ * itself when the pool has run dry (a miss).
+ *
+ * @author Egidius Mysliwietz
+ */
+public class KeyPairPool {
+    public static final int DEFAULT_DEPTH = 8;
+    public static final int DEFAULT_WORKERS = 2;
+
+    private final BlockingQueue<Object[]> keyPairs;
+    private final Supplier<Object[]> generator;
+    private final int depth;
+    private final int workers;
+    private final AtomicInteger activeWorkers = new AtomicInteger();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param depth     number of key pairs kept ready, 0 disables pre-generation
+     * @param workers   maximum number of key pairs generated in parallel in the background
+     * @param generator produces one key pair as {public key, private key}
+     */
+    public KeyPairPool(int depth, int workers, Supplier<Object[]> generator) {
+        this.depth = depth;
+        this.workers = workers;
+        this.generator = generator;
+        keyPairs = new ArrayBlockingQueue<>(Math.max(depth, 1));
+        topUp();
+    }
+
+    /**
+     * @return a fresh key pair as {public key, private key}
+     */
+    public Object[] take() {
+        Object[] keyPair = keyPairs.poll();
+        if (keyPair == null) {
+            misses.incrementAndGet();
+            keyPair = generator.get();
+        } else {
+            hits.incrementAndGet();
+        }
+        topUp();
+        return keyPair;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return number of key pairs ready right now
+     */
+    public int available() {
+        return keyPairs.size();
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    private void topUp() {
+        while (keyPairs.size() < depth) {
+            int active = activeWorkers.get();
+            if (active >= workers) {
+                return;
+            }
+            if (activeWorkers.compareAndSet(active, active + 1)) {
+                ProtocolExecutor.execute(this::fill);
+            }
+        }
+    }
+
+    private void fill() {
+        try {
+            while (keyPairs.size() < depth) {
+                if (!keyPairs.offer(generator.get())) {
+                    break;
+                }
+            }
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            activeWorkers.decrementAndGet();
+            return;
+        }
+        activeWorkers.decrementAndGet();
+        //A take between the last check and the decrement would otherwise leave the pool short
+        topUp();
+    }
+}
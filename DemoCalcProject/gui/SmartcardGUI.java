@@ -9,8 +9,10 @@ import javafx.scene.Scene;
 import javafx.scene.image.Image;
 import javafx.stage.Stage;
 import receptionTerminal.ReceptionTerminal;
+import utility.ProtocolExecutor;
 
 import java.io.IOException;
+import java.util.concurrent.ExecutionException;
 
 public class SmartcardGUI extends Application {
 
@@ -27,14 +29,11 @@ public class SmartcardGUI extends Application {
         Database db = new Database();
         rt = db.generateTerminal();
         a = db.generateAuto();
-        Thread t1 = new Thread(() -> db.generateCard(rt));
-        Thread t2 = new Thread(() -> rt.initialDataForSC());
-        t1.start();
-        t2.start();
-        try {
-            t1.join();
-            t2.join();
-        } catch (InterruptedException e) {
+        try (ProtocolExecutor.Scope scope = ProtocolExecutor.openScope()) {
+            scope.fork(() -> db.generateCard(rt));
+            scope.fork(() -> rt.initialDataForSC());
+            scope.join();
+        } catch (InterruptedException | ExecutionException e) {
             e.printStackTrace();
         }
         FXMLLoader loader = new FXMLLoader(getClass().getResource("SmartcardGUI.fxml"));
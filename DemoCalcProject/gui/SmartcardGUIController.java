@@ -2,6 +2,7 @@ package gui;
 
 import Auto.Auto;
 import Interfaces.CommunicatorExtended;
+import db.ConvertKey;
 import db.Database;
 import javafx.fxml.FXML;
 import javafx.scene.Cursor;
@@ -14,6 +15,7 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.util.Arrays;
+import java.util.List;
 
 /**
  * @author Matti Eisenlohr
@@ -73,31 +75,59 @@ public class SmartcardGUIController {
 
     @FXML
     private void blockCard() {
-        byte[][] cardIDs = db.getAllCards();
-        System.out.println("\n\nTo Employee: Please select which card to block: \n");
-        for (int i = 0; i < cardIDs.length; i++) {
-            System.out.println(String.format("%3d", i) + ": " + Arrays.toString(cardIDs[i]));
-        }
-
         BufferedReader reader =
                 new BufferedReader(new InputStreamReader(System.in));
-        String name = null;
-        try {
-            name = reader.readLine();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        int blockedCardSelection = Integer.parseInt(name);
-        while (blockedCardSelection < 0 || blockedCardSelection >= cardIDs.length) {
-            System.out.println("Invalid choice, please type one of the following indicies, e.g. 0: ");
+        byte[] prefix = null;
+        byte[] after = null;
+        List<byte[]> cardIDs = db.getCardPage(after, prefix, Database.CARD_PAGE_SIZE);
+        int blockedCardSelection = -1;
+        while (blockedCardSelection < 0) {
+            System.out.println("\n\nTo Employee: Please select which card to block: \n");
+            for (int i = 0; i < cardIDs.size(); i++) {
+                System.out.println(String.format("%3d", i) + ": " + Arrays.toString(cardIDs.get(i)));
+            }
+            System.out.println("Type an index, n for the next page or p and the hex bytes the card ID starts with, e.g. p 51 37");
+            String input = null;
             try {
-                blockedCardSelection = Integer.parseInt(reader.readLine());
+                input = reader.readLine();
             } catch (IOException e) {
                 e.printStackTrace();
             }
+            if (input == null) {
+                return;
+            }
+            input = input.trim();
+            if (input.equals("n")) {
+                if (cardIDs.size() == Database.CARD_PAGE_SIZE) {
+                    after = cardIDs.get(cardIDs.size() - 1);
+                    cardIDs = db.getCardPage(after, prefix, Database.CARD_PAGE_SIZE);
+                } else {
+                    System.out.println("This is the last page.");
+                }
+                continue;
+            }
+            if (input.startsWith("p")) {
+                try {
+                    prefix = new ConvertKey().fromHexString(input.substring(1).trim());
+                    after = null;
+                    cardIDs = db.getCardPage(after, prefix, Database.CARD_PAGE_SIZE);
+                } catch (NumberFormatException e) {
+                    System.out.println("Invalid prefix, please type p and hex bytes, e.g. p 51 37");
+                }
+                continue;
+            }
+            try {
+                int selection = Integer.parseInt(input);
+                if (selection >= 0 && selection < cardIDs.size()) {
+                    blockedCardSelection = selection;
+                } else {
+                    System.out.println("Invalid choice, please type one of the indices above, e.g. 0");
+                }
+            } catch (NumberFormatException e) {
+                System.out.println("Invalid choice, please type one of the indices above, e.g. 0");
+            }
         }
-        byte[] blockedCard = cardIDs[blockedCardSelection];
+        byte[] blockedCard = cardIDs.get(blockedCardSelection);
         display.setWrapText(true);
         display.setText("Do you wish to report the theft of your card? (See console)");
         right2.setText("Confirm");
@@ -234,7 +264,7 @@ public class SmartcardGUIController {
 
     public void updateKmm() {
         try {
-            kmm = a.kilometerageUpdate();
+            kmm = a.drive(1);
         } catch (CommunicatorExtended.ProcessFailedException e) {
             e.printStackTrace();
         }
@@ -249,10 +279,20 @@ public class SmartcardGUIController {
         }
     }
 
+    private void stopDriving() {
+        //Kilometres not on the card yet go with the end of the trip
+        try {
+            kmm = a.flushKilometerage();
+        } catch (CommunicatorExtended.ProcessFailedException e) {
+            e.printStackTrace();
+        }
+        carStart();
+    }
+
     public void drive() {
         driving = true;
         left0.setText("Stop Driving");
-        l0.setOnMouseClicked(event -> carStart());
+        l0.setOnMouseClicked(event -> stopDriving());
         right0.setText("Drive 1km");
         r0.setOnMouseClicked(event -> updateKmm());
         r0.setCursor(Cursor.HAND);
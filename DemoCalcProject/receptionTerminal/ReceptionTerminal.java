@@ -1,5 +1,6 @@
 package receptionTerminal;
 
+import Interfaces.BufferPool;
 import Interfaces.CommunicatorExtended;
 import Interfaces.KeyWallet;
 import Smartcard.Smartcard;
@@ -10,9 +11,11 @@ import db.Database;
 import javacard.framework.AID;
 import javacard.security.PrivateKey;
 import javacard.security.PublicKey;
+import rsa.CertificateCache;
 import rsa.CryptoImplementationExtended;
 import rsa.RSACrypto;
 import utility.Logger;
+import utility.ProtocolExecutor;
 
 import javax.smartcardio.*;
 import java.io.File;
@@ -20,6 +23,13 @@ import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.Base64;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 /**
  * @author Matti Eisenlohr
@@ -39,10 +49,10 @@ public class ReceptionTerminal extends CommunicatorExtended {
     private byte[] cardID;
     private final Database database;
     private final Logger rtLogger;
-    private int offset;
     private final CardSimulator smartcard;
     private final CardTerminals cardTerminals;
     private final CardTerminal rtTerminal;
+    private CompletableFuture<?> pending = CompletableFuture.completedFuture(null);
 
 
     public ReceptionTerminal(byte[] rtID, byte[] rtCertificate, Database db, PrivateKey privateKey, CardSimulator smartcard) {
@@ -53,44 +63,79 @@ public class ReceptionTerminal extends CommunicatorExtended {
         database = db;
         dbPubSK = db.getDbPubSK();
         this.smartcard = smartcard;
+        connectTransport(smartcard);
         cardTerminals = CardTerminalSimulator.terminals(Arrays.toString(rtc.getID()));
         rtTerminal = cardTerminals.getTerminal(Arrays.toString(rtc.getID()));
-        (new SimulatedCardThread()).start();
+        ProtocolExecutor.execute(new SimulatedCard());
     }
 
     /**
      * protocol 4 - car return and kilometerage check
      */
     public void carReturnInitiate() throws ProcessFailedException {
-        CommandAPDU commandAPDU = new CommandAPDU(CARD_PROC, CAR_RETURN_START, 0, 0, 256);
-        ResponseAPDU apdu;
+        carReturn(carReturnStart());
+    }
+
+    /**
+     * protocol 4 - car return and kilometerage check, without blocking the caller
+     */
+    public CompletableFuture<Void> carReturnInitiateAsync() {
+        return enqueue(() -> CompletableFuture
+                .supplyAsync(startStep(this::carReturnStart), ProtocolExecutor.executor())
+                .thenApplyAsync(midStep(apdu -> {
+                    carReturnVerify(apdu);
+                    return cardID;
+                }), ProtocolExecutor.executor())
+                .thenCompose(id -> requestAsync(database, CAR_RETURN_START, id)
+                        .orTimeout(WAITING_TIMEOUT, TimeUnit.MILLISECONDS)
+                        .exceptionally(e -> null))
+                .thenAcceptAsync(this::carReturnConfirmed, ProtocolExecutor.executor()));
+    }
+
+    private ResponseAPDU carReturnStart() throws ProcessFailedException {
         try {
-            apdu = applet.transmit(commandAPDU);
+            return transmit(CARD_PROC, CAR_RETURN_START, 256);
         } catch (CardException e) {
             e.printStackTrace();
             throw new ProcessFailedException("Something went wrong. Please try again.");
         }
-        carReturn(apdu);
     }
 
     /**
      * protocol 4 - car return and kilometerage check
      */
     public void carReturn(ResponseAPDU apdu) throws ProcessFailedException {
+        carReturnVerify(apdu);
+        //Notify database
+        ByteBuffer confirmation;
+        try {
+            confirmation = request(database, CAR_RETURN_START, cardID);
+        } catch (MessageTimeoutException | ProcessFailedException e) {
+            confirmation = null;
+        }
+        carReturnConfirmed(confirmation);
+    }
+
+    /**
+     * protocol 4 - card side of the car return, up to and including the success message
+     */
+    private void carReturnVerify(ResponseAPDU apdu) throws ProcessFailedException {
+        try (BufferPool.Lease lease = leaseMsgBuf()) {
+            carReturnVerifyRun(apdu, lease.buffer());
+        }
+    }
+
+    private void carReturnVerifyRun(ResponseAPDU apdu, ByteBuffer msgBuf) throws ProcessFailedException {
         if (!cardAuthenticated) {
             errorState("Card is not authenticated");
             rtLogger.warning("Aborting: Card is not authenticated", "CarReturn", cardID);
             sendErrorAPDU(CAR_RETURN_START, INVALID_CODE);
             throw new ProcessFailedException("Card is not authenticated. Please try again");
         }
-        offset = ERESPAPDU_CDATA_OFFSET;
         //Message 1
-        byte[] msg1 = apdu.getData();
+        in.wrap(apdu.getData(), ERESPAPDU_CDATA_OFFSET);
 
-        byte[] carReturnBytes = new byte[10];
-        memCpy(carReturnBytes, msg1, offset, 10);
-        //msg1.get(carReturnBytes,offset,10);
-        offset += 10;
+        byte[] carReturnBytes = in.getBytes(new byte[10]);
         String carReturn = new String(carReturnBytes, StandardCharsets.UTF_8);
         if (!carReturn.equals("Car Return")) {
             errorState("Wrong command, expected Car Return, got " + carReturn);
@@ -98,20 +143,16 @@ public class ReceptionTerminal extends CommunicatorExtended {
             sendErrorAPDU(CAR_RETURN_M2, INVALID_CODE);
             throw new ProcessFailedException("Wrong command, expected Car Return. Please try again.");
         }
-        short seqNum = getShort(msg1, offset);//msg1.getShort();
-        offset += NONCE_LEN;
+        short seqNum = in.getShort();
         if (!rtc.areSubsequentNonces(termNonce, seqNum)) {
             errorState("Wrong sequence number in carReturn message 1");
             rtLogger.fatal("Wrong sequence number", "carReturn message 1", cardID);
             sendErrorAPDU(CAR_RETURN_M2, INVALID_SEQ_NUM);
             throw new ProcessFailedException("Wrong sequence number. Please try again.");
         }
-        boolean manipulation = booleanFromByte(msg1[offset]);
-        offset += BOOL_LEN;
-        int msg1HashSignLen = getInt(msg1, offset);//msg1.getInt();
-        offset += INT_LEN;
-        byte[] msg1HashSign = new byte[msg1HashSignLen];
-        memCpy(msg1HashSign, msg1, offset, msg1HashSignLen);
+        boolean manipulation = booleanFromByte(in.getByte());
+        byte[] msg1HashSign = new byte[in.peekBlobLength()];
+        in.getBlob(msg1HashSign);
         ByteBuffer msg1Cmps = ByteBuffer.wrap(new byte[10 + NONCE_LEN + BOOL_LEN]);
         msg1Cmps.put(carReturnBytes).putShort(seqNum).put(booleanToByteArray(manipulation));
         if (!rtc.verify(msg1Cmps, msg1HashSign, scPubSK)) {
@@ -129,8 +170,6 @@ public class ReceptionTerminal extends CommunicatorExtended {
 
         //Message 2
         short kmmNonce = rtc.generateNonce();
-        msgBuf.clear();
-        msgBuf.rewind();
         msgBuf.putShort(kmmNonce);
         short seqNum2 = (short) (scNonce + 1);
         msgBuf.putShort(seqNum2);
@@ -147,30 +186,24 @@ public class ReceptionTerminal extends CommunicatorExtended {
 
         }
 
-        offset = ERESPAPDU_CDATA_OFFSET;
-        byte[] msg3 = apdu.getData();
-        kilometerage = getInt(msg3, offset);//msg3.getInt();
-        offset += INT_LEN;
-        short kmmNonceResp = getShort(msg3, offset);//msg3.getShort();
-        offset += NONCE_LEN;
+        in.wrap(apdu.getData(), ERESPAPDU_CDATA_OFFSET);
+        kilometerage = in.getInt();
+        short kmmNonceResp = in.getShort();
         if (kmmNonce != kmmNonceResp) {
             errorState("Wrong kilometerage nonce returned");
             rtLogger.fatal("Wrong kilometerage nonce returned", "message 3 carReturn", cardID);
             sendErrorAPDU(CAR_RETURN_M2, INVALID_NONCE);
             throw new ProcessFailedException("Wrong kilometerage nonce returned. Card has been manipulated.");
         }
-        short seqNum3 = getShort(msg3, offset);
-        offset += NONCE_LEN;
+        short seqNum3 = in.getShort();
         if (!rtc.areSubsequentNonces(termNonce, seqNum3, 2)) {
             errorState("Wrong sequence number in carReturn message 3");
             rtLogger.fatal("Wrong sequence number", "carReturn message 3", cardID);
             sendErrorAPDU(CAR_RETURN_M2, INVALID_SEQ_NUM);
             throw new ProcessFailedException("Wrong sequence number. Card has been manipulated.");
         }
-        int msg3HashSignLen = getInt(msg3, offset);//msg3.getInt();
-        offset += 4;
-        byte[] msg3HashSign = new byte[msg3HashSignLen];
-        memCpy(msg3HashSign, msg3, offset, msg3HashSignLen);
+        byte[] msg3HashSign = new byte[in.peekBlobLength()];
+        in.getBlob(msg3HashSign);
 
         ByteBuffer msg3Cmps = ByteBuffer.wrap(new byte[INT_LEN + NONCE_LEN + NONCE_LEN]);
         msg3Cmps.putInt(kilometerage).putShort(kmmNonceResp).putShort(seqNum3);
@@ -189,23 +222,19 @@ public class ReceptionTerminal extends CommunicatorExtended {
         byte[] succHash = rtc.sign(concatBytes(success, shortToByteArray((short) (scNonce + 2))));
         msgBuf.putInt(succHash.length).put(succHash);
         sendAPDU(CARD_CONT, CAR_RETURN_MS, msgBuf);
-        msgBuf.clear();
-        msgBuf.rewind();
         rtLogger.info("Car returned successfully", "carReturn", cardID);
-        //Notify database
-        msgBuf.put(cardID);
-        Thread t1 = new Thread(() -> send(database, msgBuf));
-        Thread t2 = new Thread(() -> database.carUnassign(this));
-        t1.start();
-        t2.start();
-        try {
-            t1.join();
-            t2.join();
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+    }
+
+    /**
+     * protocol 4 - logs the database confirmation (null if there was none) and ends the session
+     */
+    private void carReturnConfirmed(ByteBuffer reply) {
+        Object[] confirmation = reply == null ? null : processMessage(reply);
+        if (confirmation != null && confirmation.length > 0) {
+            rtLogger.info((String) confirmation[0], "carReturn database communication", cardID);
+        } else {
+            rtLogger.warning("No confirmation from database", "carReturn database communication", cardID);
         }
-        msgBuf.clear();
-        msgBuf.rewind();
         cardAuthenticated = false;
         cardID = null;
     }
@@ -214,6 +243,19 @@ public class ReceptionTerminal extends CommunicatorExtended {
      * Protocol 2 - Mutual Authentication between smartcard and reception terminal
      */
     public void cardAuthenticationInitiate() throws AuthenticationFailedException {
+        cardAuthentication(cardAuthenticationStart());
+    }
+
+    /**
+     * Protocol 2 - Mutual Authentication between smartcard and reception terminal, without blocking the caller
+     */
+    public CompletableFuture<Void> cardAuthenticationInitiateAsync() {
+        return enqueue(() -> CompletableFuture
+                .supplyAsync(startStep(this::cardAuthenticationStart), ProtocolExecutor.executor())
+                .thenAcceptAsync(endStep(this::cardAuthentication), ProtocolExecutor.executor()));
+    }
+
+    private ResponseAPDU cardAuthenticationStart() throws AuthenticationFailedException {
         select();
         rtLogger.info("Started Card Authentication", "cardAuthenticationInitiate", cardID);
         if (initBuffer != null) {
@@ -222,34 +264,31 @@ public class ReceptionTerminal extends CommunicatorExtended {
             initBuffer.rewind();
             initBuffer = null;
         }
-        CommandAPDU commandAPDU = new CommandAPDU(CARD_AUTH, AUTH_RECEPTION_START, 0, 0, 512);
-        ResponseAPDU apdu;
         try {
-            apdu = applet.transmit(commandAPDU);
+            return transmit(CARD_AUTH, AUTH_RECEPTION_START, 512);
         } catch (CardException e) {
             e.printStackTrace();
             throw new AuthenticationFailedException("");
         }
-        cardAuthentication(apdu);
     }
 
     /**
      * protocol 2 - mutual authentication between smartcard and reception terminal
      */
     public void cardAuthentication(ResponseAPDU apdu) throws AuthenticationFailedException {
+        try (BufferPool.Lease lease = leaseMsgBuf()) {
+            cardAuthenticationRun(apdu, lease.buffer());
+        }
+    }
+
+    private void cardAuthenticationRun(ResponseAPDU apdu, ByteBuffer msgBuf) throws AuthenticationFailedException {
         //Message 1
-        offset = ERESPAPDU_CDATA_OFFSET;
-        byte[] response = apdu.getData(); //Step 2
+        in.wrap(apdu.getData(), ERESPAPDU_CDATA_OFFSET); //Step 2
 
         //cardPubSK + cardID = Certificate
-        byte[] cardPubSKEncoded = new byte[KEY_LEN];
-        memCpy(cardPubSKEncoded, response, offset, KEY_LEN);
-
-        offset += KEY_LEN;
+        byte[] cardPubSKEncoded = in.getKey(new byte[KEY_LEN]);
         scPubSK = bytesToPubkey(cardPubSKEncoded);
-        cardID = new byte[ID_LEN];
-        memCpy(cardID, response, offset, ID_LEN);
-        offset += ID_LEN;
+        cardID = in.getBytes(new byte[ID_LEN]);
 
         if (database.isBlocked(cardID)) {
             errorState("Card is blocked");
@@ -260,16 +299,11 @@ public class ReceptionTerminal extends CommunicatorExtended {
         }
 
         //Signed hash of certificate
-        int cardCertHashSignLen = getInt(response, offset);
-        offset += 4;
-        byte[] cardCertHashSign = new byte[cardCertHashSignLen];
-        memCpy(cardCertHashSign, response, offset, cardCertHashSignLen);
-        offset += cardCertHashSignLen;
-        scNonce = getShort(response, offset);//response.getShort();
-
-        ByteBuffer msg1Cmps = ByteBuffer.wrap(new byte[KEY_LEN + ID_LEN]);
-        msg1Cmps.put(cardPubSKEncoded).put(cardID);
-        if (!rtc.verify(msg1Cmps, cardCertHashSign, dbPubSK)) { //Step 3
+        byte[] cardCertHashSign = new byte[in.peekBlobLength()];
+        in.getBlob(cardCertHashSign);
+        scNonce = in.getShort();
+
+        if (!rtc.verifyCertificate(cardPubSKEncoded, cardID, cardCertHashSign, dbPubSK)) { //Step 3
             errorState("Hash does not match known card");
             rtLogger.fatal("Invalid certificate: Hash does not match known card", "cardAuthentication message 1", cardID);
             sendErrorAPDU(CARD_AUTH, INVALID_HASH);
@@ -293,11 +327,9 @@ public class ReceptionTerminal extends CommunicatorExtended {
 
         }
 
-        offset = ERESPAPDU_CDATA_OFFSET;
-        byte[] response2 = apdu.getData();
+        in.wrap(apdu.getData(), ERESPAPDU_CDATA_OFFSET);
 
-        short termNonceResp = getShort(response2, offset);
-        offset += 2;
+        short termNonceResp = in.getShort();
         if (termNonceResp != termNonce) {
             errorState("Wrong nonce in message 3 of cardAuthentication");
             rtLogger.fatal("Wrong nonce", "cardAuthentication message 3", cardID);
@@ -305,12 +337,8 @@ public class ReceptionTerminal extends CommunicatorExtended {
             throw new AuthenticationFailedException("Wrong nonce in message 3 of cardAuthentication");
         }
 
-        int receptionNonceHashSignLen = getInt(response2, offset);//response2.getInt();
-        offset += 4;
-        byte[] receptionNonceHashSign = new byte[receptionNonceHashSignLen];
-        memCpy(receptionNonceHashSign, response2, offset, receptionNonceHashSignLen);
-
-        offset += receptionNonceHashSignLen;
+        byte[] receptionNonceHashSign = new byte[in.peekBlobLength()];
+        in.getBlob(receptionNonceHashSign);
 
         ByteBuffer msg3Cmps = ByteBuffer.wrap(new byte[NONCE_LEN]);
         msg3Cmps.putShort(termNonceResp);
@@ -339,22 +367,59 @@ public class ReceptionTerminal extends CommunicatorExtended {
      * Protocol 3 - Assignment of car to smartcard
      */
     public void carAssignmentInitiate() throws ProcessFailedException {
+        carAssignment(carAssignmentStart());
+    }
+
+    /**
+     * Protocol 3 - Assignment of car to smartcard, without blocking the caller
+     */
+    public CompletableFuture<Void> carAssignmentInitiateAsync() {
+        return enqueue(() -> CompletableFuture
+                .supplyAsync(startStep(this::carAssignmentStart), ProtocolExecutor.executor())
+                .thenApplyAsync(midStep(apdu -> {
+                    carAssignmentRequest(apdu);
+                    return cardID;
+                }), ProtocolExecutor.executor())
+                .thenCompose(id -> requestAsync(database, CAR_ASSIGNMENT_START, id)
+                        .orTimeout(WAITING_TIMEOUT, TimeUnit.MILLISECONDS)
+                        .handleAsync((reply, e) -> {
+                            if (e != null) {
+                                throw new CompletionException(carAssignmentDatabaseError(unwrap(e)));
+                            }
+                            return reply;
+                        }, ProtocolExecutor.executor()))
+                .thenAcceptAsync(endStep(this::carAssignmentForward), ProtocolExecutor.executor()));
+    }
+
+    private ResponseAPDU carAssignmentStart() throws ProcessFailedException {
         select();
-        CommandAPDU commandAPDU = new CommandAPDU(CARD_PROC, CAR_ASSIGNMENT_START, 0, 0, 256);
-        ResponseAPDU apdu;
         try {
-            apdu = applet.transmit(commandAPDU);
+            return transmit(CARD_PROC, CAR_ASSIGNMENT_START, 256);
         } catch (CardException e) {
             e.printStackTrace();
             throw new ProcessFailedException("Something went wrong. Please try again");
         }
-        carAssignment(apdu);
     }
 
     /**
      * protocol 3 - assignment of car to smartcard
      */
     public void carAssignment(ResponseAPDU apdu) throws ProcessFailedException {
+        carAssignmentRequest(apdu);
+        //Step 4
+        ByteBuffer response2;
+        try {
+            response2 = request(database, CAR_ASSIGNMENT_START, cardID);
+        } catch (MessageTimeoutException | ProcessFailedException e) {
+            throw carAssignmentDatabaseError(e);
+        }
+        carAssignmentForward(response2);
+    }
+
+    /**
+     * protocol 3 - steps 1 to 3, checks the car request of the card
+     */
+    private void carAssignmentRequest(ResponseAPDU apdu) throws ProcessFailedException {
         if (!cardAuthenticated) { //Step 1
             errorState("Card not authenticated");
             rtLogger.warning("Aborting: Card not authenticated", "carAssignment", cardID);
@@ -362,11 +427,8 @@ public class ReceptionTerminal extends CommunicatorExtended {
             throw new ProcessFailedException("Aborting: Card not authenticated");
         }
 
-        offset = ERESPAPDU_CDATA_OFFSET;
-        byte[] response = apdu.getData();
-        byte[] requestBytes = new byte[4];
-        memCpy(requestBytes, response, offset, 4);
-        offset += 4;
+        in.wrap(apdu.getData(), ERESPAPDU_CDATA_OFFSET);
+        byte[] requestBytes = in.getBytes(new byte[4]);
         String request = new String(requestBytes, StandardCharsets.UTF_8);
         if (!request.equals("Car?")) {
             errorState("Expected car request");
@@ -374,8 +436,7 @@ public class ReceptionTerminal extends CommunicatorExtended {
             sendErrorAPDU(CAR_ASSIGNMENT_M2, INVALID_CODE);
             throw new ProcessFailedException("Expected car request.");
         }
-        short seqNum1 = getShort(response, offset);
-        offset += 2;
+        short seqNum1 = in.getShort();
         if (!rtc.areSubsequentNonces(termNonce, seqNum1)) {
             errorState("Wrong sequence number in message 1 of P3");
             rtLogger.fatal("Wrong sequence number", "carAssignment message 1", cardID);
@@ -383,10 +444,8 @@ public class ReceptionTerminal extends CommunicatorExtended {
             throw new ProcessFailedException("Wrong sequence number");
         }
 
-        int giveCarHashSignLen = getInt(response, offset);
-        offset += 4;
-        byte[] giveCarHashSign = new byte[giveCarHashSignLen];
-        memCpy(giveCarHashSign, response, offset, giveCarHashSignLen);
+        byte[] giveCarHashSign = new byte[in.peekBlobLength()];
+        in.getBlob(giveCarHashSign);
 
         ByteBuffer msg1Cmps = ByteBuffer.wrap(new byte[4 + NONCE_LEN]);
         msg1Cmps.put(requestBytes).putShort(seqNum1);
@@ -396,46 +455,46 @@ public class ReceptionTerminal extends CommunicatorExtended {
             sendErrorAPDU(CAR_ASSIGNMENT_M2, INVALID_HASH);
             throw new ProcessFailedException("Invalid Hash");
         }
-        msgBuf.clear().rewind();
-        msgBuf.put(cardID);
-
-        //Step 4
-        Thread t1 = new Thread(() -> send(database, msgBuf));
-        Thread t2 = new Thread(() -> database.carAssign(this));
-        t1.start();
-        t2.start();
-        try {
-            t1.join();
-            t2.join();
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        }
-        msgBuf.clear();
-        msgBuf.rewind();
+    }
 
-        ByteBuffer response2;
-        try {
-            response2 = waitForInput();
-        } catch (MessageTimeoutException e) {
+    /**
+     * protocol 3 - step 4 failed, tells the card and returns the exception for the caller to throw
+     */
+    private ProcessFailedException carAssignmentDatabaseError(Throwable e) {
+        if (e instanceof MessageTimeoutException || e instanceof TimeoutException) {
             e.printStackTrace();
             errorState("Timeout database carAssignment");
             rtLogger.warning("Aborting: Timeout", "carAssignment database communication", cardID);
             sendErrorAPDU(CAR_ASSIGNMENT_M2, DATABASE_SIDE_COMMUNICATION_ERROR);
-            throw new ProcessFailedException("Timeout Database. Please try again.");
+            return new ProcessFailedException("Timeout Database. Please try again.");
         }
-        byte[] autoPubSKBytes = new byte[KEY_LEN];
-        response2.get(autoPubSKBytes, 0, KEY_LEN);
-        PublicKey autoPubSK = bytesToPubkey(autoPubSKBytes);
-        byte[] autoID = new byte[ID_LEN];
-        response2.get(autoID, 0, ID_LEN);
-        int autoCertHashSignLen = response2.getInt();
-        byte[] autoCertHashSign = new byte[autoCertHashSignLen];
-        response2.get(autoCertHashSign, 0, autoCertHashSignLen);
+        rtLogger.warning("Aborting: " + e.getMessage(), "carAssignment database communication", cardID);
+        errorState("Database could not assign a car");
+        sendErrorAPDU(CAR_ASSIGNMENT_M2, DATABASE_SIDE_COMMUNICATION_ERROR);
+        return new ProcessFailedException("No car could be assigned. Please try again.");
+    }
+
+    /**
+     * protocol 3 - steps 5 and 6, forwards the car certificate from the database to the card
+     */
+    private void carAssignmentForward(ByteBuffer response2) throws ProcessFailedException {
+        try (BufferPool.Lease lease = leaseMsgBuf()) {
+            carAssignmentForwardRun(response2, lease.buffer());
+        }
+    }
+
+    private void carAssignmentForwardRun(ByteBuffer response2, ByteBuffer msgBuf) throws ProcessFailedException {
+        ResponseAPDU apdu;
+        in.wrap(response2);
+        byte[] autoPubSKBytes = in.getKey(new byte[KEY_LEN]);
+        byte[] autoID = in.getBytes(new byte[ID_LEN]);
+        byte[] autoCertHashSign = new byte[in.peekBlobLength()];
+        in.getBlob(autoCertHashSign);
 
         //Step 5
-        msgBuf.put(pubkToBytes(autoPubSK));
-        msgBuf.put(autoID).putInt(autoCertHashSignLen).put(autoCertHashSign).putShort((short) (scNonce + 1));
-        byte[] msg2Sign = rtc.sign(concatBytes(pubkToBytes(autoPubSK), autoID, autoCertHashSign, shortToByteArray((short) (scNonce + 1))));
+        msgBuf.put(autoPubSKBytes);
+        msgBuf.put(autoID).putInt(autoCertHashSign.length).put(autoCertHashSign).putShort((short) (scNonce + 1));
+        byte[] msg2Sign = rtc.sign(concatBytes(autoPubSKBytes, autoID, autoCertHashSign, shortToByteArray((short) (scNonce + 1))));
         msgBuf.putInt(msg2Sign.length).put(msg2Sign);
         apdu = sendAPDU(CARD_CONT, CAR_ASSIGNMENT_M2, msgBuf);
 
@@ -449,11 +508,9 @@ public class ReceptionTerminal extends CommunicatorExtended {
 
         }
 
-        offset = ERESPAPDU_CDATA_OFFSET;
-        byte[] succMsg = apdu.getData();
+        in.wrap(apdu.getData(), ERESPAPDU_CDATA_OFFSET);
 
-        byte success = succMsg[0];
-        offset++;
+        byte success = in.getByte();
         if (success != SUCCESS_BYTE) {
             errorState("Wrong byte code, expected 0xFF");
             rtLogger.warning("Wrong byte, expected 0xFF, got " + success, "carAssignment", cardID);
@@ -461,18 +518,15 @@ public class ReceptionTerminal extends CommunicatorExtended {
             sendErrorAPDU(CAR_ASSIGNMENT_M2, INVALID_CODE);
             throw new ProcessFailedException("Something went wrong. Please try again.");
         }
-        short seqNum2 = getShort(succMsg, offset);
-        offset += NONCE_LEN;
+        short seqNum2 = in.getShort();
         if (!rtc.areSubsequentNonces(termNonce, seqNum2, 2)) {
             errorState("Wrong sequence number in success message of P3");
             rtLogger.fatal("Wrong sequence number ", "carAssignment success message", cardID);
             sendErrorAPDU(CAR_ASSIGNMENT_M2, INVALID_SEQ_NUM);
             throw new ProcessFailedException("Wrong sequence number.");
         }
-        int succHashSignLen = getInt(succMsg, offset);
-        offset += 4;
-        byte[] succHashSign = newB(succHashSignLen);
-        memCpy(succHashSign, succMsg, offset, succHashSignLen);
+        byte[] succHashSign = newB(in.peekBlobLength());
+        in.getBlob(succHashSign);
 
         ByteBuffer succMsgCmps = ByteBuffer.wrap(newB(BOOL_LEN + NONCE_LEN));
         succMsgCmps.put(success).putShort(seqNum2);
@@ -492,30 +546,102 @@ public class ReceptionTerminal extends CommunicatorExtended {
      * protocol 6 - card blocking
      */
     public void blockCard(byte[] cardID) {
-        ByteBuffer blockBuf = newBB(ID_LEN);
-        blockBuf.put(cardID);
-        send(database, blockBuf);
-        database.deleteCard(this);
         ByteBuffer resp;
         try {
-            resp = waitForInput();
-        } catch (MessageTimeoutException e) {
+            resp = request(database, BLOCK, cardID);
+        } catch (MessageTimeoutException | ProcessFailedException e) {
             e.printStackTrace();
             return;
         }
+        blockCardConfirmed(cardID, resp);
+    }
 
-        int msgLen = ID_LEN + 31;
-        byte[] msg = new byte[msgLen];
-        resp.get(msg, 0, msgLen);
+    /**
+     * protocol 6 - card blocking, without blocking the caller.
+     * Completes with true if the database confirmed that the card was removed.
+     */
+    public CompletableFuture<Boolean> blockCardAsync(byte[] cardID) {
+        return enqueue(() -> requestAsync(database, BLOCK, cardID)
+                .orTimeout(WAITING_TIMEOUT, TimeUnit.MILLISECONDS)
+                .thenApplyAsync(resp -> blockCardConfirmed(cardID, resp), ProtocolExecutor.executor()));
+    }
+
+    private boolean blockCardConfirmed(byte[] cardID, ByteBuffer resp) {
+        byte[] msg = bufToBytes(resp);
         String request = new String(msg, StandardCharsets.UTF_8);
         String expected = new String(cardID) + " has been removed from cards.";
         if (!request.equals(expected)) { //Potential race condition earlier that can make this fail
             errorState("Database returned wrong message after blocking card");
             rtLogger.fatal("Database returned wrong message", "blockCard", cardID);
             sendErrorAPDU(BLOCK, DATABASE_SIDE_COMMUNICATION_ERROR);
-            return;
+            return false;
         }
+        //Blocked cards must go through the full certificate check again
+        rtc.revokeCertificate(cardID);
         rtLogger.info("Card blocked successfully", "blockCard", cardID);
+        return true;
+    }
+
+    /**
+     * Chains a protocol run behind the previous one on this terminal. A reader talks to one card at a time,
+     * so runs on the same terminal are serialised while different terminals proceed in parallel.
+     * A failed run does not stop the ones queued behind it.
+     */
+    private synchronized <T> CompletableFuture<T> enqueue(Supplier<CompletableFuture<T>> run) {
+        CompletableFuture<T> next = pending.handle((r, e) -> null).thenCompose(v -> run.get());
+        pending = next;
+        return next;
+    }
+
+    /**
+     * Turn protocol steps that throw checked exceptions into stage functions, for the first, a middle and the
+     * last stage of a run. Named apart so a lambda never matches more than one of them.
+     * The exception reaches the caller as the cause of the CompletionException.
+     */
+    private static <T, R> Function<T, R> midStep(Step<T, R> step) {
+        return t -> {
+            try {
+                return step.apply(t);
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        };
+    }
+
+    private static <R> Supplier<R> startStep(Start<R> step) {
+        return () -> {
+            try {
+                return step.get();
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        };
+    }
+
+    private static <T> Consumer<T> endStep(End<T> step) {
+        return t -> {
+            try {
+                step.accept(t);
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        };
+    }
+
+    private static Throwable unwrap(Throwable e) {
+        return e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+    }
+
+    private interface Start<R> {
+        R get() throws Exception;
+    }
+
+    private interface Step<T, R> {
+        R apply(T t) throws Exception;
+    }
+
+    private interface End<T> {
+        void accept(T t) throws Exception;
     }
 
     public void initialDataForSC() {
@@ -568,6 +694,7 @@ public class ReceptionTerminal extends CommunicatorExtended {
             super.certificate = rtCertificate;
             super.rc = new RTWallet();
             ((KeyWallet) super.rc).storePrivateKey(privateKey);
+            super.certificates = new CertificateCache(CertificateCache.HOST_CAPACITY);
         }
 
         private static class RTWallet extends RSACrypto implements KeyWallet {
@@ -589,7 +716,7 @@ public class ReceptionTerminal extends CommunicatorExtended {
         }
     }
 
-    class SimulatedCardThread extends Thread {
+    class SimulatedCard implements Runnable {
         public void run() {
             AID scAppletAID = AIDUtil.create(SC_APPLET_AID);
             smartcard.installApplet(scAppletAID, Smartcard.class);
@@ -0,0 +1,115 @@
+package rsa;
+
+import Interfaces.ProtocolComponentLengths;
+import javacard.framework.Util;
+import javacard.security.MessageDigest;
+
+/**
+ * Remembers certificates that already passed RSA verification, so repeat cards, terminals and cars
+ * skip the most expensive step of P1/P2.
+ * <p>
+ * Entries are the SHA-256 digest of (public key, ID, signature) plus the ID, stored in fixed arrays so the
+ * same class runs on the card. When full, the least recently used entry is replaced.
+ * A cache only answers for one issuer key; {@link CryptoImplementation#verifyCertificate} clears it when the
+ * issuer changes. Each party owns its cache; a party that learns a card was blocked calls
+ * {@link CryptoImplementation#revokeCertificate}.
+ *
+ * @author Egidius Mysliwietz
+ */
+public class CertificateCache implements ProtocolComponentLengths {
+    public static final short DIGEST_LEN = MessageDigest.LENGTH_SHA_256;
+    public static final short HOST_CAPACITY = 256;
+    public static final short CARD_CAPACITY = 4; //EEPROM is scarce, the card only meets a few terminals and cars
+
+    private final MessageDigest digest = MessageDigest.getInstance(MessageDigest.ALG_SHA_256, false);
+    private final byte[] digests;
+    private final byte[] ids;
+    private final int[] lastUse; //0 marks an empty slot
+    private final byte[] lookup = new byte[DIGEST_LEN];
+    private final short capacity;
+    private int clock = 0;
+    private int hits = 0;
+    private int misses = 0;
+
+    public CertificateCache(short capacity) {
+        this.capacity = capacity;
+        digests = new byte[capacity * DIGEST_LEN];
+        ids = new byte[capacity * ID_LEN];
+        lastUse = new int[capacity];
+    }
+
+    /**
+     * @return true if this exact certificate verified before
+     */
+    public synchronized boolean contains(byte[] pubKey, byte[] id, byte[] signature) {
+        short slot = find(pubKey, id, signature);
+        if (slot < 0) {
+            misses++;
+            return false;
+        }
+        lastUse[slot] = ++clock;
+        hits++;
+        return true;
+    }
+
+    /**
+     * Stores a certificate that just verified, replacing the least recently used one if necessary.
+     */
+    public synchronized void add(byte[] pubKey, byte[] id, byte[] signature) {
+        short slot = find(pubKey, id, signature);
+        if (slot < 0) {
+            slot = 0;
+            for (short i = 1; i < capacity; i++) {
+                if (lastUse[i] < lastUse[slot]) {
+                    slot = i;
+                }
+            }
+            Util.arrayCopyNonAtomic(lookup, (short) 0, digests, (short) (slot * DIGEST_LEN), DIGEST_LEN);
+            Util.arrayCopyNonAtomic(id, (short) 0, ids, (short) (slot * ID_LEN), ID_LEN);
+        }
+        lastUse[slot] = ++clock;
+    }
+
+    /**
+     * Forgets all certificates issued to this ID.
+     */
+    public synchronized void invalidate(byte[] id) {
+        for (short i = 0; i < capacity; i++) {
+            if (lastUse[i] != 0 && Util.arrayCompare(ids, (short) (i * ID_LEN), id, (short) 0, ID_LEN) == 0) {
+                lastUse[i] = 0;
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        for (short i = 0; i < capacity; i++) {
+            lastUse[i] = 0;
+        }
+    }
+
+    public int getHits() {
+        return hits;
+    }
+
+    public int getMisses() {
+        return misses;
+    }
+
+    /**
+     * Hashes the certificate into lookup and searches for it.
+     *
+     * @return slot of the certificate or -1
+     */
+    private short find(byte[] pubKey, byte[] id, byte[] signature) {
+        digest.reset();
+        digest.update(pubKey, (short) 0, (short) pubKey.length);
+        digest.update(id, (short) 0, (short) id.length);
+        digest.doFinal(signature, (short) 0, (short) signature.length, lookup, (short) 0);
+        for (short i = 0; i < capacity; i++) {
+            if (lastUse[i] != 0 && Util.arrayCompare(digests, (short) (i * DIGEST_LEN), lookup, (short) 0, DIGEST_LEN) == 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
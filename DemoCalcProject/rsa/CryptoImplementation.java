@@ -1,6 +1,7 @@
 package rsa;
 
 import Interfaces.ProtocolComponentLengths;
+import javacard.framework.Util;
 import javacard.security.PublicKey;
 import javacard.security.RandomData;
 
@@ -14,6 +15,8 @@ public abstract class CryptoImplementation implements ProtocolComponentLengths {
     protected byte[] ID;
     protected byte[] certificate;
     protected RSACrypto rc;
+    protected CertificateCache certificates;
+    private PublicKey certificateIssuer;
     protected RandomData rd = RandomData.getInstance(RandomData.ALG_SECURE_RANDOM); //DEPRECATED: Change to KEYGENERATION?
 
     public short generateNonce() {
@@ -31,6 +34,14 @@ public abstract class CryptoImplementation implements ProtocolComponentLengths {
         return bytes;
     }
 
+    /**
+     * Fills dest with random bytes, e.g. for session secrets and challenges.
+     */
+    public byte[] generateRandom(byte[] dest) {
+        rd.generateData(dest, (short) 0, (short) dest.length);
+        return dest;
+    }
+
     public byte[] getID() {
         return ID;
     }
@@ -82,6 +93,17 @@ public abstract class CryptoImplementation implements ProtocolComponentLengths {
         return rc.sign(message);
     }
 
+    /**
+     * Encrypts a message of at most 53 bytes, like a session secret, for the holder of pubSK.
+     */
+    public byte[] encrypt(byte[] message, PublicKey pubSK) {
+        return rc.encrypt(message, pubSK);
+    }
+
+    public byte[] decrypt(byte[] ciphertext) {
+        return rc.decrypt(ciphertext);
+    }
+
     public boolean verify(ByteBuffer msgComponents, byte[] signature, PublicKey pubSK) {
         return rc.verify(msgComponents.array(), signature, pubSK);
     }
@@ -90,4 +112,54 @@ public abstract class CryptoImplementation implements ProtocolComponentLengths {
         return rc.verify(msgComponents, signature, pubSK);
     }
 
+    /**
+     * Verifies a certificate, i.e. the signature of the issuer over public key and ID.
+     * Certificates that verified before are looked up in the certificate cache instead.
+     */
+    public boolean verifyCertificate(byte[] pubKey, byte[] id, byte[] signature, PublicKey issuer) {
+        if (certificates == null) {
+            return rc.verify(certificateComponents(pubKey, id), signature, issuer);
+        }
+        //certificateIssuer is guarded by the cache, the RSA verification runs outside of it
+        synchronized (certificates) {
+            if (issuer != certificateIssuer) {
+                certificates.clear();
+                certificateIssuer = issuer;
+            }
+            if (certificates.contains(pubKey, id, signature)) {
+                return true;
+            }
+        }
+        if (!rc.verify(certificateComponents(pubKey, id), signature, issuer)) {
+            return false;
+        }
+        synchronized (certificates) {
+            //Another thread may have switched the issuer while this one verified
+            if (issuer == certificateIssuer) {
+                certificates.add(pubKey, id, signature);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Forgets the cached certificates of a blocked card, it goes through the full check again
+     */
+    public void revokeCertificate(byte[] id) {
+        if (certificates != null) {
+            certificates.invalidate(id);
+        }
+    }
+
+    /**
+     * @return what the issuer signed, the public key followed by the ID; the card overrides this to build it
+     * in transient memory
+     */
+    protected byte[] certificateComponents(byte[] pubKey, byte[] id) {
+        byte[] components = new byte[pubKey.length + id.length];
+        Util.arrayCopyNonAtomic(pubKey, (short) 0, components, (short) 0, (short) pubKey.length);
+        Util.arrayCopyNonAtomic(id, (short) 0, components, (short) pubKey.length, (short) id.length);
+        return components;
+    }
+
 }
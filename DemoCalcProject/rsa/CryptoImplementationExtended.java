@@ -14,6 +14,12 @@ public abstract class CryptoImplementationExtended extends CryptoImplementation
 
     }
 
+    @Override
+    public byte[] generateRandom(byte[] dest) {
+        sr.nextBytes(dest);
+        return dest;
+    }
+
     @Override
     public byte[] generateID() {
         byte[] bytes = new byte[ID_LEN];
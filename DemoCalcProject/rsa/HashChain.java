@@ -0,0 +1,47 @@
+package rsa;
+
+import Interfaces.ProtocolComponentLengths;
+import javacard.framework.JCSystem;
+import javacard.framework.Util;
+import javacard.security.MessageDigest;
+
+/**
+ * SHA-256 hash chain for odometer commitments. The car picks a random seed and hashes it length times; the
+ * last hash is the root it signs once. Kilometre i is proven by revealing the i-th hash counted back from the
+ * root, which only the holder of the seed can compute and anyone can check by hashing it forward.
+ * The card keeps the last link it accepted, so checking a kilometre costs it one SHA-256.
+ *
+ * @author Egidius Mysliwietz
+ */
+public class HashChain implements ProtocolComponentLengths {
+    private final MessageDigest digest = MessageDigest.getInstance(MessageDigest.ALG_SHA_256, false);
+    private final byte[] scratch = JCSystem.makeTransientByteArray(HASH_LEN, JCSystem.CLEAR_ON_RESET);
+
+    /**
+     * @return the links of the chain: [0] is the root, [length] the seed and every link hashes to the one
+     * before it
+     */
+    public byte[][] generate(byte[] seed, short length) {
+        byte[][] links = new byte[length + 1][];
+        links[length] = seed.clone();
+        for (int i = length - 1; i >= 0; i--) {
+            links[i] = new byte[HASH_LEN];
+            digest.doFinal(links[i + 1], (short) 0, HASH_LEN, links[i], (short) 0);
+        }
+        return links;
+    }
+
+    /**
+     * @return whether hashing preimage steps times gives link, i.e. preimage is steps kilometres past link
+     */
+    public boolean follows(byte[] link, byte[] preimage, short steps) {
+        if (steps <= 0) {
+            return false;
+        }
+        Util.arrayCopyNonAtomic(preimage, (short) 0, scratch, (short) 0, HASH_LEN);
+        for (short i = 0; i < steps; i++) {
+            digest.doFinal(scratch, (short) 0, HASH_LEN, scratch, (short) 0);
+        }
+        return Util.arrayCompare(scratch, (short) 0, link, (short) 0, HASH_LEN) == 0;
+    }
+}
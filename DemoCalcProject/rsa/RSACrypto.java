@@ -5,22 +5,37 @@ import javacard.framework.JCSystem;
 import javacard.security.PrivateKey;
 import javacard.security.PublicKey;
 import javacard.security.Signature;
+import javacardx.crypto.Cipher;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
+ * Signing and verification for one party. Safe to share between threads: calls are spread over
+ * a few striped engines, each holding a signer initialised with the private key and verifiers
+ * already initialised for the public keys it has seen recently.
+ *
  * @author Matti Eisenlohr
  * @author Egidius Mysliwietz
  */
 public abstract class RSACrypto implements ProtocolComponentLengths {
+    private static final int STRIPES = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() * 2 - 1)) << 1;
+    private static final int VERIFIERS_PER_STRIPE = 16;
 
-    private final Signature sig = Signature.getInstance(Signature.ALG_RSA_SHA_PKCS1, false);
+    private final Engine[] engines = new Engine[STRIPES];
     protected PrivateKey privk;
 
     public byte[] sign(byte[] msg) {
-        sig.init(privk, Signature.MODE_SIGN);
-        byte[] sigBuf = JCSystem.makeTransientByteArray(SIGNED_HASH_LEN, JCSystem.CLEAR_ON_RESET);
-        short tmps = sig.sign(msg, (short) 0, (short) msg.length, sigBuf, (short) 0);
-        //System.out.println(tmps);
-        return sigBuf;
+        Engine e = acquire();
+        try {
+            byte[] sigBuf = JCSystem.makeTransientByteArray(SIGNED_HASH_LEN, JCSystem.CLEAR_ON_RESET);
+            short tmps = e.signer(privk).sign(msg, (short) 0, (short) msg.length, sigBuf, (short) 0);
+            //System.out.println(tmps);
+            return sigBuf;
+        } finally {
+            e.lock.unlock();
+        }
         /*Cipher decrypt_cipher;
         try {
             // PKCS1Padding
@@ -37,8 +52,12 @@ public abstract class RSACrypto implements ProtocolComponentLengths {
     }
 
     public boolean verify(byte[] rawMsg, byte[] signedMsg, PublicKey pubk) {
-        sig.init(pubk, Signature.MODE_VERIFY);
-        return sig.verify(rawMsg, (short) 0, (short) rawMsg.length, signedMsg, (short) 0, (short) signedMsg.length);
+        Engine e = acquire();
+        try {
+            return e.verifier(pubk).verify(rawMsg, (short) 0, (short) rawMsg.length, signedMsg, (short) 0, (short) signedMsg.length);
+        } finally {
+            e.lock.unlock();
+        }
         /*Cipher encrypt_cipher;
         try {
             // PKCS1Padding
@@ -53,4 +72,106 @@ public abstract class RSACrypto implements ProtocolComponentLengths {
         }
         return null;*/
     }
+
+    public byte[] encrypt(byte[] msg, PublicKey pubk) {
+        Engine e = acquire();
+        try {
+            byte[] cipherBuf = JCSystem.makeTransientByteArray(RSA_CIPHERTEXT_LEN, JCSystem.CLEAR_ON_RESET);
+            Cipher cipher = e.cipher();
+            cipher.init(pubk, Cipher.MODE_ENCRYPT);
+            cipher.doFinal(msg, (short) 0, (short) msg.length, cipherBuf, (short) 0);
+            return cipherBuf;
+        } finally {
+            e.lock.unlock();
+        }
+    }
+
+    public byte[] decrypt(byte[] ciphertext) {
+        Engine e = acquire();
+        try {
+            byte[] plainBuf = JCSystem.makeTransientByteArray(RSA_CIPHERTEXT_LEN, JCSystem.CLEAR_ON_RESET);
+            Cipher cipher = e.cipher();
+            cipher.init(privk, Cipher.MODE_DECRYPT);
+            short len = cipher.doFinal(ciphertext, (short) 0, (short) ciphertext.length, plainBuf, (short) 0);
+            byte[] plain = JCSystem.makeTransientByteArray(len, JCSystem.CLEAR_ON_RESET);
+            System.arraycopy(plainBuf, 0, plain, 0, len);
+            return plain;
+        } finally {
+            e.lock.unlock();
+        }
+    }
+
+    /**
+     * Locks the stripe of the calling thread, or any free one if that is busy.
+     */
+    private Engine acquire() {
+        int start = (int) Thread.currentThread().getId() & (STRIPES - 1);
+        for (int i = 0; i < STRIPES; i++) {
+            Engine e = engine((start + i) & (STRIPES - 1));
+            if (e.lock.tryLock()) {
+                return e;
+            }
+        }
+        Engine e = engine(start);
+        e.lock.lock();
+        return e;
+    }
+
+    //Engines are created on first use so a party that is only ever called from one thread, like the card, has one
+    private Engine engine(int i) {
+        Engine e = engines[i];
+        if (e == null) {
+            synchronized (engines) {
+                e = engines[i];
+                if (e == null) {
+                    e = new Engine();
+                    engines[i] = e;
+                }
+            }
+        }
+        return e;
+    }
+
+    private static final class Engine {
+        final ReentrantLock lock = new ReentrantLock();
+        private Signature signer;
+        private PrivateKey signerKey;
+        //Encryption is rare (once per full P1), so one cipher is re-initialised for each call
+        private Cipher cipher;
+        //Access ordered, so the least recently used verifier is dropped first
+        private final LinkedHashMap<PublicKey, Signature> verifiers = new LinkedHashMap<PublicKey, Signature>(VERIFIERS_PER_STRIPE, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<PublicKey, Signature> eldest) {
+                return size() > VERIFIERS_PER_STRIPE;
+            }
+        };
+
+        Signature signer(PrivateKey key) {
+            if (signer == null) {
+                signer = Signature.getInstance(Signature.ALG_RSA_SHA_PKCS1, false);
+            }
+            if (key != signerKey) {
+                signer.init(key, Signature.MODE_SIGN);
+                signerKey = key;
+            }
+            return signer;
+        }
+
+        Cipher cipher() {
+            if (cipher == null) {
+                cipher = Cipher.getInstance(Cipher.ALG_RSA_PKCS1, false);
+            }
+            return cipher;
+        }
+
+        Signature verifier(PublicKey key) {
+            Signature verifier = verifiers.get(key);
+            if (verifier == null) {
+                verifier = Signature.getInstance(Signature.ALG_RSA_SHA_PKCS1, false);
+                verifier.init(key, Signature.MODE_VERIFY);
+                verifiers.put(key, verifier);
+            }
+            return verifier;
+        }
+    }
 }
@@ -0,0 +1,140 @@
+package rsa;
+
+import Interfaces.ProtocolComponentLengths;
+import javacard.framework.JCSystem;
+import javacard.framework.Util;
+import javacard.security.MessageDigest;
+
+/**
+ * Secret a card and a car share after a full P1, used to resume the session and, through a key derived for
+ * each authenticated connection, to authenticate kilometerage updates with HMAC-SHA-256 instead of RSA.
+ * HMAC is built on MessageDigest so the same class runs on the card. The padded keys are computed once,
+ * a MAC then costs two SHA-256 runs over a few blocks.
+ * <p>
+ * One instance belongs to one session and is not thread-safe.
+ *
+ * @author Egidius Mysliwietz
+ */
+public class SessionKey implements ProtocolComponentLengths {
+    public static final byte CARD_PROOF = 0x01;
+    public static final byte AUTO_PROOF = 0x02;
+    public static final byte KILOMETERAGE_KEY = 0x03;
+    public static final byte KILOMETERAGE_UPDATE = 0x04;
+    public static final byte KILOMETERAGE_CONFIRMATION = 0x05;
+    private static final short BLOCK_LEN = 64;
+    private static final short PROOF_INPUT_LEN = BOOL_LEN + 2 * CHALLENGE_LEN + ID_LEN + SHORT_LEN;
+
+    private final MessageDigest digest = MessageDigest.getInstance(MessageDigest.ALG_SHA_256, false);
+    private final byte[] innerPad = new byte[BLOCK_LEN];
+    private final byte[] outerPad = new byte[BLOCK_LEN];
+    private final byte[] innerHash = JCSystem.makeTransientByteArray(MAC_LEN, JCSystem.CLEAR_ON_RESET);
+    private final byte[] proofInput = JCSystem.makeTransientByteArray(PROOF_INPUT_LEN, JCSystem.CLEAR_ON_RESET);
+    private final byte[] expected = JCSystem.makeTransientByteArray(MAC_LEN, JCSystem.CLEAR_ON_RESET);
+
+    /**
+     * @param secret at most 64 bytes; copied, the caller should clear its array
+     */
+    public SessionKey(byte[] secret) {
+        for (short i = 0; i < BLOCK_LEN; i++) {
+            byte k = i < secret.length ? secret[i] : 0;
+            innerPad[i] = (byte) (k ^ 0x36);
+            outerPad[i] = (byte) (k ^ 0x5c);
+        }
+    }
+
+    /**
+     * Writes the HMAC of msg[offset, offset + length) to out at outOffset.
+     */
+    public void mac(byte[] msg, short offset, short length, byte[] out, short outOffset) {
+        digest.reset();
+        digest.update(innerPad, (short) 0, BLOCK_LEN);
+        digest.doFinal(msg, offset, length, innerHash, (short) 0);
+        digest.update(outerPad, (short) 0, BLOCK_LEN);
+        digest.doFinal(innerHash, (short) 0, MAC_LEN, out, outOffset);
+    }
+
+    public byte[] mac(byte[] msg) {
+        byte[] out = new byte[MAC_LEN];
+        mac(msg, (short) 0, (short) msg.length, out, (short) 0);
+        return out;
+    }
+
+    public boolean verify(byte[] msg, short offset, short length, byte[] mac, short macOffset) {
+        mac(msg, offset, length, expected, (short) 0);
+        return constantTimeEquals(expected, mac, macOffset);
+    }
+
+    /**
+     * MAC one side sends to prove it holds the session when it is resumed. The role keeps a car from
+     * reflecting the card's proof, the challenges of both sides make it fresh and the resumption counter
+     * ties it to one resumption.
+     *
+     * @param role {@link #CARD_PROOF} or {@link #AUTO_PROOF}
+     */
+    public void resumeProof(byte role, byte[] autoChallenge, byte[] cardChallenge, byte[] cardID, short counter,
+                            byte[] out, short outOffset) {
+        short p = 0;
+        proofInput[p++] = role;
+        p = Util.arrayCopyNonAtomic(autoChallenge, (short) 0, proofInput, p, CHALLENGE_LEN);
+        p = Util.arrayCopyNonAtomic(cardChallenge, (short) 0, proofInput, p, CHALLENGE_LEN);
+        p = Util.arrayCopyNonAtomic(cardID, (short) 0, proofInput, p, ID_LEN);
+        Util.setShort(proofInput, p, counter);
+        mac(proofInput, (short) 0, PROOF_INPUT_LEN, out, outOffset);
+    }
+
+    public boolean verifyResumeProof(byte role, byte[] autoChallenge, byte[] cardChallenge, byte[] cardID,
+                                     short counter, byte[] proof, short proofOffset) {
+        resumeProof(role, autoChallenge, cardChallenge, cardID, counter, expected, (short) 0);
+        return constantTimeEquals(expected, proof, proofOffset);
+    }
+
+    /**
+     * @return a key for one purpose, bound to context, e.g. the nonces of the P1 run it is used after
+     */
+    public SessionKey deriveKey(byte label, byte[] context) {
+        byte[] input = JCSystem.makeTransientByteArray((short) (BOOL_LEN + context.length), JCSystem.CLEAR_ON_RESET);
+        input[0] = label;
+        Util.arrayCopyNonAtomic(context, (short) 0, input, BOOL_LEN, (short) context.length);
+        byte[] derived = JCSystem.makeTransientByteArray(MAC_LEN, JCSystem.CLEAR_ON_RESET);
+        mac(input, (short) 0, (short) input.length, derived, (short) 0);
+        SessionKey key = new SessionKey(derived);
+        Util.arrayFillNonAtomic(derived, (short) 0, MAC_LEN, (byte) 0);
+        return key;
+    }
+
+    /**
+     * MAC over tag and kilometerage for P5. The tag, {@link #KILOMETERAGE_UPDATE} from the car or
+     * {@link #KILOMETERAGE_CONFIRMATION} from the card, keeps one side's MAC from passing as the other's.
+     */
+    public void kilometerageMac(byte tag, int kilometerage, byte[] out, short outOffset) {
+        proofInput[0] = tag;
+        Util.setShort(proofInput, BOOL_LEN, (short) (kilometerage >>> 16));
+        Util.setShort(proofInput, (short) (BOOL_LEN + SHORT_LEN), (short) kilometerage);
+        mac(proofInput, (short) 0, (short) (BOOL_LEN + INT_LEN), out, outOffset);
+    }
+
+    public boolean verifyKilometerageMac(byte tag, int kilometerage, byte[] mac, short macOffset) {
+        kilometerageMac(tag, kilometerage, expected, (short) 0);
+        return constantTimeEquals(expected, mac, macOffset);
+    }
+
+    /**
+     * Overwrites the key material, the instance is useless afterwards.
+     */
+    public void clear() {
+        Util.arrayFillNonAtomic(innerPad, (short) 0, BLOCK_LEN, (byte) 0);
+        Util.arrayFillNonAtomic(outerPad, (short) 0, BLOCK_LEN, (byte) 0);
+    }
+
+    //Util.arrayCompare stops at the first difference and would leak how much of a forged MAC is right
+    private static boolean constantTimeEquals(byte[] expected, byte[] actual, short offset) {
+        if (actual == null || actual.length - offset < MAC_LEN) {
+            return false;
+        }
+        int diff = 0;
+        for (short i = 0; i < MAC_LEN; i++) {
+            diff |= expected[i] ^ actual[offset + i];
+        }
+        return diff == 0;
+    }
+}
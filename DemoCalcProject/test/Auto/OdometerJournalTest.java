@@ -0,0 +1,92 @@
+package test.Auto;
+
+import Auto.OdometerJournal;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Egidius Mysliwietz
+ */
+class OdometerJournalTest {
+    private static final byte[] CARD = {1, 2, 3, 4, 5};
+    private static final byte[] OTHER_CARD = {5, 4, 3, 2, 1};
+
+    private static File tempJournal() throws IOException {
+        File file = File.createTempFile("odometer", ".journal");
+        file.deleteOnExit();
+        return file;
+    }
+
+    @Test
+    void pendingKilometresSurviveRestart() throws IOException {
+        File file = tempJournal();
+        OdometerJournal journal = new OdometerJournal(file);
+        for (int i = 0; i < 150; i++) {
+            journal.driven(CARD, 1);
+        }
+        journal.flushed(CARD, 100, 100);
+        journal.driven(OTHER_CARD, 7);
+        journal.close();
+
+        OdometerJournal restarted = new OdometerJournal(file);
+        assertEquals(50, restarted.pending(CARD));
+        assertEquals(100, restarted.confirmedTotal(CARD));
+        assertEquals(7, restarted.pending(OTHER_CARD));
+        assertEquals(-1, restarted.confirmedTotal(OTHER_CARD));
+        restarted.close();
+    }
+
+    @Test
+    void partialRecordIsDropped() throws IOException {
+        File file = tempJournal();
+        OdometerJournal journal = new OdometerJournal(file);
+        journal.driven(CARD, 3);
+        journal.close();
+        long size = file.length();
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            out.write(new byte[]{1, 1, 2});
+        }
+
+        OdometerJournal restarted = new OdometerJournal(file);
+        assertEquals(3, restarted.pending(CARD));
+        assertEquals(size, restarted.size());
+        restarted.driven(CARD, 2);
+        restarted.close();
+        assertEquals(5, new OdometerJournal(file).pending(CARD));
+    }
+
+    @Test
+    void compactionKeepsTotals() throws IOException {
+        File file = tempJournal();
+        OdometerJournal journal = new OdometerJournal(file);
+        for (int i = 1; i <= 5000; i++) {
+            journal.driven(CARD, 1);
+            journal.flushed(CARD, 1, i);
+        }
+        journal.driven(CARD, 4);
+        journal.close();
+        assertTrue(file.length() < 64 * 1024);
+
+        OdometerJournal restarted = new OdometerJournal(file);
+        assertEquals(4, restarted.pending(CARD));
+        assertEquals(5000, restarted.confirmedTotal(CARD));
+        restarted.close();
+    }
+
+    @Test
+    void failedWriteIsReported() throws IOException {
+        File dir = tempJournal();
+        //A journal inside a file cannot be opened, nothing written to it may count as journaled
+        OdometerJournal journal = new OdometerJournal(new File(dir, "odometer.journal"));
+        assertThrows(UncheckedIOException.class, () -> journal.driven(CARD, 1));
+        assertEquals(0, journal.pending(CARD));
+        assertThrows(UncheckedIOException.class, () -> journal.flushed(CARD, 1, 1));
+        assertEquals(-1, journal.confirmedTotal(CARD));
+    }
+}
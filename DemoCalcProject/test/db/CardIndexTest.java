@@ -0,0 +1,73 @@
+package test.db;
+
+import db.CardIndex;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Egidius Mysliwietz
+ */
+class CardIndexTest {
+
+    private static byte[] id(long key) {
+        byte[] id = new byte[5];
+        for (int i = 4; i >= 0; i--) {
+            id[i] = (byte) key;
+            key >>>= 8;
+        }
+        return id;
+    }
+
+    @Test
+    void addAndRemove() {
+        CardIndex index = new CardIndex(0);
+        byte[] card = {81, 55, 62, -117, 111};
+        assertFalse(index.contains(card));
+        index.add(card);
+        assertTrue(index.contains(card.clone()));
+        index.remove(card);
+        assertFalse(index.contains(card));
+        assertFalse(index.contains(new byte[]{1, 2, 3}));
+        assertFalse(index.contains(null));
+    }
+
+    @Test
+    void matchesHashSetWhileGrowingAndShrinking() {
+        CardIndex index = new CardIndex(4);
+        Set<Long> expected = new HashSet<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 20_000; i++) {
+            long key = random.nextInt(5_000) * 0x0101010101L & 0xFFFFFFFFFFL;
+            if (random.nextInt(3) == 0) {
+                index.remove(id(key));
+                expected.remove(key);
+            } else {
+                index.add(id(key));
+                expected.add(key);
+            }
+        }
+        assertEquals(expected.size(), index.size());
+        for (int k = 0; k < 5_000; k++) {
+            long key = k * 0x0101010101L & 0xFFFFFFFFFFL;
+            assertEquals(expected.contains(key), index.contains(id(key)));
+        }
+        assertTrue(index.getBloomRejects() > 0);
+    }
+
+    @Test
+    void malformedIDsAreIgnored() {
+        CardIndex index = new CardIndex(4);
+        index.add(new byte[]{1, 2, 3});
+        index.add(null);
+        assertEquals(0, index.size());
+        index.add(new byte[]{1, 2, 3, 4, 5});
+        index.remove(new byte[]{1, 2, 3});
+        index.remove(null);
+        assertEquals(1, index.size());
+    }
+}
@@ -0,0 +1,111 @@
+package test.db;
+
+import db.Database;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Egidius Mysliwietz
+ */
+public class CardPageTest {
+    private static final byte[][] CARDS = {
+            {0x10, 0, 0, 0, 1},
+            {0x10, 0, 0, 0, 2},
+            {0x10, 0, 0, 0, 3},
+            {0x51, 0x37, 0, 0, 0},
+            {0x51, 0x37, (byte) 0xFF, 0, 0},
+            {0x51, 0x38, 0, 0, 0},
+            {0x51, (byte) 0xFF, 1, 2, 3},
+            {0x52, 0, 0, 0, 0},
+            {(byte) 0xFF, (byte) 0xFF, 0, 0, 1},
+    };
+
+    File dbFile;
+    Database db;
+
+    @BeforeEach
+    void setUp() throws IOException, SQLException {
+        dbFile = File.createTempFile("cards", ".db");
+        String url = "jdbc:sqlite:" + dbFile.getAbsolutePath();
+        db = new Database(url, 1);
+        try (Connection conn = DriverManager.getConnection(url);
+             PreparedStatement pstmt = conn.prepareStatement("INSERT INTO cards(id,publickey,certificate) VALUES(?,?,?)")) {
+            for (byte[] card : CARDS) {
+                pstmt.setBytes(1, card);
+                pstmt.setBytes(2, new byte[]{0});
+                pstmt.setBytes(3, new byte[]{0});
+                pstmt.executeUpdate();
+            }
+        }
+    }
+
+    @AfterEach
+    void tearDown() {
+        dbFile.delete();
+    }
+
+    @Test
+    void pagesFollowEachOther() {
+        List<byte[]> first = db.getCardPage(null, null, 4);
+        assertEquals(4, first.size());
+        for (int i = 0; i < 4; i++) {
+            assertArrayEquals(CARDS[i], first.get(i));
+        }
+        List<byte[]> second = db.getCardPage(first.get(3), null, 4);
+        assertEquals(4, second.size());
+        assertArrayEquals(CARDS[4], second.get(0));
+        List<byte[]> last = db.getCardPage(second.get(3), null, 4);
+        assertEquals(1, last.size());
+        assertArrayEquals(CARDS[8], last.get(0));
+        assertTrue(db.getCardPage(last.get(0), null, 4).isEmpty());
+    }
+
+    @Test
+    void fullLastPageIsFollowedByEmptyPage() {
+        byte[] prefix = {0x10};
+        List<byte[]> page = db.getCardPage(null, prefix, 3);
+        assertEquals(3, page.size());
+        assertTrue(db.getCardPage(page.get(2), prefix, 3).isEmpty());
+    }
+
+    @Test
+    void prefixSelectsRange() {
+        List<byte[]> page = db.getCardPage(null, new byte[]{0x51, 0x37}, 10);
+        assertEquals(2, page.size());
+        assertArrayEquals(CARDS[3], page.get(0));
+        assertArrayEquals(CARDS[4], page.get(1));
+        //Paging within a prefix stays inside it
+        List<byte[]> next = db.getCardPage(page.get(0), new byte[]{0x51}, 2);
+        assertEquals(2, next.size());
+        assertArrayEquals(CARDS[4], next.get(0));
+        assertArrayEquals(CARDS[5], next.get(1));
+        assertTrue(db.getCardPage(null, new byte[]{0x20}, 10).isEmpty());
+    }
+
+    @Test
+    void prefixEndingInFFStopsAtNextPrefix() {
+        List<byte[]> page = db.getCardPage(null, new byte[]{0x51, (byte) 0xFF}, 10);
+        assertEquals(1, page.size());
+        assertArrayEquals(CARDS[6], page.get(0));
+        //Nothing sorts after a prefix of only 0xFF, so the range is open ended
+        page = db.getCardPage(null, new byte[]{(byte) 0xFF, (byte) 0xFF}, 10);
+        assertEquals(1, page.size());
+        assertArrayEquals(CARDS[8], page.get(0));
+    }
+
+    @Test
+    void pageSizeMustBePositive() {
+        assertThrows(IllegalArgumentException.class, () -> db.getCardPage(null, null, 0));
+    }
+}
@@ -0,0 +1,70 @@
+package test.db;
+
+import db.ConnectionPool;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Egidius Mysliwietz
+ */
+class ConnectionPoolTest {
+
+    private File file;
+    private ConnectionPool pool;
+
+    @BeforeEach
+    void setUp() throws IOException, SQLException, ClassNotFoundException {
+        Class.forName("org.sqlite.JDBC");
+        file = File.createTempFile("pool", ".db");
+        pool = new ConnectionPool("jdbc:sqlite:" + file.getAbsolutePath(), 2);
+        try (ConnectionPool.PooledConnection c = pool.acquire();
+             Statement s = c.getConnection().createStatement()) {
+            s.execute("CREATE TABLE cards(id blob PRIMARY KEY)");
+        }
+    }
+
+    @AfterEach
+    void tearDown() {
+        pool.close();
+        file.delete();
+    }
+
+    @Test
+    void cachesStatementsPerConnection() throws SQLException {
+        try (ConnectionPool.PooledConnection c = pool.acquire()) {
+            PreparedStatement first = c.prepare("SELECT id FROM cards WHERE id = ?");
+            assertSame(first, c.prepare("SELECT id FROM cards WHERE id = ?"));
+            try (ResultSet rs = c.getConnection().createStatement().executeQuery("PRAGMA journal_mode")) {
+                assertEquals("wal", rs.getString(1).toLowerCase());
+            }
+        }
+        assertEquals(2, pool.available());
+    }
+
+    @Test
+    void readsWhileWriteIsOpen() throws SQLException {
+        try (ConnectionPool.PooledConnection writer = pool.acquire();
+             ConnectionPool.PooledConnection reader = pool.acquire()) {
+            writer.getConnection().setAutoCommit(false);
+            PreparedStatement insert = writer.prepare("INSERT INTO cards(id) VALUES(?)");
+            insert.setBytes(1, new byte[]{1, 2, 3, 4, 5});
+            insert.executeUpdate();
+            //The uncommitted card is not visible, and the reader is not blocked
+            try (ResultSet rs = reader.prepare("SELECT COUNT(*) FROM cards").executeQuery()) {
+                assertEquals(0, rs.getInt(1));
+            }
+            writer.getConnection().commit();
+            writer.getConnection().setAutoCommit(true);
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package test.db;
+
+import db.ConvertKey;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Egidius Mysliwietz
+ */
+class ConvertKeyTest {
+
+    private final ConvertKey conv = new ConvertKey();
+
+    @Test
+    void sameFormatAsStoredHexText() {
+        assertEquals("00 7F 80 FF 0A ", conv.toHexString(new byte[]{0, 127, -128, -1, 10}));
+    }
+
+    @Test
+    void hexRoundTrip() {
+        byte[] bytes = new byte[256];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) i;
+        }
+        assertArrayEquals(bytes, conv.fromHexString(conv.toHexString(bytes)));
+        assertEquals(0, conv.fromHexString("").length);
+    }
+}
@@ -1,5 +1,10 @@
 package test.db;
 
+import Interfaces.Communicator;
+import Interfaces.Mailbox;
+import Interfaces.ProtocolComponentLengths;
+import Interfaces.Receivable;
+import Interfaces.RequestChannel;
 import db.Database;
 import javacard.security.RSAPrivateKey;
 import javacard.security.RSAPublicKey;
@@ -8,6 +13,15 @@ import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
 class DatabaseTest {
 
     Database db;
@@ -27,4 +41,61 @@ class DatabaseTest {
         Assertions.assertTrue(keyPair[0] instanceof RSAPublicKey);
         Assertions.assertTrue(keyPair[1] instanceof RSAPrivateKey);
     }
-}
\ No newline at end of file
+
+    @Test
+    void carAssignTakesFreeCarsOnly() {
+        byte[] card1 = {1, 2, 3, 4, 5};
+        byte[] card2 = {5, 4, 3, 2, 1};
+        db.carUnassign(card1);
+        db.carUnassign(card2);
+        db.generateAuto(); //The only car, autos are cleared on startup
+        Assertions.assertNotNull(db.carAssign(card1));
+        Assertions.assertNull(db.carAssign(card2));
+        db.carUnassign(card1);
+        Assertions.assertNotNull(db.carAssign(card2));
+        db.carUnassign(card2);
+    }
+
+    @Test
+    void generateCardsInBatches() {
+        //Three cards in batches of two, keeping the test off the committed database
+        db.setProvisioningBatch(2);
+        List<Integer> progress = new ArrayList<>();
+        List<byte[]> installs = db.generateCards(3, (written, total) -> progress.add(written))
+                .collect(Collectors.toList());
+        Assertions.assertEquals(3, installs.size());
+        Assertions.assertEquals(List.of(2, 3), progress);
+        for (byte[] install : installs) {
+            byte[] cardID = Arrays.copyOf(install, ProtocolComponentLengths.ID_LEN);
+            Assertions.assertFalse(db.isBlocked(cardID));
+            db.deleteCard(cardID);
+            Assertions.assertTrue(db.isBlocked(cardID));
+        }
+    }
+
+    @Test
+    void provisioningBatchMustBePositive() {
+        Assertions.assertThrows(IllegalArgumentException.class, () -> db.setProvisioningBatch(0));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> db.setProvisioningBatch(-1));
+    }
+
+    @Test
+    void malformedRequestFailsFast() {
+        RequestChannel channel = new RequestChannel();
+        Receivable requester = new Receivable() {
+            @Override
+            public Mailbox<ByteBuffer> getInputQueue() {
+                return null;
+            }
+
+            @Override
+            public void receiveReply(byte[] reply) {
+                channel.complete(reply);
+            }
+        };
+        //A card ID cut short gets a failure reply, not silence until the requester times out
+        CompletableFuture<ByteBuffer> reply = channel.request(db, requester, Communicator.BLOCK, new byte[]{1, 2});
+        ExecutionException e = Assertions.assertThrows(ExecutionException.class, () -> reply.get(5, TimeUnit.SECONDS));
+        Assertions.assertTrue(e.getCause() instanceof RequestChannel.RequestFailedException);
+    }
+}
@@ -0,0 +1,51 @@
+package test.db;
+
+import db.KeyPairPool;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Egidius Mysliwietz
+ */
+class KeyPairPoolTest {
+
+    private final AtomicInteger generated = new AtomicInteger();
+
+    private Object[] fakeKeyPair() {
+        int i = generated.incrementAndGet();
+        return new Object[]{"public " + i, "private " + i};
+    }
+
+    private static void awaitFull(KeyPairPool pool) throws InterruptedException {
+        for (int i = 0; i < 200 && pool.available() < pool.getDepth(); i++) {
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    void takesFromPrefilledPool() throws InterruptedException {
+        KeyPairPool pool = new KeyPairPool(4, 2, this::fakeKeyPair);
+        awaitFull(pool);
+        assertEquals(4, pool.available());
+        for (int i = 0; i < 4; i++) {
+            assertEquals(2, pool.take().length);
+        }
+        assertEquals(4, pool.getHits());
+        assertEquals(0, pool.getMisses());
+        awaitFull(pool);
+        assertEquals(4, pool.available());
+    }
+
+    @Test
+    void generatesOnMissWhenDisabled() {
+        KeyPairPool pool = new KeyPairPool(0, 2, this::fakeKeyPair);
+        Object[] keyPair = pool.take();
+        assertEquals("public 1", keyPair[0]);
+        assertEquals(0, pool.getHits());
+        assertEquals(1, pool.getMisses());
+        assertEquals(0, pool.available());
+    }
+}
@@ -0,0 +1,119 @@
+package test.db;
+
+import db.ConvertKey;
+import db.Database;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Opens a database written by the schema before BLOB columns (user_version 0, everything hex text)
+ *
+ * @author Egidius Mysliwietz
+ */
+public class MigrationTest {
+    private static final String[] V0_TABLES = {
+            "CREATE TABLE autos(\"id\" text UNIQUE, \"publickey\" text NOT NULL, \"certificate\" text NOT NULL, PRIMARY KEY(\"id\"))",
+            "CREATE TABLE \"cards\" (\"id\" text UNIQUE, \"publickey\" text NOT NULL, \"certificate\" text NOT NULL, PRIMARY KEY(\"id\"))",
+            "CREATE TABLE \"database\" (\"publickey\" TEXT, \"privatekey\" TEXT, \"id\" TEXT UNIQUE, PRIMARY KEY(\"id\"))",
+            "CREATE TABLE \"rentRelations\" (\"cardID\" text, \"autoID\" text NOT NULL, PRIMARY KEY(\"cardID\"))",
+            "CREATE TABLE \"terminals\" (\"id\" text UNIQUE, \"publickey\" text NOT NULL, \"certificate\" text NOT NULL, PRIMARY KEY(\"id\"))"
+    };
+    private static final byte[] CARD_ID = {81, 55, 62, -117, 111};
+    private static final byte[] CARD_KEY = {0, 127, -128, -1, 10, 1};
+    private static final byte[] CARD_CERT = {-1, -1, 0, 0, 42};
+    private static final byte[] AUTO_ID = {1, 2, 3, 4, 5};
+    private static final byte[] TERMINAL_ID = {-128, 0, 0, 0, 1};
+
+    private final ConvertKey conv = new ConvertKey();
+    File dbFile;
+    String url;
+
+    @BeforeEach
+    void setUp() throws IOException, SQLException {
+        dbFile = File.createTempFile("v0", ".db");
+        url = "jdbc:sqlite:" + dbFile.getAbsolutePath();
+        try (Connection conn = DriverManager.getConnection(url);
+             Statement s = conn.createStatement()) {
+            for (String table : V0_TABLES) {
+                s.execute(table);
+            }
+            insert(conn, "INSERT INTO cards(id,publickey,certificate) VALUES(?,?,?)", CARD_ID, CARD_KEY, CARD_CERT);
+            insert(conn, "INSERT INTO rentRelations(cardID,autoID) VALUES(?,?)", CARD_ID, AUTO_ID);
+            insert(conn, "INSERT INTO terminals(id,publickey,certificate) VALUES(?,?,?)", TERMINAL_ID, CARD_KEY, CARD_CERT);
+        }
+    }
+
+    @AfterEach
+    void tearDown() {
+        dbFile.delete();
+    }
+
+    private void insert(Connection conn, String sql, byte[]... values) throws SQLException {
+        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            for (int i = 0; i < values.length; i++) {
+                pstmt.setString(i + 1, conv.toHexString(values[i]));
+            }
+            pstmt.executeUpdate();
+        }
+    }
+
+    @Test
+    void hexTextBecomesBlob() throws SQLException {
+        Database db = new Database(url, 1);
+        assertFalse(db.isBlocked(CARD_ID));
+        try (Connection conn = DriverManager.getConnection(url);
+             Statement s = conn.createStatement()) {
+            try (ResultSet rs = s.executeQuery("PRAGMA user_version")) {
+                assertEquals(2, rs.getInt(1));
+            }
+            try (ResultSet rs = s.executeQuery("SELECT id, publickey, certificate, typeof(id) AS type FROM cards")) {
+                assertTrue(rs.next());
+                assertEquals("blob", rs.getString("type"));
+                assertArrayEquals(CARD_ID, rs.getBytes("id"));
+                assertArrayEquals(CARD_KEY, rs.getBytes("publickey"));
+                assertArrayEquals(CARD_CERT, rs.getBytes("certificate"));
+                assertFalse(rs.next());
+            }
+            try (ResultSet rs = s.executeQuery("SELECT cardID, autoID FROM rentRelations")) {
+                assertTrue(rs.next());
+                assertArrayEquals(CARD_ID, rs.getBytes("cardID"));
+                assertArrayEquals(AUTO_ID, rs.getBytes("autoID"));
+            }
+            try (ResultSet rs = s.executeQuery("SELECT id FROM terminals")) {
+                assertTrue(rs.next());
+                assertArrayEquals(TERMINAL_ID, rs.getBytes("id"));
+            }
+            try (ResultSet rs = s.executeQuery("SELECT count(*) FROM sqlite_master WHERE name LIKE '%_text'")) {
+                assertEquals(0, rs.getInt(1));
+            }
+            try (ResultSet rs = s.executeQuery("PRAGMA table_info(autos)")) {
+                boolean available = false;
+                while (rs.next()) {
+                    available |= "available".equals(rs.getString("name"));
+                }
+                assertTrue(available);
+            }
+        }
+    }
+
+    @Test
+    void migratedDatabaseOpensAgain() throws SQLException {
+        //The keys generated on the first open are read back from BLOB columns, the data is left alone
+        String dbKey = conv.publicToString(new Database(url, 1).getDbPubSK());
+        assertEquals(dbKey, conv.publicToString(new Database(url, 1).getDbPubSK()));
+        try (Connection conn = DriverManager.getConnection(url);
+             Statement s = conn.createStatement();
+             ResultSet rs = s.executeQuery("SELECT id FROM cards")) {
+            assertTrue(rs.next());
+            assertArrayEquals(CARD_ID, rs.getBytes("id"));
+            assertFalse(rs.next());
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package test.interfaces;
+
+import Interfaces.ApduCursor;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Egidius Mysliwietz
+ */
+public class ApduCursorTest {
+
+    private static final byte[] SIGNATURE = {1, 2, 3, 4, 5, 6, 7, 8};
+
+    @Test
+    void arrayRoundTripTest() {
+        byte[] apdu = new byte[64];
+        ApduCursor cursor = new ApduCursor();
+        cursor.wrap(apdu, 7).putByte((byte) 0xFF).putShort((short) -2).putInt(123456789).putBlob(SIGNATURE);
+        assertEquals(7 + 1 + 2 + 4 + 4 + SIGNATURE.length, cursor.position());
+
+        cursor.wrap(apdu, 7);
+        assertEquals((byte) 0xFF, cursor.getByte());
+        assertEquals((short) -2, cursor.getShort());
+        assertEquals(123456789, cursor.getInt());
+        assertEquals(SIGNATURE.length, cursor.peekBlobLength());
+        byte[] sig = new byte[cursor.peekBlobLength()];
+        assertEquals(SIGNATURE.length, cursor.getBlob(sig));
+        assertArrayEquals(SIGNATURE, sig);
+    }
+
+    @Test
+    void sameLayoutAsByteBufferTest() {
+        byte[] apdu = new byte[32];
+        new ApduCursor().wrap(apdu, 0).putShort((short) 513).putInt(-7).putBlob(SIGNATURE);
+        ByteBuffer expected = ByteBuffer.allocate(32);
+        expected.putShort((short) 513).putInt(-7).putInt(SIGNATURE.length).put(SIGNATURE);
+        assertArrayEquals(expected.array(), apdu);
+    }
+
+    @Test
+    void byteBufferMovesWithCursorTest() {
+        ByteBuffer msgBuf = ByteBuffer.allocateDirect(32);
+        ApduCursor cursor = new ApduCursor();
+        cursor.wrap(msgBuf).putShort((short) 1).putBlob(SIGNATURE);
+        assertEquals(2 + 4 + SIGNATURE.length, msgBuf.position());
+        msgBuf.flip();
+        cursor.wrap(msgBuf);
+        assertEquals((short) 1, cursor.getShort());
+        byte[] sig = new byte[SIGNATURE.length];
+        cursor.getBlob(sig);
+        assertArrayEquals(SIGNATURE, sig);
+        assertFalse(msgBuf.hasRemaining());
+    }
+}
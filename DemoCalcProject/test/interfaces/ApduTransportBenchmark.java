@@ -0,0 +1,67 @@
+package test.interfaces;
+
+import Interfaces.ApduTransport;
+import Interfaces.Communicator;
+import Interfaces.SimulatorTransport;
+import Interfaces.SmartcardIOTransport;
+import Interfaces.TransportStats;
+import Smartcard.Smartcard;
+import com.licel.jcardsim.smartcardio.CardSimulator;
+import com.licel.jcardsim.smartcardio.CardTerminalSimulator;
+import com.licel.jcardsim.utils.AIDUtil;
+import javacard.framework.AID;
+
+import javax.smartcardio.Card;
+import javax.smartcardio.CardChannel;
+import javax.smartcardio.CardTerminal;
+import javax.smartcardio.CommandAPDU;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Compares the APDU transports on a simulated card with a message the size of a full message buffer.
+ * Run the main method; it prints bytes copied, time and allocation per APDU.
+ *
+ * @author Egidius Mysliwietz
+ */
+public class ApduTransportBenchmark {
+    private static final int WARMUP = 5_000;
+    private static final int ITERATIONS = 50_000;
+    private static final byte[] SC_APPLET_AID = {0x3B, 0x29, 0x63, 0x61, 0x6C, 0x63, 0x01};
+
+    public static void main(String[] args) throws Exception {
+        CardSimulator card = new CardSimulator();
+        AID aid = AIDUtil.create(SC_APPLET_AID);
+        card.installApplet(aid, Smartcard.class);
+        CardTerminal terminal = CardTerminalSimulator.terminal(card);
+        Card connection = terminal.connect("*");
+        CardChannel channel = connection.getBasicChannel();
+        channel.transmit(new CommandAPDU(0x00, 0xA4, 0x04, 0x00, SC_APPLET_AID));
+
+        //The card ignores continuation messages it does not wait for, so only the transport is measured
+        byte[] data = new byte[512];
+        run(new SmartcardIOTransport(() -> channel), data);
+        run(new SimulatorTransport(card), data);
+    }
+
+    private static void run(ApduTransport transport, byte[] data) throws Exception {
+        for (int i = 0; i < WARMUP; i++) {
+            transport.transmit(Communicator.CARD_CONT, Communicator.INSERT_M2, data, 0, data.length, 1024);
+        }
+        TransportStats stats = transport.getStats();
+        stats.reset();
+        long allocBefore = allocatedBytes();
+        for (int i = 0; i < ITERATIONS; i++) {
+            transport.transmit(Communicator.CARD_CONT, Communicator.INSERT_M2, data, 0, data.length, 1024);
+        }
+        long allocated = allocatedBytes() - allocBefore;
+        System.out.println(String.format("%s, %d B allocated/APDU", stats, allocated / ITERATIONS));
+    }
+
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,64 @@
+package test.interfaces;
+
+import Interfaces.ApduTransport;
+import Interfaces.SimulatorTransport;
+import com.licel.jcardsim.smartcardio.CardSimulator;
+import org.junit.jupiter.api.Test;
+
+import javax.smartcardio.CardException;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Egidius Mysliwietz
+ */
+public class ApduTransportTest {
+
+    private static class RecordingCard extends CardSimulator {
+        private byte[] lastCommand;
+
+        @Override
+        public byte[] transmitCommand(byte[] command) {
+            lastCommand = command.clone();
+            return new byte[]{1, 2, (byte) 0x90, 0x00};
+        }
+    }
+
+    private static byte[] payload(int length) {
+        byte[] data = new byte[length + 3];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        return data;
+    }
+
+    @Test
+    void sameEncodingAsCommandAPDUTest() throws CardException {
+        RecordingCard card = new RecordingCard();
+        SimulatorTransport transport = new SimulatorTransport(card);
+        int[][] shapes = {{0, 256}, {0, 512}, {10, 256}, {10, 0}, {300, 0}, {512, 1024}, {512, 65536}};
+        for (int[] shape : shapes) {
+            byte[] data = payload(shape[0]);
+            transport.transmit((byte) 0xD0, (byte) 0x21, data, 3, shape[0], shape[1]);
+            CommandAPDU expected = shape[0] == 0
+                    ? new CommandAPDU(0xD0, 0x21, 0, 0, shape[1])
+                    : new CommandAPDU(0xD0, 0x21, 0, 0, data, 3, shape[0], shape[1]);
+            assertArrayEquals(expected.getBytes(), card.lastCommand, shape[0] + " bytes, ne " + shape[1]);
+            assertEquals(expected.getBytes().length, ApduTransport.commandLength(shape[0], shape[1]));
+        }
+    }
+
+    @Test
+    void countsCopiesTest() throws CardException {
+        SimulatorTransport transport = new SimulatorTransport(new RecordingCard());
+        long apdus = transport.getStats().getApdus();
+        long copied = transport.getStats().getBytesCopied();
+        ResponseAPDU response = transport.transmit((byte) 0xD0, (byte) 0x21, payload(512), 0, 512, 1024);
+        assertEquals(0x9000, response.getSW());
+        assertEquals(2, response.getNr());
+        assertEquals(apdus + 1, transport.getStats().getApdus());
+        assertEquals(copied + 512 + 4, transport.getStats().getBytesCopied());
+    }
+}
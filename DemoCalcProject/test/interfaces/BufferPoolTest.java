@@ -0,0 +1,64 @@
+package test.interfaces;
+
+import Interfaces.BufferPool;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Egidius Mysliwietz
+ */
+public class BufferPoolTest {
+
+    @Test
+    void reusesZeroedBufferTest() {
+        BufferPool pool = new BufferPool(2, false);
+        ByteBuffer first;
+        try (BufferPool.Lease lease = pool.lease(300)) {
+            first = lease.buffer();
+            assertEquals(512, first.capacity());
+            first.putInt(42).put((byte) 7);
+        }
+        assertEquals(1, pool.available(300));
+        try (BufferPool.Lease lease = pool.lease(512)) {
+            ByteBuffer second = lease.buffer();
+            assertSame(first, second);
+            assertEquals(0, second.position());
+            assertEquals(0, second.getInt(0));
+            assertEquals(0, second.get(4));
+        }
+        assertEquals(1, pool.getHits());
+        assertEquals(1, pool.getMisses());
+    }
+
+    @Test
+    void concurrentLeasesGetDistinctBuffersTest() {
+        BufferPool pool = new BufferPool(2, true);
+        try (BufferPool.Lease a = pool.lease(512); BufferPool.Lease b = pool.lease(512)) {
+            assertNotSame(a.buffer(), b.buffer());
+            assertTrue(a.buffer().isDirect());
+        }
+        assertEquals(2, pool.available(512));
+    }
+
+    @Test
+    void closedLeaseCannotBeUsedTest() {
+        BufferPool pool = new BufferPool(1, false);
+        BufferPool.Lease lease = pool.lease(16);
+        lease.close();
+        lease.close();
+        assertEquals(1, pool.available(16));
+        assertThrows(IllegalStateException.class, lease::buffer);
+    }
+
+    @Test
+    void oversizedBuffersAreNotPooledTest() {
+        BufferPool pool = new BufferPool(1, false);
+        try (BufferPool.Lease lease = pool.lease(BufferPool.MAX_CLASS + 1)) {
+            assertEquals(BufferPool.MAX_CLASS + 1, lease.buffer().capacity());
+        }
+        assertEquals(0, pool.available(BufferPool.MAX_CLASS + 1));
+    }
+}
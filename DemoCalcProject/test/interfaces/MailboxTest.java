@@ -0,0 +1,125 @@
+package test.interfaces;
+
+import Interfaces.Mailbox;
+import Interfaces.Receivable;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Egidius Mysliwietz
+ */
+public class MailboxTest {
+
+    @Test
+    void deliversInOrderTest() throws InterruptedException {
+        Mailbox<Integer> mb = new Mailbox<>(4);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(mb.offer(i));
+        }
+        for (int i = 0; i < 4; i++) {
+            assertEquals(Integer.valueOf(i), mb.take(1, TimeUnit.SECONDS));
+        }
+        assertTrue(mb.isEmpty());
+    }
+
+    @Test
+    void rejectsWhenFullTest() {
+        Mailbox<Integer> mb = new Mailbox<>(2);
+        assertTrue(mb.offer(1));
+        assertTrue(mb.offer(2));
+        assertFalse(mb.offer(3));
+        assertEquals(Integer.valueOf(1), mb.poll());
+        assertTrue(mb.offer(3));
+    }
+
+    @Test
+    void singleSlotRejectsWhenFullTest() {
+        Mailbox<Integer> mb = new Mailbox<>(1);
+        assertTrue(mb.offer(1));
+        assertTrue(mb.offer(2));
+        assertFalse(mb.offer(3));
+        assertEquals(Integer.valueOf(1), mb.poll());
+        assertEquals(Integer.valueOf(2), mb.poll());
+    }
+
+    @Test
+    void receiverReportsFullInboxTest() {
+        Mailbox<ByteBuffer> inbox = new Mailbox<>(2);
+        Receivable receiver = new Receivable() {
+            @Override
+            public Mailbox<ByteBuffer> getInputQueue() {
+                return inbox;
+            }
+
+            @Override
+            public void receiveReply(byte[] reply) {
+            }
+        };
+        assertTrue(receiver.receive(new byte[]{1}));
+        assertTrue(receiver.receive(new byte[]{2}));
+        //The sender learns about the drop instead of waiting for a reply that never comes
+        assertFalse(receiver.receive(new byte[]{3}));
+    }
+
+    @Test
+    void takeTimesOutWhenEmptyTest() throws InterruptedException {
+        Mailbox<Integer> mb = new Mailbox<>(2);
+        assertNull(mb.take(50, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    void takeWakesOnOfferTest() throws InterruptedException {
+        Mailbox<Integer> mb = new Mailbox<>(2);
+        Thread sender = new Thread(() -> {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+            mb.offer(42);
+        });
+        sender.start();
+        assertEquals(Integer.valueOf(42), mb.take(10, TimeUnit.SECONDS));
+        sender.join();
+    }
+
+    @Test
+    void separateMailboxesDoNotShareMessagesTest() {
+        Mailbox<Integer> a = new Mailbox<>(2);
+        Mailbox<Integer> b = new Mailbox<>(2);
+        a.offer(1);
+        assertNull(b.poll());
+        assertEquals(Integer.valueOf(1), a.poll());
+    }
+
+    @Test
+    void concurrentSendersLoseNothingTest() throws InterruptedException {
+        int senders = 4;
+        int perSender = 1000;
+        Mailbox<Integer> mb = new Mailbox<>(64);
+        Thread[] threads = new Thread[senders];
+        for (int s = 0; s < senders; s++) {
+            threads[s] = new Thread(() -> {
+                for (int i = 0; i < perSender; i++) {
+                    while (!mb.offer(1)) {
+                        Thread.yield();
+                    }
+                }
+            });
+            threads[s].start();
+        }
+        int received = 0;
+        while (received < senders * perSender) {
+            assertNotNull(mb.take(10, TimeUnit.SECONDS));
+            received++;
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertTrue(mb.isEmpty());
+    }
+}
@@ -0,0 +1,91 @@
+package test.interfaces;
+
+import Interfaces.MessageCodec;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+
+/**
+ * Compares {@link MessageCodec} with the Java serialization that prepareMessage/processMessage used before.
+ * Run the main method; it prints message size, time and allocation per encode+decode round trip.
+ *
+ * @author Egidius Mysliwietz
+ */
+public class MessageCodecBenchmark {
+    private static final int WARMUP = 20_000;
+    private static final int ITERATIONS = 200_000;
+    private static final byte[] CARD_ID = {81, 55, 62, -117, 111};
+    private static final String CONFIRMATION = "51 37 3E 8B 6F  has been removed from Rent Relations.";
+
+    public static void main(String[] args) throws Exception {
+        ByteBuffer msgBuf = ByteBuffer.allocate(512);
+        byte[] idOut = new byte[CARD_ID.length];
+        StringBuilder sb = new StringBuilder(64);
+
+        System.out.println("Serialized size: " + serialize(CONFIRMATION, (short) 7, 42, CARD_ID).length + " bytes");
+        System.out.println("Codec size:      " + MessageCodec.encodedLength(CONFIRMATION, (short) 7, 42, CARD_ID) + " bytes");
+
+        run("Java serialization", () -> {
+            Object[] o = deserialize(serialize(CONFIRMATION, (short) 7, 42, CARD_ID));
+            return o.length;
+        });
+        run("MessageCodec", () -> {
+            msgBuf.clear();
+            MessageCodec.putString(msgBuf, CONFIRMATION);
+            MessageCodec.putShort(msgBuf, (short) 7);
+            MessageCodec.putInt(msgBuf, 42);
+            MessageCodec.putBytes(msgBuf, CARD_ID);
+            msgBuf.flip();
+            sb.setLength(0);
+            MessageCodec.getString(msgBuf, sb);
+            return MessageCodec.getShort(msgBuf) + MessageCodec.getInt(msgBuf) + MessageCodec.getBytes(msgBuf, idOut, 0);
+        });
+    }
+
+    private static void run(String name, RoundTrip roundTrip) throws Exception {
+        long sink = 0;
+        for (int i = 0; i < WARMUP; i++) {
+            sink += roundTrip.run();
+        }
+        long allocBefore = allocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            sink += roundTrip.run();
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocated = allocatedBytes() - allocBefore;
+        System.out.println(String.format("%-20s %8.1f ns/op %8d B/op (%d)", name,
+                (double) elapsed / ITERATIONS, allocated / ITERATIONS, sink));
+    }
+
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+
+    //The previous implementation of CommunicatorExtended.prepareMessage
+    private static byte[] serialize(Object... objects) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(bos);
+        oos.writeObject(objects);
+        oos.flush();
+        oos.close();
+        return bos.toByteArray();
+    }
+
+    //The previous implementation of CommunicatorExtended.processMessage
+    private static Object[] deserialize(byte[] message) throws IOException, ClassNotFoundException {
+        ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(message));
+        Object o = ois.readObject();
+        ois.close();
+        return (Object[]) o;
+    }
+
+    private interface RoundTrip {
+        long run() throws Exception;
+    }
+}
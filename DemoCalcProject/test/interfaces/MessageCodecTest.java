@@ -0,0 +1,78 @@
+package test.interfaces;
+
+import Interfaces.MessageCodec;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Egidius Mysliwietz
+ */
+public class MessageCodecTest {
+
+    @Test
+    void typedFieldsRoundTripTest() {
+        ByteBuffer buf = ByteBuffer.allocate(512);
+        byte[] id = {81, 55, 62, -117, 111};
+        MessageCodec.putShort(buf, Short.MIN_VALUE);
+        MessageCodec.putInt(buf, -666666666);
+        MessageCodec.putBytes(buf, id);
+        MessageCodec.putString(buf, "has been removed");
+        buf.flip();
+
+        assertEquals(MessageCodec.TYPE_SHORT, MessageCodec.peekType(buf));
+        assertEquals(Short.MIN_VALUE, MessageCodec.getShort(buf));
+        assertEquals(-666666666, MessageCodec.getInt(buf));
+        byte[] idOut = new byte[MessageCodec.peekBytesLength(buf)];
+        assertEquals(id.length, MessageCodec.getBytes(buf, idOut, 0));
+        assertArrayEquals(id, idOut);
+        assertEquals("has been removed", MessageCodec.getString(buf, new StringBuilder()).toString());
+        assertFalse(buf.hasRemaining());
+    }
+
+    @Test
+    void nonAsciiStringsRoundTripTest() {
+        String s = "Price: 0.30€ 🚗 ü";
+        ByteBuffer buf = ByteBuffer.allocate(MessageCodec.encodedLength(s));
+        MessageCodec.putString(buf, s);
+        assertFalse(buf.hasRemaining());
+        buf.flip();
+        assertEquals(s, MessageCodec.getString(buf, new StringBuilder()).toString());
+    }
+
+    @Test
+    void encodeAndDecodeAreInversesTest() {
+        byte[] b = {1, 2, 3};
+        Object[] components = {(short) 7, 42, b, "Car?"};
+        ByteBuffer buf = ByteBuffer.allocate(MessageCodec.encodedLength(components));
+        MessageCodec.encode(buf, components);
+        assertFalse(buf.hasRemaining());
+        buf.flip();
+        Object[] decoded = MessageCodec.decode(buf);
+        assertEquals(4, decoded.length);
+        assertEquals((short) 7, decoded[0]);
+        assertEquals(42, decoded[1]);
+        assertArrayEquals(b, (byte[]) decoded[2]);
+        assertEquals("Car?", decoded[3]);
+    }
+
+    @Test
+    void decodeStopsAtPaddingTest() {
+        ByteBuffer buf = ByteBuffer.allocate(64);
+        MessageCodec.encode(buf, "done");
+        buf.rewind();
+        Object[] decoded = MessageCodec.decode(buf);
+        assertEquals(1, decoded.length);
+        assertEquals("done", decoded[0]);
+    }
+
+    @Test
+    void wrongTypeIsRejectedTest() {
+        ByteBuffer buf = ByteBuffer.allocate(8);
+        MessageCodec.putShort(buf, (short) 1);
+        buf.flip();
+        assertThrows(IllegalArgumentException.class, () -> MessageCodec.getInt(buf));
+    }
+}
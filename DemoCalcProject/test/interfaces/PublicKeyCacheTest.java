@@ -0,0 +1,51 @@
+package test.interfaces;
+
+import Interfaces.PublicKeyCache;
+import javacard.security.PublicKey;
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Proxy;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Egidius Mysliwietz
+ */
+public class PublicKeyCacheTest {
+
+    private static PublicKey key() {
+        return (PublicKey) Proxy.newProxyInstance(PublicKey.class.getClassLoader(),
+                new Class<?>[]{PublicKey.class}, (proxy, method, args) -> null);
+    }
+
+    private static byte[] encoding(int i) {
+        byte[] b = new byte[132];
+        b[131] = (byte) i;
+        return b;
+    }
+
+    @Test
+    void sameEncodingSameKeyTest() {
+        PublicKeyCache cache = new PublicKeyCache(4);
+        PublicKey k = key();
+        byte[] encoded = encoding(1);
+        assertNull(cache.get(encoded));
+        cache.put(encoded, k);
+        encoded[131] = 2; //caller reuses its buffer
+        assertNull(cache.get(encoded));
+        assertSame(k, cache.get(encoding(1)));
+        assertEquals(1, cache.getHits());
+    }
+
+    @Test
+    void evictsLeastRecentlyUsedTest() {
+        PublicKeyCache cache = new PublicKeyCache(2);
+        cache.put(encoding(1), key());
+        cache.put(encoding(2), key());
+        cache.get(encoding(1));
+        cache.put(encoding(3), key());
+        assertEquals(2, cache.size());
+        assertNotNull(cache.get(encoding(1)));
+        assertNull(cache.get(encoding(2)));
+    }
+}
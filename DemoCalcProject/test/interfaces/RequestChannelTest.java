@@ -0,0 +1,85 @@
+package test.interfaces;
+
+import Interfaces.Mailbox;
+import Interfaces.Receivable;
+import Interfaces.RequestChannel;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Egidius Mysliwietz
+ */
+public class RequestChannelTest {
+
+    RequestChannel channel;
+    List<byte[]> received;
+    Receivable requester;
+
+    @BeforeEach
+    void setUp() {
+        channel = new RequestChannel();
+        received = new ArrayList<>();
+        requester = new Receivable() {
+            @Override
+            public Mailbox<ByteBuffer> getInputQueue() {
+                return null;
+            }
+
+            @Override
+            public void receiveReply(byte[] reply) {
+                channel.complete(reply);
+            }
+        };
+    }
+
+    @Test
+    void repliesCompleteMatchingRequestTest() throws ExecutionException, InterruptedException {
+        CompletableFuture<ByteBuffer> first = channel.request((replyTo, request) -> received.add(request), requester, (byte) 1, new byte[]{1});
+        CompletableFuture<ByteBuffer> second = channel.request((replyTo, request) -> received.add(request), requester, (byte) 2, new byte[]{2});
+        assertEquals(2, channel.inFlight());
+
+        //Answer in reverse order
+        for (int i = received.size() - 1; i >= 0; i--) {
+            byte[] request = received.get(i);
+            ByteBuffer payload = RequestChannel.payload(request);
+            requester.receiveReply(RequestChannel.reply(RequestChannel.correlationID(request),
+                    new byte[]{RequestChannel.operation(request), payload.get()}));
+        }
+        assertEquals((byte) 1, first.get().get(0));
+        assertEquals((byte) 1, first.get().get(1));
+        assertEquals((byte) 2, second.get().get(0));
+        assertEquals((byte) 2, second.get().get(1));
+        assertEquals(0, channel.inFlight());
+    }
+
+    @Test
+    void failureCompletesExceptionallyTest() {
+        CompletableFuture<ByteBuffer> reply = channel.request((replyTo, request) ->
+                replyTo.receiveReply(RequestChannel.failure(RequestChannel.correlationID(request), "No car")),
+                requester, (byte) 1, new byte[0]);
+        ExecutionException e = assertThrows(ExecutionException.class, reply::get);
+        assertTrue(e.getCause() instanceof RequestChannel.RequestFailedException);
+        assertEquals("No car", e.getCause().getMessage());
+    }
+
+    @Test
+    void unknownReplyIsRejectedTest() {
+        assertFalse(channel.complete(RequestChannel.reply(12345, new byte[0])));
+    }
+
+    @Test
+    void cancelledRequestIsForgottenTest() {
+        CompletableFuture<ByteBuffer> reply = channel.request((replyTo, request) -> received.add(request), requester, (byte) 1, new byte[0]);
+        reply.cancel(false);
+        assertEquals(0, channel.inFlight());
+        assertFalse(channel.complete(RequestChannel.reply(RequestChannel.correlationID(received.get(0)), new byte[0])));
+    }
+}
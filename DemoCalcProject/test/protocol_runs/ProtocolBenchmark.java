@@ -0,0 +1,148 @@
+package test.protocol_runs;
+
+import Auto.Auto;
+import Interfaces.CommunicatorExtended;
+import db.Database;
+import receptionTerminal.ReceptionTerminal;
+import utility.Logger;
+import utility.ProtocolExecutor;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Baseline for the six protocols end to end on a simulated card: each rental cycle runs P2, P3, a full P1, a
+ * resumed P1, {@value #KILOMETRES} times P5, P2 again, P4 and P6, and every run is timed on its own.
+ * Run the main method, optionally with the number of measured cycles (default {@value #CYCLES}); it prints
+ * throughput, latency percentiles and allocation per run of each protocol.
+ * Allocation is what the thread running the protocol allocated; work handed to the database and logger
+ * threads is not included.
+ * Logging is at WARNING unless -Dhardware_security.logLevel says otherwise.
+ *
+ * @author Egidius Mysliwietz
+ */
+public class ProtocolBenchmark {
+    private static final int WARMUP = 20;
+    private static final int CYCLES = 200;
+    private static final int KILOMETRES = 10;
+    private static final byte[] BLOCKED_ID = {81, 55, 62, -117, 111};
+
+    private final Stats p1 = new Stats("P1 insert");
+    private final Stats p1Resumed = new Stats("P1 resumed");
+    private final Stats p2 = new Stats("P2 reception auth");
+    private final Stats p3 = new Stats("P3 car assignment");
+    private final Stats p4 = new Stats("P4 car return");
+    private final Stats p5 = new Stats("P5 kilometerage");
+    private final Stats p6 = new Stats("P6 block card");
+    private final ReceptionTerminal rt;
+    private final Auto a;
+
+    public static void main(String[] args) throws Exception {
+        if (System.getProperty(Logger.LEVEL_PROPERTY) == null) {
+            System.setProperty(Logger.LEVEL_PROPERTY, Logger.level.WARNING.name());
+        }
+        int cycles = args.length > 0 ? Integer.parseInt(args[0]) : CYCLES;
+        ProtocolBenchmark warmup = new ProtocolBenchmark();
+        for (int i = 0; i < WARMUP; i++) {
+            warmup.cycle();
+        }
+        ProtocolBenchmark benchmark = new ProtocolBenchmark();
+        for (int i = 0; i < cycles; i++) {
+            benchmark.cycle();
+        }
+        Logger.flush();
+        System.out.println(String.format("%-18s %7s %9s %9s %9s %9s %9s %10s", "protocol", "runs", "ops/s",
+                "p50 us", "p90 us", "p99 us", "max us", "B/op"));
+        for (Stats stats : new Stats[]{benchmark.p1, benchmark.p1Resumed, benchmark.p2, benchmark.p3,
+                benchmark.p4, benchmark.p5, benchmark.p6}) {
+            System.out.println(stats);
+        }
+    }
+
+    private ProtocolBenchmark() throws InterruptedException, ExecutionException {
+        Database db = new Database();
+        rt = db.generateTerminal();
+        a = db.generateAuto();
+        try (ProtocolExecutor.Scope scope = ProtocolExecutor.openScope()) {
+            scope.fork(() -> db.generateCard(rt));
+            scope.fork(() -> rt.initialDataForSC());
+            scope.join();
+        }
+    }
+
+    private void cycle() throws Exception {
+        p2.time(rt::cardAuthenticationInitiate);
+        p3.time(rt::carAssignmentInitiate);
+        //The assignment ended the last session on the card, so this P1 runs in full
+        a.setSessionLimits(0, 0);
+        p1.time(a::authenticateSCInitiate);
+        a.deselect();
+        a.setSessionLimits(1, Long.MAX_VALUE);
+        p1Resumed.time(a::authenticateSCInitiate);
+        for (int i = 0; i < KILOMETRES; i++) {
+            p5.time(a::kilometerageUpdate);
+        }
+        a.deselect();
+        p2.time(rt::cardAuthenticationInitiate);
+        p4.time(rt::carReturnInitiate);
+        p6.time(() -> rt.blockCard(BLOCKED_ID));
+    }
+
+    /**
+     * @return bytes allocated by the calling thread so far, or -1 if the JVM does not count them
+     */
+    private static long allocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getCurrentThreadAllocatedBytes();
+        }
+        return -1;
+    }
+
+    private interface Run {
+        void run() throws CommunicatorExtended.AuthenticationFailedException, CommunicatorExtended.ProcessFailedException,
+                CommunicatorExtended.CardNotInitializedException;
+    }
+
+    private static class Stats {
+        private final String name;
+        private long[] latencies = new long[64];
+        private int runs;
+        private long allocated;
+
+        Stats(String name) {
+            this.name = name;
+        }
+
+        void time(Run run) throws Exception {
+            long allocBefore = allocatedBytes();
+            long start = System.nanoTime();
+            run.run();
+            long elapsed = System.nanoTime() - start;
+            allocated += allocatedBytes() - allocBefore;
+            if (runs == latencies.length) {
+                latencies = Arrays.copyOf(latencies, 2 * runs);
+            }
+            latencies[runs++] = elapsed;
+        }
+
+        private double percentile(long[] sorted, double p) {
+            return sorted[Math.min(runs - 1, (int) Math.ceil(p * runs) - 1)] / 1000.0;
+        }
+
+        @Override
+        public String toString() {
+            if (runs == 0) {
+                return String.format("%-18s %7d", name, 0);
+            }
+            long[] sorted = Arrays.copyOf(latencies, runs);
+            Arrays.sort(sorted);
+            long total = Arrays.stream(sorted).sum();
+            return String.format("%-18s %7d %9.1f %9.1f %9.1f %9.1f %9.1f %10d", name, runs, runs * 1e9 / total,
+                    percentile(sorted, 0.5), percentile(sorted, 0.9), percentile(sorted, 0.99),
+                    sorted[runs - 1] / 1000.0, allocated / runs);
+        }
+    }
+}
@@ -1,16 +1,25 @@
 package test.protocol_runs;
 
 import Auto.Auto;
+import Interfaces.ApduTransport;
+import Interfaces.Communicator;
 import Interfaces.CommunicatorExtended;
+import Interfaces.TransportStats;
 import db.Database;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import receptionTerminal.ReceptionTerminal;
+import utility.ProtocolExecutor;
 
+import javax.smartcardio.CardException;
+import javax.smartcardio.ResponseAPDU;
 import java.io.File;
 import java.nio.file.Paths;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -28,24 +37,21 @@ public class ProtocolRunTest {
         db = new Database();
         rt = db.generateTerminal();
         a = db.generateAuto();
-        Thread t1 = new Thread(() -> db.generateCard(rt));
-        Thread t2 = new Thread(() -> rt.initialDataForSC());
-        t1.start();
-        t2.start();
-        try {
-            t1.join();
-            t2.join();
-        } catch (InterruptedException e) {
+        try (ProtocolExecutor.Scope scope = ProtocolExecutor.openScope()) {
+            scope.fork(() -> db.generateCard(rt));
+            scope.fork(() -> rt.initialDataForSC());
+            scope.join();
+        } catch (InterruptedException | ExecutionException e) {
             e.printStackTrace();
         }
     }
 
     @AfterEach
     void tearDown() {
-        //Delete all log files
+        //Delete all log and journal files
         String path = Paths.get("").toAbsolutePath().toString();
         for (File file : Objects.requireNonNull(new File(path).listFiles())) {
-            if (!file.isDirectory() && file.getName().endsWith(".log")) {
+            if (!file.isDirectory() && (file.getName().endsWith(".log") || file.getName().endsWith(".journal"))) {
                 System.out.println("Deleting: " + file.getAbsolutePath());
                 file.delete();
             }
@@ -76,6 +82,153 @@ public class ProtocolRunTest {
         rt.blockCard(new byte[]{81, 55, 62, -117, 111});
     }
 
+    @Test
+    void fullRunAsync() throws CommunicatorExtended.ProcessFailedException {
+        //Queued runs on one terminal execute in order, so these can be issued without waiting
+        CompletableFuture<Void> authenticated = rt.cardAuthenticationInitiateAsync();
+        CompletableFuture<Void> assigned = rt.carAssignmentInitiateAsync();
+        assertDoesNotThrow(authenticated::join);
+        assertDoesNotThrow(assigned::join);
+        assertDoesNotThrow(() -> a.authenticateSCInitiate());
+        for (int i = 0; i < 10; i++) {
+            a.kilometerageUpdate();
+        }
+        rt.cardAuthenticationInitiateAsync();
+        assertDoesNotThrow(() -> rt.carReturnInitiateAsync().join());
+    }
+
+    @Test
+    void resumedRuns() throws CommunicatorExtended.AuthenticationFailedException, CommunicatorExtended.ProcessFailedException {
+        rt.cardAuthenticationInitiate();
+        rt.carAssignmentInitiate();
+        a.setSessionLimits(2, 60000);
+        assertFalse(a.hasResumableSession());
+        assertDoesNotThrow(() -> a.authenticateSCInitiate());
+        for (int i = 0; i < 3; i++) {
+            //Fuel stop: the card leaves the car and comes back
+            a.deselect();
+            assertEquals(i < 2, a.hasResumableSession());
+            assertDoesNotThrow(() -> a.authenticateSCInitiate());
+            a.kilometerageUpdate();
+        }
+        //The third re-insert ran a full P1, which started a new session
+        assertTrue(a.hasResumableSession());
+        rt.cardAuthenticationInitiate();
+        rt.carReturnInitiate();
+    }
+
+    @Test
+    void hashChainOdometer() throws CommunicatorExtended.AuthenticationFailedException, CommunicatorExtended.ProcessFailedException {
+        rt.cardAuthenticationInitiate();
+        rt.carAssignmentInitiate();
+        a.setOdometerMode(Auto.OdometerMode.HASH_CHAIN);
+        a.setChainLength(4);
+        assertDoesNotThrow(() -> a.authenticateSCInitiate());
+        //Ten kilometres need a second and a third chain
+        for (int i = 1; i <= 10; i++) {
+            assertEquals(i, a.kilometerageUpdate());
+        }
+        rt.cardAuthenticationInitiate();
+        rt.carReturnInitiate();
+        assertEquals(10, rt.kilometerage);
+    }
+
+    @Test
+    void hashChainOdometerSecondRental() throws CommunicatorExtended.AuthenticationFailedException, CommunicatorExtended.ProcessFailedException {
+        a.setOdometerMode(Auto.OdometerMode.HASH_CHAIN);
+        a.setChainLength(4);
+        //The card starts over at the car return, the car has counted on; the second chain must start from the card
+        for (int rental = 0; rental < 2; rental++) {
+            rt.cardAuthenticationInitiate();
+            rt.carAssignmentInitiate();
+            assertDoesNotThrow(() -> a.authenticateSCInitiate());
+            for (int i = 1; i <= 6; i++) {
+                assertEquals(i, a.kilometerageUpdate());
+            }
+            a.deselect();
+            rt.cardAuthenticationInitiate();
+            rt.carReturnInitiate();
+            assertEquals(6, rt.kilometerage);
+        }
+    }
+
+    @Test
+    void invalidChainLength() {
+        assertThrows(IllegalArgumentException.class, () -> a.setChainLength(0));
+        assertThrows(IllegalArgumentException.class, () -> a.setChainLength(-1));
+        assertThrows(IllegalArgumentException.class, () -> a.setChainLength(Short.MAX_VALUE + 1));
+        assertDoesNotThrow(() -> a.setChainLength(Short.MAX_VALUE));
+    }
+
+    @Test
+    void coalescedOdometer() throws CommunicatorExtended.AuthenticationFailedException, CommunicatorExtended.ProcessFailedException {
+        rt.cardAuthenticationInitiate();
+        rt.carAssignmentInitiate();
+        a.setFlushLimits(4, Long.MAX_VALUE);
+        assertDoesNotThrow(() -> a.authenticateSCInitiate());
+        for (int i = 1; i <= 10; i++) {
+            assertEquals(i, a.drive(1));
+            assertEquals(i % 4, a.getPendingKilometres());
+        }
+        //The last two kilometres are sent when the card leaves the car
+        a.deselect();
+        assertEquals(0, a.getPendingKilometres());
+        rt.cardAuthenticationInitiate();
+        rt.carReturnInitiate();
+        assertEquals(10, rt.kilometerage);
+    }
+
+    @Test
+    void lostKilometerageReply() throws CommunicatorExtended.AuthenticationFailedException, CommunicatorExtended.ProcessFailedException {
+        lostKilometerageReply(Auto.OdometerMode.MAC, Communicator.KMM_UPDATE);
+    }
+
+    @Test
+    void lostHashChainReply() throws CommunicatorExtended.AuthenticationFailedException, CommunicatorExtended.ProcessFailedException {
+        lostKilometerageReply(Auto.OdometerMode.HASH_CHAIN, Communicator.KMM_CHAIN_UPDATE);
+    }
+
+    private void lostKilometerageReply(Auto.OdometerMode mode, byte lostIns) throws CommunicatorExtended.AuthenticationFailedException, CommunicatorExtended.ProcessFailedException {
+        rt.cardAuthenticationInitiate();
+        rt.carAssignmentInitiate();
+        a.setOdometerMode(mode);
+        assertDoesNotThrow(() -> a.authenticateSCInitiate());
+        assertEquals(1, a.kilometerageUpdate());
+        ApduTransport card = a.getTransport();
+        AtomicBoolean lost = new AtomicBoolean();
+        a.setTransport(new ApduTransport() {
+            @Override
+            public ResponseAPDU transmit(byte cla, byte ins, byte[] data, int offset, int length, int ne) throws CardException {
+                ResponseAPDU response = card.transmit(cla, ins, data, offset, length, ne);
+                if (ins == lostIns && lost.compareAndSet(false, true)) {
+                    throw new CardException("Reply lost");
+                }
+                return response;
+            }
+
+            @Override
+            public TransportStats getStats() {
+                return card.getStats();
+            }
+        });
+        //The card took kilometre 2, the car did not hear back and resends the same update
+        assertThrows(CommunicatorExtended.ProcessFailedException.class, () -> a.kilometerageUpdate());
+        assertEquals(1, a.getPendingKilometres());
+        assertEquals(2, a.flushKilometerage());
+        assertEquals(3, a.kilometerageUpdate());
+        a.setTransport(card);
+        rt.cardAuthenticationInitiate();
+        //The card did not flag the resend as manipulation
+        assertDoesNotThrow(() -> rt.carReturnInitiate());
+        assertEquals(3, rt.kilometerage);
+    }
+
+    @Test
+    void blockCardAsync() {
+        //Completes with true once the database confirmed the removal, a failed request throws from join
+        assertTrue(rt.blockCardAsync(new byte[]{81, 55, 62, -117, 111}).join());
+    }
+
     @Test
     void successiveFullRuns() throws CommunicatorExtended.AuthenticationFailedException, CommunicatorExtended.ProcessFailedException {
         for (int i = 0; i < 32; i++) {
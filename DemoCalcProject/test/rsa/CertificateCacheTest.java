@@ -0,0 +1,60 @@
+package test.rsa;
+
+import org.junit.jupiter.api.Test;
+import rsa.CertificateCache;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Egidius Mysliwietz
+ */
+public class CertificateCacheTest {
+
+    private static final byte[] KEY = new byte[132];
+    private static final byte[] SIGNATURE = new byte[64];
+
+    private static byte[] id(int i) {
+        return new byte[]{(byte) i, 55, 62, -117, 111};
+    }
+
+    @Test
+    void remembersVerifiedCertificates() {
+        CertificateCache cache = new CertificateCache((short) 4);
+        assertFalse(cache.contains(KEY, id(1), SIGNATURE));
+        cache.add(KEY, id(1), SIGNATURE);
+        assertTrue(cache.contains(KEY, id(1), SIGNATURE));
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    void differentSignatureIsNotCached() {
+        CertificateCache cache = new CertificateCache((short) 4);
+        cache.add(KEY, id(1), SIGNATURE);
+        byte[] forged = SIGNATURE.clone();
+        forged[63] = 1;
+        assertFalse(cache.contains(KEY, id(1), forged));
+    }
+
+    @Test
+    void evictsLeastRecentlyUsed() {
+        CertificateCache cache = new CertificateCache((short) 2);
+        cache.add(KEY, id(1), SIGNATURE);
+        cache.add(KEY, id(2), SIGNATURE);
+        assertTrue(cache.contains(KEY, id(1), SIGNATURE));
+        cache.add(KEY, id(3), SIGNATURE);
+        assertTrue(cache.contains(KEY, id(1), SIGNATURE));
+        assertFalse(cache.contains(KEY, id(2), SIGNATURE));
+        assertTrue(cache.contains(KEY, id(3), SIGNATURE));
+    }
+
+    @Test
+    void revokedCardsAreForgotten() {
+        CertificateCache cache = new CertificateCache((short) 4);
+        cache.add(KEY, id(1), SIGNATURE);
+        cache.add(KEY, id(2), SIGNATURE);
+        cache.invalidate(id(1));
+        assertFalse(cache.contains(KEY, id(1), SIGNATURE));
+        assertTrue(cache.contains(KEY, id(2), SIGNATURE));
+    }
+}
@@ -0,0 +1,25 @@
+package test.rsa;
+
+import org.junit.jupiter.api.Test;
+import rsa.HashChain;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Egidius Mysliwietz
+ */
+class HashChainTest {
+
+    @Test
+    void linksFollowTheirPredecessors() {
+        HashChain hashChain = new HashChain();
+        byte[][] links = hashChain.generate(new byte[32], (short) 10);
+        assertEquals(11, links.length);
+        assertTrue(hashChain.follows(links[0], links[1], (short) 1));
+        assertTrue(hashChain.follows(links[2], links[5], (short) 3));
+        assertTrue(hashChain.follows(links[0], links[10], (short) 10));
+        assertFalse(hashChain.follows(links[2], links[5], (short) 2));
+        assertFalse(hashChain.follows(links[1], links[0], (short) 1));
+        assertFalse(hashChain.follows(links[1], links[1], (short) 0));
+    }
+}
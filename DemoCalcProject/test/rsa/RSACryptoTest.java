@@ -0,0 +1,81 @@
+package test.rsa;
+
+import javacard.security.KeyPair;
+import javacard.security.PrivateKey;
+import javacard.security.PublicKey;
+import org.junit.jupiter.api.Test;
+import rsa.RSACrypto;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Egidius Mysliwietz
+ */
+public class RSACryptoTest {
+    private static final int THREADS = 8;
+    //More keys than a stripe keeps verifiers for, so verifiers are evicted and re-created while in use
+    private static final int KEYS = 24;
+    private static final int ROUNDS = 200;
+
+    private static class Party extends RSACrypto {
+        Party(PrivateKey privateKey) {
+            privk = privateKey;
+        }
+    }
+
+    @Test
+    void stripedEnginesAreThreadSafe() throws InterruptedException, ExecutionException {
+        PublicKey[] publicKeys = new PublicKey[KEYS];
+        Party[] signers = new Party[KEYS];
+        for (int k = 0; k < KEYS; k++) {
+            KeyPair kp = new KeyPair(KeyPair.ALG_RSA, (short) 512);
+            kp.genKeyPair();
+            publicKeys[k] = kp.getPublic();
+            signers[k] = new Party(kp.getPrivate());
+        }
+        //Shared by all threads, its engines and verifiers are created lazily under contention
+        Party verifier = new Party(null);
+        AtomicInteger wrong = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<?>> runs = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                int thread = t;
+                runs.add(pool.submit(() -> {
+                    start.await();
+                    for (int r = 0; r < ROUNDS; r++) {
+                        int k = (thread * 7 + r) % KEYS;
+                        byte[] msg = ByteBuffer.allocate(8).putInt(thread).putInt(r).array();
+                        byte[] signature = signers[k].sign(msg);
+                        if (!verifier.verify(msg, signature, publicKeys[k])) {
+                            wrong.incrementAndGet();
+                        }
+                        //Another key or another message must not verify, whichever verifier a stripe holds
+                        if (verifier.verify(msg, signature, publicKeys[(k + 1) % KEYS])) {
+                            wrong.incrementAndGet();
+                        }
+                        msg[7] ^= 1;
+                        if (verifier.verify(msg, signature, publicKeys[k])) {
+                            wrong.incrementAndGet();
+                        }
+                    }
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> run : runs) {
+                run.get();
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        assertEquals(0, wrong.get());
+    }
+}
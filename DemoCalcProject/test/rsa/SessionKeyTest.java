@@ -0,0 +1,66 @@
+package test.rsa;
+
+import org.junit.jupiter.api.Test;
+import rsa.SessionKey;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.GeneralSecurityException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Egidius Mysliwietz
+ */
+class SessionKeyTest {
+
+    private static byte[] secret() {
+        byte[] secret = new byte[32];
+        for (int i = 0; i < secret.length; i++) {
+            secret[i] = (byte) (i * 7 + 1);
+        }
+        return secret;
+    }
+
+    @Test
+    void macIsHmacSha256() throws GeneralSecurityException {
+        byte[] msg = "kilometerage 42".getBytes();
+        Mac reference = Mac.getInstance("HmacSHA256");
+        reference.init(new SecretKeySpec(secret(), "HmacSHA256"));
+        SessionKey key = new SessionKey(secret());
+        assertArrayEquals(reference.doFinal(msg), key.mac(msg));
+        //Twice, the digest must start over
+        assertArrayEquals(reference.doFinal(msg), key.mac(msg));
+    }
+
+    @Test
+    void resumeProofsDependOnRoleAndCounter() {
+        SessionKey card = new SessionKey(secret());
+        SessionKey auto = new SessionKey(secret());
+        byte[] autoChallenge = new byte[16];
+        byte[] cardChallenge = new byte[16];
+        cardChallenge[0] = 1;
+        byte[] cardID = {81, 55, 62, -117, 111};
+        byte[] proof = new byte[32];
+        card.resumeProof(SessionKey.CARD_PROOF, autoChallenge, cardChallenge, cardID, (short) 3, proof, (short) 0);
+        assertTrue(auto.verifyResumeProof(SessionKey.CARD_PROOF, autoChallenge, cardChallenge, cardID, (short) 3, proof, (short) 0));
+        assertFalse(auto.verifyResumeProof(SessionKey.AUTO_PROOF, autoChallenge, cardChallenge, cardID, (short) 3, proof, (short) 0));
+        assertFalse(auto.verifyResumeProof(SessionKey.CARD_PROOF, autoChallenge, cardChallenge, cardID, (short) 4, proof, (short) 0));
+        auto.clear();
+        assertFalse(auto.verifyResumeProof(SessionKey.CARD_PROOF, autoChallenge, cardChallenge, cardID, (short) 3, proof, (short) 0));
+    }
+
+    @Test
+    void kilometerageMacsAreDirectional() {
+        SessionKey session = new SessionKey(secret());
+        SessionKey auto = session.deriveKey(SessionKey.KILOMETERAGE_KEY, new byte[]{1, 2, 3, 4});
+        SessionKey card = session.deriveKey(SessionKey.KILOMETERAGE_KEY, new byte[]{1, 2, 3, 4});
+        SessionKey otherRun = session.deriveKey(SessionKey.KILOMETERAGE_KEY, new byte[]{1, 2, 3, 5});
+        byte[] mac = new byte[32];
+        auto.kilometerageMac(SessionKey.KILOMETERAGE_UPDATE, 70000, mac, (short) 0);
+        assertTrue(card.verifyKilometerageMac(SessionKey.KILOMETERAGE_UPDATE, 70000, mac, (short) 0));
+        assertFalse(card.verifyKilometerageMac(SessionKey.KILOMETERAGE_UPDATE, 70001, mac, (short) 0));
+        assertFalse(card.verifyKilometerageMac(SessionKey.KILOMETERAGE_CONFIRMATION, 70000, mac, (short) 0));
+        assertFalse(otherRun.verifyKilometerageMac(SessionKey.KILOMETERAGE_UPDATE, 70000, mac, (short) 0));
+    }
+}
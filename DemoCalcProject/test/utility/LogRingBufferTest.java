@@ -0,0 +1,75 @@
+package test.utility;
+
+import org.junit.jupiter.api.Test;
+import utility.LogRingBuffer;
+import utility.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Egidius Mysliwietz
+ */
+public class LogRingBufferTest {
+
+    @Test
+    void dropPolicyKeepsOldestEntriesTest() {
+        LogRingBuffer ring = new LogRingBuffer(4, LogRingBuffer.OverflowPolicy.DROP);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(ring.publish(null, i, Logger.level.INFO, "m" + i, "test", null));
+        }
+        assertFalse(ring.publish(null, 4, Logger.level.FATAL, "m4", "test", null));
+        assertEquals(1, ring.getDropped());
+        List<String> messages = new ArrayList<>();
+        assertEquals(4, ring.drain(10, e -> messages.add(e.getMessage())));
+        assertEquals(List.of("m0", "m1", "m2", "m3"), messages);
+        assertTrue(ring.publish(null, 5, Logger.level.INFO, "m5", "test", null));
+    }
+
+    @Test
+    void dropInfoPolicyTest() {
+        LogRingBuffer ring = new LogRingBuffer(2, LogRingBuffer.OverflowPolicy.DROP_INFO);
+        ring.publish(null, 0, Logger.level.INFO, "a", "test", null);
+        ring.publish(null, 0, Logger.level.INFO, "b", "test", null);
+        assertFalse(ring.publish(null, 0, Logger.level.INFO, "c", "test", null));
+        Thread consumer = new Thread(() -> {
+            while (ring.drain(1, e -> { }) == 0) {
+                Thread.onSpinWait();
+            }
+        });
+        consumer.start();
+        //Waits for the consumer to make room
+        assertTrue(ring.publish(null, 0, Logger.level.FATAL, "d", "test", null));
+    }
+
+    @Test
+    void entryCopiesCardIDTest() {
+        LogRingBuffer ring = new LogRingBuffer(2, LogRingBuffer.OverflowPolicy.BLOCK);
+        byte[] cardID = {1, 2, 3, 4, 5};
+        ring.publish(null, 0, Logger.level.INFO, "m", "test", cardID);
+        ring.publish(null, 0, Logger.level.INFO, "m", "test", null);
+        cardID[0] = 9;
+        List<String> ids = new ArrayList<>();
+        ring.drain(2, e -> ids.add(e.cardIDString()));
+        assertEquals(List.of("[1, 2, 3, 4, 5]", "null"), ids);
+    }
+
+    @Test
+    void loggerWritesFileOnFlushTest() throws IOException {
+        File logFile = File.createTempFile("logger", ".log");
+        logFile.deleteOnExit();
+        Logger logger = new Logger(logFile);
+        for (int i = 0; i < 1000; i++) {
+            logger.info("message " + i, "loggerTest", new byte[]{1, 2, 3, 4, 5});
+        }
+        Logger.flush();
+        List<String> lines = Files.readAllLines(logFile.toPath());
+        assertEquals(1000, lines.size());
+        assertTrue(lines.get(999).endsWith(" INFO ([1, 2, 3, 4, 5]) message 999 (Source: loggerTest)"));
+    }
+}
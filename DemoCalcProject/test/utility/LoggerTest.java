@@ -0,0 +1,111 @@
+package test.utility;
+
+import org.junit.jupiter.api.Test;
+import utility.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Egidius Mysliwietz
+ */
+public class LoggerTest {
+
+    private static Logger tempLogger(File logFile) {
+        logFile.deleteOnExit();
+        Logger logger = new Logger(logFile);
+        logger.setLevel(Logger.level.INFO);
+        logger.setTraceSampling(0);
+        return logger;
+    }
+
+    @Test
+    void disabledLevelSkipsSupplierTest() throws IOException {
+        File logFile = File.createTempFile("logger", ".log");
+        Logger logger = tempLogger(logFile);
+        logger.setLevel(Logger.level.WARNING);
+        logger.info(() -> {
+            throw new AssertionError("Supplier of a disabled level ran");
+        }, "loggerTest", null);
+        logger.logf(Logger.level.INFO, "loggerTest", null, "%d", 1);
+        logger.warning(() -> "shown", "loggerTest", null);
+        logger.logf(Logger.level.FATAL, "loggerTest", null, "APDU has SW: %04X", 0x9000);
+        Logger.flush();
+        List<String> lines = Files.readAllLines(logFile.toPath());
+        assertEquals(2, lines.size());
+        assertTrue(lines.get(0).endsWith("WARNING (null) shown (Source: loggerTest)"));
+        assertTrue(lines.get(1).endsWith("FATAL (null) APDU has SW: 9000 (Source: loggerTest)"));
+    }
+
+    @Test
+    void traceSamplingTest() throws IOException {
+        Logger logger = tempLogger(File.createTempFile("logger", ".log"));
+        int sampled = 0;
+        for (int i = 0; i < 100; i++) {
+            if (logger.sampleTrace()) {
+                sampled++;
+            }
+        }
+        assertEquals(0, sampled);
+        logger.setTraceSampling(10);
+        for (int i = 0; i < 100; i++) {
+            if (logger.sampleTrace()) {
+                sampled++;
+            }
+        }
+        assertEquals(10, sampled);
+        logger.setLevel(Logger.level.TRACE);
+        assertTrue(logger.sampleTrace());
+    }
+
+    @Test
+    void brokenEntryKeepsConsumerRunningTest() throws IOException {
+        File logFile = File.createTempFile("logger", ".log");
+        Logger logger = tempLogger(logFile);
+        Object broken = new Object() {
+            @Override
+            public String toString() {
+                throw new IllegalStateException("broken");
+            }
+        };
+        logger.logf(Logger.level.INFO, "loggerTest", null, "%s", broken);
+        logger.info("after", "loggerTest", null);
+        Logger.flush();
+        List<String> lines = Files.readAllLines(logFile.toPath());
+        assertEquals(2, lines.size());
+        assertTrue(lines.get(0).contains("IllegalStateException: broken"));
+        assertTrue(lines.get(1).endsWith("INFO (null) after (Source: loggerTest)"));
+    }
+
+    @Test
+    void badPatternFallsBackTest() throws IOException {
+        File logFile = File.createTempFile("logger", ".log");
+        Logger logger = tempLogger(logFile);
+        logger.logf(Logger.level.INFO, "loggerTest", null, "%d km", "ten");
+        Logger.flush();
+        List<String> lines = Files.readAllLines(logFile.toPath());
+        assertEquals(1, lines.size());
+        assertTrue(lines.get(0).endsWith("INFO (null) %d km [ten] (Source: loggerTest)"));
+    }
+
+    @Test
+    void invalidLevelPropertyTest() throws IOException {
+        String previous = System.getProperty(Logger.LEVEL_PROPERTY);
+        System.setProperty(Logger.LEVEL_PROPERTY, "VERBOSE");
+        try {
+            File logFile = File.createTempFile("logger", ".log");
+            logFile.deleteOnExit();
+            assertEquals(Logger.level.INFO, new Logger(logFile).getLevel());
+        } finally {
+            if (previous == null) {
+                System.clearProperty(Logger.LEVEL_PROPERTY);
+            } else {
+                System.setProperty(Logger.LEVEL_PROPERTY, previous);
+            }
+        }
+    }
+}
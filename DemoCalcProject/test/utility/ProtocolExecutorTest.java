@@ -0,0 +1,50 @@
+package test.utility;
+
+import org.junit.jupiter.api.Test;
+import utility.ProtocolExecutor;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author Egidius Mysliwietz
+ */
+public class ProtocolExecutorTest {
+
+    @Test
+    void scopeJoinsAllForksTest() throws ExecutionException, InterruptedException {
+        AtomicInteger done = new AtomicInteger();
+        Future<Integer> answer;
+        try (ProtocolExecutor.Scope scope = ProtocolExecutor.openScope()) {
+            for (int i = 0; i < 100; i++) {
+                scope.fork(done::incrementAndGet);
+            }
+            answer = scope.fork(() -> 42);
+            scope.join();
+        }
+        assertEquals(100, done.get());
+        assertEquals(Integer.valueOf(42), answer.get());
+    }
+
+    @Test
+    void failureCancelsSiblingsTest() {
+        CountDownLatch never = new CountDownLatch(1);
+        Future<?> blocked;
+        try (ProtocolExecutor.Scope scope = ProtocolExecutor.openScope()) {
+            blocked = scope.fork(() -> {
+                never.await();
+                return null;
+            });
+            scope.fork(() -> {
+                throw new IllegalStateException("protocol step failed");
+            });
+            ExecutionException e = assertThrows(ExecutionException.class, scope::join);
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        assertTrue(blocked.isCancelled());
+    }
+}
@@ -0,0 +1,241 @@
+package utility;
+
+import java.util.Arrays;
+import java.util.IllegalFormatException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Preallocated ring of log entries, filled by any number of threads and drained by one consumer.
+ * A producer claims a sequence number, fills the entry of that slot in place and publishes the slot by
+ * storing the sequence number for it, so logging allocates nothing and takes no lock.
+ * When all slots are taken the {@link OverflowPolicy} decides whether the producer waits or drops the entry.
+ *
+ * @author Egidius Mysliwietz
+ */
+public final class LogRingBuffer {
+    private static final long FULL_WAIT /* ns */ = 50_000;
+
+    private final Entry[] entries;
+    private final int mask;
+    private final AtomicLongArray published;
+    private final AtomicLong claimed = new AtomicLong();
+    private final AtomicLong consumed = new AtomicLong();
+    private final LongAdder dropped = new LongAdder();
+    private final OverflowPolicy policy;
+
+    /**
+     * @param capacity rounded up to a power of two
+     */
+    public LogRingBuffer(int capacity, OverflowPolicy policy) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        entries = new Entry[size];
+        for (int i = 0; i < size; i++) {
+            entries[i] = new Entry();
+        }
+        mask = size - 1;
+        published = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            published.set(i, -1);
+        }
+        this.policy = policy;
+    }
+
+    /**
+     * @return false if the entry was dropped because the ring was full
+     */
+    public boolean publish(Logger target, long time, Logger.level lvl, String message, String source, byte[] cardID) {
+        return publish(target, time, lvl, message, null, source, cardID);
+    }
+
+    /**
+     * @param args if not null, message is a {@link String#format} pattern the consumer applies to them.
+     *             They are read on the consumer thread, so they must not change afterwards.
+     * @return false if the entry was dropped because the ring was full
+     */
+    public boolean publish(Logger target, long time, Logger.level lvl, String message, Object[] args, String source, byte[] cardID) {
+        long seq = claim(lvl);
+        if (seq < 0) {
+            dropped.increment();
+            return false;
+        }
+        int i = (int) seq & mask;
+        entries[i].set(target, time, lvl, message, args, source, cardID);
+        published.lazySet(i, seq);
+        return true;
+    }
+
+    /**
+     * Hands up to max published entries to handler, in order, on the calling thread.
+     * Only one thread may drain. The entries are reused after handler returns.
+     *
+     * @return number of entries drained
+     */
+    public int drain(int max, Consumer<Entry> handler) {
+        long next = consumed.get();
+        int n = 0;
+        while (n < max) {
+            int i = (int) (next + n) & mask;
+            if (published.get(i) != next + n) {
+                break;
+            }
+            handler.accept(entries[i]);
+            entries[i].clear();
+            n++;
+        }
+        if (n > 0) {
+            consumed.set(next + n);
+        }
+        return n;
+    }
+
+    public int capacity() {
+        return entries.length;
+    }
+
+    /**
+     * @return sequence number the next claimed entry gets, i.e. the number of entries claimed so far
+     */
+    public long claimedSequence() {
+        return claimed.get();
+    }
+
+    public long consumedSequence() {
+        return consumed.get();
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    public OverflowPolicy getPolicy() {
+        return policy;
+    }
+
+    private long claim(Logger.level lvl) {
+        while (true) {
+            long seq = claimed.get();
+            if (seq - consumed.get() >= entries.length) {
+                if (policy == OverflowPolicy.DROP || (policy == OverflowPolicy.DROP_INFO && lvl.compareTo(Logger.level.INFO) <= 0)) {
+                    return -1;
+                }
+                LockSupport.parkNanos(FULL_WAIT);
+                continue;
+            }
+            if (claimed.compareAndSet(seq, seq + 1)) {
+                return seq;
+            }
+        }
+    }
+
+    /**
+     * What a producer does when the ring is full
+     */
+    public enum OverflowPolicy {
+        /**
+         * Wait until the consumer has made room, nothing is lost
+         */
+        BLOCK,
+        /**
+         * Drop the entry
+         */
+        DROP,
+        /**
+         * Drop TRACE and INFO entries, wait for room for WARNING and FATAL ones
+         */
+        DROP_INFO
+    }
+
+    public static final class Entry {
+        private static final int CARD_ID_CAPACITY = 16;
+
+        private Logger target;
+        private long time;
+        private Logger.level lvl;
+        private String message;
+        private Object[] args;
+        private String source;
+        //The caller may reuse its array, so the ID is copied into one owned by the entry
+        private final byte[] cardID = new byte[CARD_ID_CAPACITY];
+        private byte[] longCardID;
+        private int cardIDLen;
+
+        private Entry() {
+        }
+
+        private void set(Logger target, long time, Logger.level lvl, String message, Object[] args, String source, byte[] cardID) {
+            this.target = target;
+            this.time = time;
+            this.lvl = lvl;
+            this.message = message;
+            this.args = args;
+            this.source = source;
+            if (cardID == null) {
+                cardIDLen = -1;
+            } else if (cardID.length <= CARD_ID_CAPACITY) {
+                System.arraycopy(cardID, 0, this.cardID, 0, cardID.length);
+                cardIDLen = cardID.length;
+            } else {
+                longCardID = cardID.clone();
+                cardIDLen = cardID.length;
+            }
+        }
+
+        private void clear() {
+            target = null;
+            message = null;
+            args = null;
+            source = null;
+            longCardID = null;
+        }
+
+        public Logger getTarget() {
+            return target;
+        }
+
+        /**
+         * @return milliseconds since the epoch when the entry was logged
+         */
+        public long getTime() {
+            return time;
+        }
+
+        public Logger.level getLevel() {
+            return lvl;
+        }
+
+        /**
+         * @return the message, formatted with its arguments if it was logged with some
+         */
+        public String getMessage() {
+            if (args == null) {
+                return message;
+            }
+            try {
+                return String.format(message, args);
+            } catch (IllegalFormatException e) {
+                return message + " " + Arrays.toString(args);
+            }
+        }
+
+        public String getSource() {
+            return source;
+        }
+
+        /**
+         * @return the card ID as {@link Arrays#toString(byte[])} prints it
+         */
+        public String cardIDString() {
+            if (cardIDLen < 0) {
+                return "null";
+            }
+            if (longCardID != null) {
+                return Arrays.toString(longCardID);
+            }
+            return Arrays.toString(Arrays.copyOf(cardID, cardIDLen));
+        }
+    }
+}
@@ -1,13 +1,54 @@
 package utility;
 
 import java.io.*;
+import java.time.Instant;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
 
+/**
+ * Logs to a file and to System.out without doing either on the calling thread. Entries go into a
+ * {@link LogRingBuffer} shared by all loggers; a single daemon thread formats them and writes them in batches,
+ * flushing the files and System.out once per batch.
+ * <p>
+ * The ring holds {@value #DEFAULT_CAPACITY} entries unless -Dhardware_security.logBuffer says otherwise, and
+ * -Dhardware_security.logOverflow picks the {@link LogRingBuffer.OverflowPolicy} for a full ring (default BLOCK).
+ * <p>
+ * Entries below the level of a logger are discarded before anything is formatted; -Dhardware_security.logLevel
+ * sets the level new loggers start with (default INFO). For messages that are expensive to build there are
+ * methods taking a Supplier, run only if the level is enabled, and a format pattern with arguments, formatted
+ * on the logging thread.
+ */
 public class Logger {
+    public static final String CAPACITY_PROPERTY = "hardware_security.logBuffer";
+    public static final String OVERFLOW_PROPERTY = "hardware_security.logOverflow";
+    public static final String LEVEL_PROPERTY = "hardware_security.logLevel";
+    public static final String TRACE_SAMPLING_PROPERTY = "hardware_security.traceSampling";
+    public static final int DEFAULT_CAPACITY = 4096;
+    private static final int BATCH = 256;
+    private static final long IDLE_WAIT /* ns */ = 1_000_000;
+    private static final ZoneId ZONE = ZoneId.of("Europe/Amsterdam");
+
+    private static final LogRingBuffer RING = new LogRingBuffer(
+            Integer.getInteger(CAPACITY_PROPERTY, DEFAULT_CAPACITY),
+            enumProperty(OVERFLOW_PROPERTY, LogRingBuffer.OverflowPolicy.BLOCK));
+    private static final Thread CONSUMER = new Thread(Logger::consume, "logger");
+    private static volatile long written = 0;
+
+    static {
+        CONSUMER.setDaemon(true);
+        CONSUMER.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(Logger::flush));
+    }
 
     private PrintWriter pw;
+    private volatile level threshold = enumProperty(LEVEL_PROPERTY, level.INFO);
+    private volatile int traceSampling = Integer.getInteger(TRACE_SAMPLING_PROPERTY, 0);
+    private final AtomicLong traceEvents = new AtomicLong();
 
     public Logger(File logFile) {
         try {
@@ -22,17 +63,80 @@ public class Logger {
     }
 
     public void log(String message, level lvl, String msgSrc, byte[] cardID) {
-        String timestamp = ZonedDateTime.now(
-                ZoneId.of("Europe/Amsterdam")
-        ).toString();
-        String lvls = " ".repeat(1 + level.WARNING.toString().length() - lvl.toString().length()) + lvl + " ";
-        String toFile = timestamp + lvls + "(" + Arrays.toString(cardID) + ") " + message + " (Source: " + msgSrc + ")";
-        try {
-            pw.println(toFile);
-        } catch (NullPointerException e) {
-            System.err.println("Printer not initialized");
+        if (isEnabled(lvl)) {
+            RING.publish(this, System.currentTimeMillis(), lvl, message, msgSrc, cardID);
+        }
+    }
+
+    /**
+     * @param message run on the calling thread, only if lvl is enabled
+     */
+    public void log(Supplier<String> message, level lvl, String msgSrc, byte[] cardID) {
+        if (isEnabled(lvl)) {
+            RING.publish(this, System.currentTimeMillis(), lvl, message.get(), msgSrc, cardID);
+        }
+    }
+
+    /**
+     * Logs {@link String#format}(format, args), formatted on the logging thread. The arguments must not change
+     * after the call; primitives, Strings and enums are safe.
+     */
+    public void logf(level lvl, String msgSrc, byte[] cardID, String format, Object... args) {
+        if (isEnabled(lvl)) {
+            RING.publish(this, System.currentTimeMillis(), lvl, format, args, msgSrc, cardID);
+        }
+    }
+
+    public boolean isEnabled(level lvl) {
+        return lvl.compareTo(threshold) >= 0;
+    }
+
+    public level getLevel() {
+        return threshold;
+    }
+
+    public void setLevel(level lvl) {
+        threshold = lvl;
+    }
+
+    /**
+     * While TRACE is disabled, still trace one in everyN events, see {@link #sampleTrace()}. 0 traces none.
+     * Starts at -Dhardware_security.traceSampling (default 0).
+     */
+    public void setTraceSampling(int everyN) {
+        traceSampling = everyN;
+    }
+
+    public int getTraceSampling() {
+        return traceSampling;
+    }
+
+    /**
+     * Decides whether the next traced event, e.g. one APDU exchange, is written: always if TRACE is enabled,
+     * otherwise one in {@link #getTraceSampling()} events. Write the lines of an event for which this returned
+     * true with {@link #tracef}.
+     */
+    public boolean sampleTrace() {
+        if (isEnabled(level.TRACE)) {
+            return true;
         }
-        System.out.println(toFile);
+        int everyN = traceSampling;
+        return everyN > 0 && traceEvents.incrementAndGet() % everyN == 0;
+    }
+
+    /**
+     * Logs at TRACE regardless of the level, for events chosen by {@link #sampleTrace()}.
+     */
+    public void tracef(String msgSrc, byte[] cardID, String format, Object... args) {
+        RING.publish(this, System.currentTimeMillis(), level.TRACE, format, args, msgSrc, cardID);
+    }
+
+    public void trace(String message, String msgSrc, byte[] cardID) {
+        log(message, level.TRACE, msgSrc, cardID);
+    }
+
+    public void trace(Supplier<String> message, String msgSrc, byte[] cardID) {
+        log(message, level.TRACE, msgSrc, cardID);
     }
 
     public void info(String message, String msgSrc, byte[] cardID) {
@@ -47,5 +151,102 @@ public class Logger {
         log(message, level.FATAL, msgSrc, cardID);
     }
 
-    public enum level {INFO, WARNING, FATAL}
+    public void info(Supplier<String> message, String msgSrc, byte[] cardID) {
+        log(message, level.INFO, msgSrc, cardID);
+    }
+
+    public void warning(Supplier<String> message, String msgSrc, byte[] cardID) {
+        log(message, level.WARNING, msgSrc, cardID);
+    }
+
+    public void fatal(Supplier<String> message, String msgSrc, byte[] cardID) {
+        log(message, level.FATAL, msgSrc, cardID);
+    }
+
+    /**
+     * Waits until everything logged so far is written and flushed.
+     */
+    public static void flush() {
+        long target = RING.claimedSequence();
+        while (written < target && CONSUMER.isAlive()) {
+            LockSupport.parkNanos(IDLE_WAIT / 10);
+        }
+    }
+
+    /**
+     * @return number of entries dropped because the ring was full
+     */
+    public static long getDropped() {
+        return RING.getDropped();
+    }
+
+    private static void consume() {
+        StringBuilder out = new StringBuilder();
+        List<Logger> touched = new ArrayList<>();
+        long reportedDrops = 0;
+        while (true) {
+            int n = RING.drain(BATCH, entry -> {
+                String line;
+                try {
+                    line = format(entry);
+                } catch (RuntimeException e) {
+                    //One broken entry must not stop the only thread that empties the ring
+                    line = "Logger could not format an entry from " + entry.getSource() + ": " + e;
+                }
+                Logger target = entry.getTarget();
+                if (target.pw == null) {
+                    System.err.println("Printer not initialized");
+                } else {
+                    target.pw.println(line);
+                    if (!touched.contains(target)) {
+                        touched.add(target);
+                    }
+                }
+                out.append(line).append(System.lineSeparator());
+            });
+            if (n == 0) {
+                LockSupport.parkNanos(IDLE_WAIT);
+                continue;
+            }
+            long drops = RING.getDropped();
+            if (drops != reportedDrops) {
+                out.append("Logger dropped ").append(drops - reportedDrops).append(" entries, the ring buffer was full")
+                        .append(System.lineSeparator());
+                reportedDrops = drops;
+            }
+            for (Logger target : touched) {
+                target.pw.flush();
+            }
+            touched.clear();
+            System.out.print(out);
+            System.out.flush();
+            out.setLength(0);
+            written = RING.consumedSequence();
+        }
+    }
+
+    /**
+     * @return the constant the system property names, or def if it is unset or names none
+     */
+    private static <E extends Enum<E>> E enumProperty(String property, E def) {
+        String value = System.getProperty(property);
+        if (value == null) {
+            return def;
+        }
+        try {
+            return Enum.valueOf(def.getDeclaringClass(), value);
+        } catch (IllegalArgumentException e) {
+            System.err.println("Invalid " + property + " " + value + ", using " + def);
+            return def;
+        }
+    }
+
+    private static String format(LogRingBuffer.Entry entry) {
+        String timestamp = ZonedDateTime.ofInstant(Instant.ofEpochMilli(entry.getTime()), ZONE).toString();
+        level lvl = entry.getLevel();
+        String lvls = " ".repeat(1 + level.WARNING.toString().length() - lvl.toString().length()) + lvl + " ";
+        return timestamp + lvls + "(" + entry.cardIDString() + ") " + entry.getMessage() + " (Source: " + entry.getSource() + ")";
+    }
+
+    public enum level {TRACE, INFO, WARNING, FATAL}
 }
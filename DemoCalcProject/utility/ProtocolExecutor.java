@@ -0,0 +1,112 @@
+package utility;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Shared execution layer for everything that runs concurrently on the protocol side
+ * (Database requests, simulated card installation, test fixtures).
+ * <p>
+ * On a JDK with virtual threads every task gets its own virtual thread, so thousands of parallel
+ * rentals cost a few kilobytes each. On older JDKs it falls back to a cached pool of daemon threads
+ * that are reused between tasks instead of creating one OS thread per message.
+ *
+ * @author Egidius Mysliwietz
+ */
+public final class ProtocolExecutor {
+    private static final ExecutorService EXECUTOR = create();
+    private static final boolean VIRTUAL = !(EXECUTOR instanceof ThreadPoolExecutor);
+
+    private ProtocolExecutor() {
+    }
+
+    private static ExecutorService create() {
+        try {
+            //Looked up reflectively so the project still builds on JDKs without Loom
+            Method perTask = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) perTask.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            AtomicInteger count = new AtomicInteger();
+            return Executors.newCachedThreadPool(r -> {
+                Thread t = new Thread(r, "protocol-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    public static boolean usesVirtualThreads() {
+        return VIRTUAL;
+    }
+
+    public static void execute(Runnable task) {
+        EXECUTOR.execute(task);
+    }
+
+    public static <T> Future<T> submit(Callable<T> task) {
+        return EXECUTOR.submit(task);
+    }
+
+    public static Executor executor() {
+        return EXECUTOR;
+    }
+
+    /**
+     * Opens a scope for one protocol run. Subtasks forked in the scope never outlive it.
+     */
+    public static Scope openScope() {
+        return new Scope();
+    }
+
+    /**
+     * Structured concurrency for a single protocol run: {@link #join()} waits for every forked subtask
+     * and, as soon as one of them fails, cancels the others and rethrows the failure.
+     * Closing the scope cancels anything that is still running.
+     */
+    public static final class Scope implements AutoCloseable {
+        private final CompletionService<Object> completion = new ExecutorCompletionService<>(EXECUTOR);
+        private final List<Future<Object>> forks = new ArrayList<>();
+
+        private Scope() {
+        }
+
+        @SuppressWarnings("unchecked")
+        public <T> Future<T> fork(Callable<T> task) {
+            Future<Object> future = completion.submit((Callable<Object>) task);
+            forks.add(future);
+            return (Future<T>) future;
+        }
+
+        public Future<?> fork(Runnable task) {
+            return fork(() -> {
+                task.run();
+                return null;
+            });
+        }
+
+        public void join() throws InterruptedException, ExecutionException {
+            for (int i = 0; i < forks.size(); i++) {
+                try {
+                    completion.take().get();
+                } catch (ExecutionException | InterruptedException e) {
+                    cancelAll();
+                    throw e;
+                }
+            }
+        }
+
+        private void cancelAll() {
+            for (Future<Object> f : forks) {
+                f.cancel(true);
+            }
+        }
+
+        @Override
+        public void close() {
+            cancelAll();
+        }
+    }
+}